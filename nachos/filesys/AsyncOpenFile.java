@@ -0,0 +1,273 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * An <tt>OpenFile</tt> that can also be read and written asynchronously.
+ * <tt>readAsync()</tt> and <tt>writeAsync()</tt> queue the transfer and
+ * return a <tt>Request</tt> right away; the caller can go on with other work,
+ * issue more requests, and later wait for each one.
+ *
+ * <p>
+ * Queued requests are carried out as tasks on a <tt>KThreadPool</tt> of I/O
+ * workers (<tt>AsyncOpenFile.numWorkers</tt>, shared by every asynchronous
+ * file), so that the simulated delay of the underlying file system is spent
+ * on a worker instead of on the caller, and up to that many transfers can be
+ * in flight at once. The I/O pool is separate from the kernel's shared pool
+ * because its tasks block for the length of a transfer. When a transfer finishes, the I/O thread schedules a device
+ * interrupt; its handler wakes any threads waiting for the request and runs
+ * the request's completion handler. Request state is shared with that
+ * handler, so it is guarded by disabling interrupts.
+ *
+ * <p>
+ * The synchronous <tt>OpenFile</tt> methods go straight to the underlying
+ * file.
+ */
+public class AsyncOpenFile extends OpenFile {
+	/**
+	 * Wrap an open file.
+	 *
+	 * @param file the file to read and write.
+	 */
+	public AsyncOpenFile(OpenFile file) {
+		super(file.getFileSystem(), file.getName());
+		this.file = file;
+	}
+
+	/**
+	 * Start reading from the file. <i>buf</i> must not be touched until the
+	 * request completes.
+	 *
+	 * @param pos    the offset in the file to start reading at.
+	 * @param buf    the buffer to store the bytes in.
+	 * @param offset the offset in the buffer to start storing bytes.
+	 * @param length the number of bytes to read.
+	 * @return a handle for the pending transfer.
+	 */
+	public Request readAsync(int pos, byte[] buf, int offset, int length) {
+		return submit(new Request(false, pos, buf, offset, length));
+	}
+
+	/**
+	 * Start writing to the file. <i>buf</i> must not be changed until the
+	 * request completes.
+	 *
+	 * @param pos    the offset in the file to start writing at.
+	 * @param buf    the buffer holding the bytes to write.
+	 * @param offset the offset in the buffer of the first byte.
+	 * @param length the number of bytes to write.
+	 * @return a handle for the pending transfer.
+	 */
+	public Request writeAsync(int pos, byte[] buf, int offset, int length) {
+		return submit(new Request(true, pos, buf, offset, length));
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+		return file.read(pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+		return file.write(pos, buf, offset, length);
+	}
+
+	public int length() {
+		return file.length();
+	}
+
+	public void close() {
+		file.close();
+	}
+
+	public void seek(int pos) {
+		file.seek(pos);
+	}
+
+	public int tell() {
+		return file.tell();
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+		return file.read(buf, offset, length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+		return file.write(buf, offset, length);
+	}
+
+	private Request submit(final Request request) {
+		boolean intStatus = Machine.interrupt().disable();
+		if (ioPool == null)
+			ioPool = new KThreadPool(Config.getInteger(
+					"AsyncOpenFile.numWorkers", defaultNumWorkers));
+		numQueued++;
+		Machine.interrupt().restore(intStatus);
+
+		ioPool.submit(new Runnable() {
+			public void run() {
+				request.perform();
+			}
+		});
+		return request;
+	}
+
+	/**
+	 * A transfer queued by <tt>readAsync()</tt> or <tt>writeAsync()</tt>.
+	 */
+	public class Request {
+		Request(boolean isWrite, int pos, byte[] buf, int offset, int length) {
+			this.isWrite = isWrite;
+			this.pos = pos;
+			this.buf = buf;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Return <tt>true</tt> if the transfer has finished.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Wait for the transfer to finish.
+		 *
+		 * @return the number of bytes transferred, or -1 on failure, as the
+		 *         synchronous <tt>read()</tt> or <tt>write()</tt> would have
+		 *         returned.
+		 */
+		public int waitFor() {
+			boolean intStatus = Machine.interrupt().disable();
+			while (!done) {
+				waiters.add(KThread.currentThread());
+				KThread.sleep();
+			}
+			Machine.interrupt().restore(intStatus);
+			return result;
+		}
+
+		/**
+		 * Set a handler to run when the transfer finishes, or right away if
+		 * it already has. The handler runs with interrupts disabled and must
+		 * not block.
+		 *
+		 * @param handler the completion handler.
+		 */
+		public void setCompletionHandler(Runnable handler) {
+			boolean intStatus = Machine.interrupt().disable();
+			if (done)
+				handler.run();
+			else
+				this.handler = handler;
+			Machine.interrupt().restore(intStatus);
+		}
+
+		// run by an I/O worker; completes with a device interrupt
+		private void perform() {
+			boolean intStatus = Machine.interrupt().disable();
+			inFlight++;
+			maxInFlight = Math.max(maxInFlight, inFlight);
+			Machine.interrupt().restore(intStatus);
+
+			if (isWrite)
+				result = file.write(pos, buf, offset, length);
+			else
+				result = file.read(pos, buf, offset, length);
+
+			Machine.interrupt().scheduleDeviceInterrupt(1, "async I/O",
+					completion);
+		}
+
+		// the completion interrupt handler
+		private void complete() {
+			done = true;
+			inFlight--;
+			for (KThread waiter : waiters)
+				waiter.ready();
+			waiters.clear();
+			if (handler != null)
+				handler.run();
+		}
+
+		private Runnable completion = new Runnable() {
+			public void run() {
+				complete();
+			}
+		};
+
+		private boolean isWrite;
+
+		private int pos, offset, length;
+
+		private byte[] buf;
+
+		private int result;
+
+		private boolean done = false;
+
+		private Runnable handler = null;
+
+		private LinkedList<KThread> waiters = new LinkedList<KThread>();
+	}
+
+	/**
+	 * Start several reads at once and check that they overlap: together they
+	 * should take about as long as one of them.
+	 */
+	public static void selfTest() {
+		OpenFile raw = Machine.stubFileSystem().open("asynctest.tmp", true);
+		if (raw == null) {
+			System.out.println("AsyncOpenFile.selfTest: skipped, no stub file system");
+			return;
+		}
+
+		AsyncOpenFile file = new AsyncOpenFile(raw);
+		byte[] data = new byte[8 * 100];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		Lib.assertTrue(file.write(0, data, 0, data.length) == data.length);
+
+		final int[] completions = new int[1];
+		Request[] requests = new Request[defaultNumWorkers];
+		byte[][] bufs = new byte[requests.length][100];
+		long start = Machine.timer().getTime();
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = file.readAsync(i * 100, bufs[i], 0, 100);
+			requests[i].setCompletionHandler(new Runnable() {
+				public void run() {
+					completions[0]++;
+				}
+			});
+		}
+		for (int i = 0; i < requests.length; i++) {
+			Lib.assertTrue(requests[i].waitFor() == 100);
+			for (int j = 0; j < 100; j++)
+				Lib.assertTrue(bufs[i][j] == data[i * 100 + j], "async read returned bad data");
+		}
+		long elapsed = Machine.timer().getTime() - start;
+		Lib.assertTrue(completions[0] == requests.length);
+
+		file.close();
+		Machine.stubFileSystem().remove("asynctest.tmp");
+		System.out.println("AsyncOpenFile.selfTest: passed; " + requests.length
+				+ " reads took " + elapsed + " ticks, at most " + maxInFlight
+				+ " in flight");
+	}
+
+	private static final int defaultNumWorkers = 4;
+
+	private OpenFile file;
+
+	private static KThreadPool ioPool = null;
+
+	/** The total number of requests queued. */
+	public static long numQueued = 0;
+
+	private static int inFlight = 0; // guarded by disabling interrupts
+
+	/** The most requests that have been in flight at once. */
+	public static int maxInFlight = 0;
+}
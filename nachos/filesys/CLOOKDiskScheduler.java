@@ -0,0 +1,23 @@
+package nachos.filesys;
+
+import java.util.List;
+
+/**
+ * A circular elevator disk scheduler. The head only serves requests while
+ * moving towards higher tracks; when there is nothing left ahead of it, it
+ * returns to the lowest waiting request and sweeps up again. Compared to
+ * SCAN, requests at both ends of the disk wait about equally long.
+ */
+public class CLOOKDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new C-LOOK disk scheduler.
+	 */
+	public CLOOKDiskScheduler() {
+	}
+
+	protected DiskRequest choose(List<DiskRequest> candidates, int headTrack,
+			long time) {
+		DiskRequest request = nearest(candidates, headTrack, true);
+		return request != null ? request : lowest(candidates);
+	}
+}
@@ -0,0 +1,674 @@
+package nachos.filesys;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A file system that keeps a block buffer cache in front of another
+ * <tt>FileSystem</tt>.
+ *
+ * <p>
+ * File contents are cached in fixed-size blocks shared by every open handle
+ * of the same file, so re-reading bytes, or reading what another process just
+ * wrote, does not go back to the underlying file system. Writes only dirty the
+ * cached block; dirty blocks are written back when they are evicted, when the
+ * last handle of their file is closed, and periodically by a flusher thread.
+ * Blocks are replaced with the CLOCK algorithm.
+ *
+ * <p>
+ * A single cache lock guards the block map and the clock hand and is never
+ * held across I/O. Each block has its own lock, held while the block is being
+ * filled, written back or copied, so threads working on different blocks do
+ * not serialize.
+ *
+ * <p>
+ * To use it, set <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.CachingFileSystem</tt>. The underlying file system is the
+ * stub file system unless <tt>CachingFileSystem.fileSystem</tt> names another
+ * class. <tt>CachingFileSystem.numBlocks</tt> and
+ * <tt>CachingFileSystem.flushInterval</tt> (in ticks) tune the cache.
+ */
+public class CachingFileSystem implements SyncFileSystem {
+	/**
+	 * Allocate a new caching file system in front of the configured file
+	 * system.
+	 */
+	public CachingFileSystem() {
+		this(backingFileSystem(), Config.getInteger(
+				"CachingFileSystem.numBlocks", defaultNumBlocks));
+	}
+
+	/**
+	 * Allocate a new caching file system.
+	 *
+	 * @param fileSystem the file system to cache.
+	 * @param numBlocks  the number of blocks in the cache.
+	 */
+	public CachingFileSystem(FileSystem fileSystem, int numBlocks) {
+		Lib.assertTrue(fileSystem != null && numBlocks > 0);
+
+		this.fileSystem = fileSystem;
+		flushInterval = Config.getInteger("CachingFileSystem.flushInterval",
+				defaultFlushInterval);
+
+		cacheLock = new Lock();
+		blockFreed = new Condition2(cacheLock);
+		blocks = new Block[numBlocks];
+		for (int i = 0; i < numBlocks; i++)
+			blocks[i] = new Block();
+		blockMap = new HashMap<BlockKey, Block>();
+		files = new HashMap<String, CachedFile>();
+	}
+
+	private static FileSystem backingFileSystem() {
+		String name = Config.getString("CachingFileSystem.fileSystem");
+		if (name != null)
+			return (FileSystem) Lib.constructObject(name);
+		return Machine.stubFileSystem();
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		startFlusher();
+
+		cacheLock.acquire();
+		CachedFile file = files.get(name);
+		if (file == null) {
+			file = new CachedFile(name);
+			files.put(name, file);
+		}
+		file.openCount++;
+		cacheLock.release();
+
+		// the first opener (re)attaches the underlying file
+		file.lock.acquire();
+		if (file.backing == null) {
+			file.backing = fileSystem.open(name, truncate);
+			if (file.backing != null) {
+				file.length = file.backing.length();
+				// clean blocks of the old contents may still be cached
+				if (truncate)
+					invalidate(file);
+			}
+		}
+		else if (truncate) {
+			OpenFile reopened = fileSystem.open(name, true);
+			if (reopened != null) {
+				file.backing.close();
+				file.backing = reopened;
+				file.length = 0;
+				invalidate(file);
+			}
+		}
+		boolean opened = file.backing != null;
+		file.lock.release();
+
+		if (!opened) {
+			release(file);
+			return null;
+		}
+
+		cacheLock.acquire();
+		openCount++;
+		cacheLock.release();
+		return new CachedOpenFile(file);
+	}
+
+	public boolean remove(String name) {
+		// detach the name right away; handles that are still open keep
+		// working on the old file, like an unlinked host file, and its blocks
+		// stay cached until the last of them closes
+		cacheLock.acquire();
+		CachedFile file = files.remove(name);
+		boolean inUse = false;
+		if (file != null) {
+			file.removed = true;
+			inUse = file.openCount > 0;
+		}
+		cacheLock.release();
+
+		if (file != null && !inUse) {
+			file.lock.acquire();
+			invalidate(file);
+			file.lock.release();
+		}
+
+		return fileSystem.remove(name);
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Write every dirty block back to the underlying file system.
+	 */
+	public void flush() {
+		for (int i = 0; i < blocks.length; i++)
+			writeBack(blocks[i]);
+	}
+
+	/**
+	 * Flush the cache, then sync the underlying file system.
+	 */
+	public void sync() {
+		flush();
+		if (fileSystem instanceof SyncFileSystem)
+			((SyncFileSystem) fileSystem).sync();
+	}
+
+	/**
+	 * Return the fraction of block lookups that found the block in the
+	 * cache.
+	 */
+	public double getHitRatio() {
+		long lookups = numHits + numMisses;
+		return lookups == 0 ? 0 : (double) numHits / lookups;
+	}
+
+	/**
+	 * Return the number of cached blocks that have not been written back.
+	 */
+	public int getNumDirtyBlocks() {
+		return numDirtyBlocks;
+	}
+
+	/**
+	 * Print out the cache statistics.
+	 */
+	public void print() {
+		System.out.println("Buffer cache: hits " + numHits + ", misses "
+				+ numMisses + ", hit ratio "
+				+ String.format("%.3f", getHitRatio()));
+		System.out.println("Buffer cache: evictions " + numEvictions
+				+ ", write-backs " + numWriteBacks + ", dirty blocks "
+				+ numDirtyBlocks);
+	}
+
+	/** Number of lookups satisfied from the cache. */
+	public long numHits = 0;
+
+	/** Number of lookups that had to read the underlying file system. */
+	public long numMisses = 0;
+
+	/** Number of blocks replaced to make room for another block. */
+	public long numEvictions = 0;
+
+	/** Number of dirty blocks written to the underlying file system. */
+	public long numWriteBacks = 0;
+
+	private void startFlusher() {
+		if (flusher != null || flushInterval <= 0)
+			return;
+
+		flusher = new KThread(new Runnable() {
+			public void run() {
+				while (true) {
+					ThreadedKernel.alarm.waitUntil(flushInterval);
+					flush();
+				}
+			}
+		});
+		flusher.setName("buffer cache flusher").fork();
+	}
+
+	/**
+	 * Return the cached block <i>blockNumber</i> of <i>file</i>, pinned and
+	 * with its lock held. If the block is not cached it is read from the
+	 * underlying file, unless <i>overwrite</i> says the caller is about to
+	 * replace the whole block.
+	 */
+	private Block getBlock(CachedFile file, int blockNumber, boolean overwrite) {
+		BlockKey key = new BlockKey(file, blockNumber);
+
+		cacheLock.acquire();
+		while (true) {
+			Block block = blockMap.get(key);
+			if (block != null) {
+				numHits++;
+				block.pinCount++;
+				block.referenced = true;
+				cacheLock.release();
+
+				// waits here if another thread is still filling it
+				block.lock.acquire();
+				return block;
+			}
+
+			Block victim = chooseVictim();
+			if (victim == null) {
+				// every block is pinned
+				blockFreed.sleep();
+				continue;
+			}
+
+			if (victim.dirty) {
+				// clean it without holding cacheLock, then look again
+				victim.pinCount++;
+				cacheLock.release();
+				writeBack(victim);
+				cacheLock.acquire();
+				if (--victim.pinCount == 0)
+					blockFreed.wakeAll();
+				continue;
+			}
+
+			numMisses++;
+			if (victim.key != null) {
+				numEvictions++;
+				blockMap.remove(victim.key);
+				victim.key.file.numBlocks--;
+				forget(victim.key.file);
+			}
+			file.numBlocks++;
+			victim.key = key;
+			victim.pinCount = 1;
+			victim.referenced = true;
+			blockMap.put(key, victim);
+			victim.lock.acquire(); // unpinned blocks are never locked
+			cacheLock.release();
+
+			fill(victim, overwrite);
+			return victim;
+		}
+	}
+
+	/**
+	 * Run the clock hand over the blocks until it finds an unpinned block
+	 * that has not been referenced since the last sweep. Called with
+	 * cacheLock held.
+	 *
+	 * @return the victim, or <tt>null</tt> if every block is pinned.
+	 */
+	private Block chooseVictim() {
+		for (int i = 0; i < 2 * blocks.length; i++) {
+			Block block = blocks[clockHand];
+			clockHand = (clockHand + 1) % blocks.length;
+
+			if (block.pinCount > 0)
+				continue;
+			if (block.key == null || !block.referenced)
+				return block;
+			block.referenced = false;
+		}
+		return null;
+	}
+
+	private void fill(Block block, boolean overwrite) {
+		CachedFile file = block.key.file;
+		int pos = block.key.blockNumber * blockSize;
+		int amount = 0;
+
+		if (!overwrite && pos < file.length) {
+			amount = file.backing.read(pos, block.data, 0,
+					Math.min(blockSize, file.length - pos));
+			amount = Math.max(amount, 0);
+		}
+		for (int i = amount; i < blockSize; i++)
+			block.data[i] = 0;
+	}
+
+	private void unpin(Block block) {
+		block.lock.release();
+
+		cacheLock.acquire();
+		block.pinCount--;
+		if (block.pinCount == 0)
+			blockFreed.wakeAll();
+		cacheLock.release();
+	}
+
+	/**
+	 * Write <i>block</i> back if it is dirty. The caller must not hold the
+	 * block's lock.
+	 */
+	private void writeBack(Block block) {
+		// pin it so it can be neither evicted nor invalidated meanwhile
+		cacheLock.acquire();
+		if (block.key == null || !block.dirty) {
+			cacheLock.release();
+			return;
+		}
+		block.pinCount++;
+		cacheLock.release();
+
+		block.lock.acquire();
+		if (block.dirty) {
+			CachedFile file = block.key.file;
+			int pos = block.key.blockNumber * blockSize;
+			int amount = Math.min(blockSize, file.length - pos);
+			if (amount > 0 && file.backing != null)
+				file.backing.write(pos, block.data, 0, amount);
+
+			block.dirty = false;
+			cacheLock.acquire();
+			numDirtyBlocks--;
+			numWriteBacks++;
+			cacheLock.release();
+		}
+		unpin(block);
+	}
+
+	/**
+	 * Drop all cached blocks of <i>file</i> without writing them back, waiting
+	 * for any that are pinned by a copy or write-back in progress. Called with
+	 * the file's lock held.
+	 */
+	private void invalidate(CachedFile file) {
+		cacheLock.acquire();
+		while (true) {
+			boolean pinned = false;
+			for (int i = 0; i < blocks.length; i++) {
+				Block block = blocks[i];
+				if (block.key == null || block.key.file != file)
+					continue;
+				if (block.pinCount > 0) {
+					pinned = true;
+					continue;
+				}
+				blockMap.remove(block.key);
+				block.key = null;
+				file.numBlocks--;
+				if (block.dirty) {
+					block.dirty = false;
+					numDirtyBlocks--;
+				}
+			}
+			if (!pinned)
+				break;
+			blockFreed.sleep();
+		}
+		forget(file);
+		cacheLock.release();
+	}
+
+	/**
+	 * Drop <i>file</i> from the file map once it has no handles and no cached
+	 * blocks, so the map only holds files that are open or cached. Called with
+	 * cacheLock held.
+	 */
+	private void forget(CachedFile file) {
+		if (file.openCount == 0 && file.numBlocks == 0 && file.backing == null
+				&& files.get(file.name) == file)
+			files.remove(file.name);
+	}
+
+	/**
+	 * Drop one reference to <i>file</i>. The last reference writes its dirty
+	 * blocks back and closes the underlying file; the clean blocks stay
+	 * cached for the next open. A removed file's blocks are dropped instead.
+	 */
+	private void release(CachedFile file) {
+		cacheLock.acquire();
+		boolean last = --file.openCount == 0;
+		boolean removed = file.removed;
+		cacheLock.release();
+
+		if (!last)
+			return;
+
+		if (removed) {
+			file.lock.acquire();
+			invalidate(file);
+			if (file.backing != null) {
+				file.backing.close();
+				file.backing = null;
+			}
+			file.lock.release();
+			return;
+		}
+
+		for (int i = 0; i < blocks.length; i++) {
+			BlockKey key = blocks[i].key;
+			if (key != null && key.file == file)
+				writeBack(blocks[i]);
+		}
+
+		file.lock.acquire();
+		cacheLock.acquire();
+		last = file.openCount == 0;
+		cacheLock.release();
+		if (last && file.backing != null) {
+			file.backing.close();
+			file.backing = null;
+		}
+		cacheLock.acquire();
+		forget(file);
+		cacheLock.release();
+		file.lock.release();
+	}
+
+	/**
+	 * Shared state of one file, whichever handles it is open through.
+	 */
+	private class CachedFile {
+		CachedFile(String name) {
+			this.name = name;
+		}
+
+		String name;
+
+		OpenFile backing = null; // open while openCount > 0
+
+		int length = 0; // includes writes not yet written back
+
+		int openCount = 0; // guarded by cacheLock
+
+		int numBlocks = 0; // cached blocks; guarded by cacheLock
+
+		boolean removed = false; // no longer in files; guarded by cacheLock
+
+		Lock lock = new Lock(); // guards backing and truncation
+	}
+
+	private class BlockKey {
+		BlockKey(CachedFile file, int blockNumber) {
+			this.file = file;
+			this.blockNumber = blockNumber;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof BlockKey))
+				return false;
+			BlockKey key = (BlockKey) o;
+			return key.file == file && key.blockNumber == blockNumber;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(file) * 31 + blockNumber;
+		}
+
+		CachedFile file;
+
+		int blockNumber;
+	}
+
+	private class Block {
+		BlockKey key = null; // null if the block is free
+
+		byte[] data = new byte[blockSize];
+
+		boolean dirty = false;
+
+		boolean referenced = false; // CLOCK use bit
+
+		int pinCount = 0; // guarded by cacheLock
+
+		Lock lock = new Lock(); // held while filling, writing or copying
+	}
+
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(CachedFile file) {
+			super(CachingFileSystem.this, file.name);
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0 || length < 0)
+				return -1;
+
+			int amount = 0;
+			while (amount < length && pos + amount < file.length) {
+				int filePos = pos + amount;
+				int blockOffset = filePos % blockSize;
+				int chunk = Math.min(length - amount, Math.min(blockSize
+						- blockOffset, file.length - filePos));
+
+				Block block = getBlock(file, filePos / blockSize, false);
+				System.arraycopy(block.data, blockOffset, buf, offset + amount,
+						chunk);
+				unpin(block);
+
+				amount += chunk;
+			}
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0 || length < 0)
+				return -1;
+
+			int amount = 0;
+			while (amount < length) {
+				int filePos = pos + amount;
+				int blockOffset = filePos % blockSize;
+				int chunk = Math.min(length - amount, blockSize - blockOffset);
+				int blockStart = filePos - blockOffset;
+				boolean overwrite = (chunk == blockSize)
+						|| (blockOffset == 0 && blockStart + chunk >= file.length);
+
+				Block block = getBlock(file, filePos / blockSize, overwrite);
+				System.arraycopy(buf, offset + amount, block.data, blockOffset,
+						chunk);
+				if (filePos + chunk > file.length)
+					file.length = filePos + chunk;
+				if (!block.dirty) {
+					block.dirty = true;
+					numDirtyBlocks++;
+				}
+				unpin(block);
+
+				amount += chunk;
+			}
+			return amount;
+		}
+
+		public int length() {
+			return file == null ? -1 : file.length;
+		}
+
+		public void close() {
+			if (file == null)
+				return;
+
+			CachedFile closing = file;
+			file = null;
+			release(closing);
+
+			cacheLock.acquire();
+			openCount--;
+			cacheLock.release();
+		}
+
+		private CachedFile file;
+	}
+
+	/**
+	 * Write a file several times the size of a small cache over the stub file
+	 * system, then read it back through a second handle and through the stub
+	 * file system directly. Then truncate it and check none of it is left, and
+	 * remove it while a handle holds unflushed writes.
+	 */
+	public static void selfTest() {
+		CachingFileSystem cache = new CachingFileSystem(
+				Machine.stubFileSystem(), 4);
+		String name = "cachetest.tmp";
+		int total = 10 * blockSize + 123;
+
+		OpenFile out = cache.open(name, true);
+		byte[] chunk = new byte[300];
+		for (int written = 0; written < total; ) {
+			int n = Math.min(chunk.length, total - written);
+			for (int i = 0; i < n; i++)
+				chunk[i] = (byte) ((written + i) * 7);
+			Lib.assertTrue(out.write(chunk, 0, n) == n);
+			written += n;
+		}
+
+		// a second handle sees the same blocks, dirty or not
+		OpenFile in = cache.open(name, false);
+		Lib.assertTrue(in.length() == total);
+		byte[] buf = new byte[total];
+		Lib.assertTrue(in.read(0, buf, 0, total) == total);
+		Lib.assertTrue(in.read(0, buf, 0, total) == total);
+		for (int i = 0; i < total; i++)
+			Lib.assertTrue(buf[i] == (byte) (i * 7), "cache returned bad data");
+		in.close();
+		out.close();
+		Lib.assertTrue(cache.getNumDirtyBlocks() == 0 && cache.getOpenCount() == 0);
+
+		// closing the last handle must have reached the stub file system
+		OpenFile raw = Machine.stubFileSystem().open(name, false);
+		Lib.assertTrue(raw.read(0, buf, 0, total) == total);
+		for (int i = 0; i < total; i++)
+			Lib.assertTrue(buf[i] == (byte) (i * 7), "write-back lost data");
+		raw.close();
+
+		// truncating with no handles open must drop the old blocks, or they
+		// show through a write past the end of the new file
+		out = cache.open(name, true);
+		int hole = 10 * blockSize + 200;
+		Lib.assertTrue(out.write(hole, chunk, 0, 10) == 10);
+		Lib.assertTrue(out.read(10 * blockSize, buf, 0, 200) == 200);
+		for (int i = 0; i < 200; i++)
+			Lib.assertTrue(buf[i] == 0, "truncated data came back");
+
+		// a handle still open when the file is removed keeps its writes,
+		// including those not yet written back
+		for (int i = 0; i < chunk.length; i++)
+			chunk[i] = (byte) (i * 13);
+		Lib.assertTrue(out.write(0, chunk, 0, chunk.length) == chunk.length);
+		Lib.assertTrue(cache.getNumDirtyBlocks() > 0);
+		cache.remove(name);
+		Lib.assertTrue(out.read(0, buf, 0, chunk.length) == chunk.length);
+		for (int i = 0; i < chunk.length; i++)
+			Lib.assertTrue(buf[i] == chunk[i], "removed file lost its writes");
+		out.close();
+		Lib.assertTrue(cache.getNumDirtyBlocks() == 0);
+		Lib.assertTrue(cache.files.isEmpty(), "closed files still tracked");
+
+		System.out.print("CachingFileSystem.selfTest: passed; ");
+		cache.print();
+	}
+
+	/** The size of a cache block, in bytes. */
+	public static final int blockSize = 1024;
+
+	private static final int defaultNumBlocks = 64;
+
+	private static final int defaultFlushInterval = 100000;
+
+	private FileSystem fileSystem;
+
+	private int flushInterval;
+
+	private KThread flusher = null;
+
+	private Lock cacheLock; // guards blockMap, files, clockHand and pins
+
+	private Condition2 blockFreed; // signalled when a block is unpinned
+
+	private Block[] blocks;
+
+	private int clockHand = 0;
+
+	private Map<BlockKey, Block> blockMap;
+
+	private Map<String, CachedFile> files;
+
+	private int openCount = 0;
+
+	private int numDirtyBlocks = 0;
+}
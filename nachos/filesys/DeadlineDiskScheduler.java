@@ -0,0 +1,37 @@
+package nachos.filesys;
+
+import java.util.List;
+
+/**
+ * A disk scheduler that serves requests in C-LOOK order, except that a request
+ * whose deadline has passed is served first. Reads get a much shorter deadline
+ * than writes, since a thread usually cannot make progress until its read
+ * completes.
+ */
+public class DeadlineDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new deadline disk scheduler.
+	 */
+	public DeadlineDiskScheduler() {
+	}
+
+	protected DiskRequest choose(List<DiskRequest> candidates, int headTrack,
+			long time) {
+		DiskRequest expired = null;
+		for (DiskRequest request : candidates) {
+			if (request.deadline <= time
+					&& (expired == null || request.deadline < expired.deadline))
+				expired = request;
+		}
+		if (expired != null) {
+			numExpired++;
+			return expired;
+		}
+
+		DiskRequest request = nearest(candidates, headTrack, true);
+		return request != null ? request : lowest(candidates);
+	}
+
+	/** The number of requests served because their deadline had passed. */
+	public long numExpired = 0;
+}
@@ -0,0 +1,1158 @@
+package nachos.filesys;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A file system stored on a <tt>SynchDisk</tt>.
+ *
+ * <p>
+ * The disk is laid out as a superblock in sector 0, followed by a bitmap of
+ * free sectors, a fixed table of inodes, and data sectors. An inode holds the
+ * type and size of a file and the sectors holding its data: twelve direct
+ * pointers, one indirect pointer and one doubly indirect pointer. A pointer of
+ * 0 is a hole that reads as zeros. Directories are files of fixed-size
+ * entries mapping a name to an inode number; inode 1 is the root directory.
+ * File names are paths with components separated by <tt>/</tt>.
+ *
+ * <p>
+ * Names are looked up without reading directories on disk. A name cache
+ * shared by every process maps a directory and a name to an inode number, and
+ * also remembers names that are not there, so repeated failing opens cost
+ * nothing (<tt>DiskFileSystem.nameCacheSize</tt> entries, least recently used
+ * first out). Behind it, recently used directories have an in-memory hash
+ * index of their entries and free slots, built by reading the directory once,
+ * so that adding and removing an entry writes just that entry. Lookups,
+ * creates and removes take the same time however big the directory is.
+ *
+ * <p>
+ * <tt>nsLock</tt> serializes changes to the name space and the table of open
+ * inodes. Each open inode has its own lock guarding its size and block
+ * pointers, so reads and writes of different files proceed in parallel. The
+ * free-sector bitmap and the inode table sectors are guarded by leaf locks
+ * that are never held while acquiring another lock.
+ *
+ * <p>
+ * Unless <tt>DiskFileSystem.logSectors</tt> is 0 when the disk is formatted,
+ * an area after the inode table holds a <tt>Journal</tt>, and every sector
+ * the file system writes goes through it: each operation that changes the
+ * disk is one journal operation (large writes are split into several), so
+ * operations are atomic across crashes, and small writes from many processes
+ * reach the disk together as one sequential log write. The default log is an
+ * eighth of the disk. Operations start their journal operation before taking
+ * any of the locks above.
+ *
+ * <p>
+ * The disk is mounted on first use, and formatted if it does not hold a file
+ * system yet or if <tt>DiskFileSystem.format</tt> is set. To use it, set
+ * <tt>ThreadedKernel.fileSystem</tt> to <tt>nachos.filesys.DiskFileSystem</tt>
+ * (or put a <tt>CachingFileSystem</tt> in front of it).
+ */
+public class DiskFileSystem implements SyncFileSystem {
+	/**
+	 * Allocate a new file system on the disk configured in
+	 * <tt>nachos.conf</tt>.
+	 */
+	public DiskFileSystem() {
+		this(null, Config.getBoolean("DiskFileSystem.format", false));
+	}
+
+	/**
+	 * Allocate a new file system, with a log of the configured size if the
+	 * disk is formatted.
+	 *
+	 * @param disk   the disk to use, or <tt>null</tt> to create the configured
+	 *               disk when the file system is first used.
+	 * @param format <tt>true</tt> to format the disk when it is mounted.
+	 */
+	public DiskFileSystem(SynchDisk disk, boolean format) {
+		this(disk, format, Config.getInteger("DiskFileSystem.logSectors", -1));
+	}
+
+	/**
+	 * Allocate a new file system.
+	 *
+	 * @param disk       the disk to use, or <tt>null</tt> to create the
+	 *                   configured disk when the file system is first used.
+	 * @param format     <tt>true</tt> to format the disk when it is mounted.
+	 * @param logSectors the size of the log to create when formatting: 0 for
+	 *                   no journal, or -1 for an eighth of the disk.
+	 */
+	public DiskFileSystem(SynchDisk disk, boolean format, int logSectors) {
+		this.disk = disk;
+		this.format = format;
+		this.newLogSectors = logSectors;
+
+		mountLock = new Lock();
+		nsLock = new Lock();
+		bitmapLock = new Lock();
+		inodeTableLock = new Lock();
+		openInodes = new HashMap<Integer, Inode>();
+
+		final int nameCacheSize = Config.getInteger(
+				"DiskFileSystem.nameCacheSize", defaultNameCacheSize);
+		nameCache = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return size() > nameCacheSize;
+			}
+		};
+		dirIndexes = new LinkedHashMap<Integer, DirectoryIndex>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, DirectoryIndex> eldest) {
+				return size() > maxIndexedDirectories;
+			}
+		};
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		mount();
+
+		// only creating or truncating a file writes anything
+		if (truncate)
+			beginOperation();
+		nsLock.acquire();
+		Inode inode = null;
+		String[] path = parsePath(name);
+		Inode parent = path == null ? null : lookupParent(path);
+		if (parent != null && parent.type == typeDirectory) {
+			String last = path[path.length - 1];
+			int inumber = lookup(parent, last);
+			if (inumber == 0 && truncate) {
+				inumber = allocateInode(typeFile);
+				if (inumber != 0 && !addEntry(parent, last, inumber)) {
+					freeInode(getInode(inumber));
+					inumber = 0;
+				}
+			}
+			if (inumber != 0) {
+				inode = getInode(inumber);
+				if (inode.type != typeFile)
+					inode = null;
+			}
+		}
+		if (inode != null) {
+			inode.openCount++;
+			openInodes.put(inode.inumber, inode);
+			openCount++;
+		}
+		nsLock.release();
+
+		if (inode != null && truncate) {
+			inode.lock.acquire();
+			truncate(inode);
+			inode.lock.release();
+		}
+		if (truncate)
+			endOperation(inode != null);
+
+		if (inode == null)
+			return null;
+		return new DiskOpenFile(name, inode);
+	}
+
+	public boolean remove(String name) {
+		mount();
+
+		beginOperation();
+		nsLock.acquire();
+		boolean removed = false;
+		String[] path = parsePath(name);
+		Inode parent = path == null ? null : lookupParent(path);
+		if (parent != null && parent.type == typeDirectory) {
+			String last = path[path.length - 1];
+			int inumber = lookup(parent, last);
+			if (inumber != 0) {
+				Inode inode = getInode(inumber);
+				if (inode.type == typeFile || isEmptyDirectory(inode)) {
+					removeEntry(parent, last);
+					// open files are freed when their last handle closes
+					if (inode.openCount == 0)
+						freeInode(inode);
+					else
+						inode.removed = true;
+					removed = true;
+				}
+			}
+		}
+		nsLock.release();
+		endOperation(removed);
+		return removed;
+	}
+
+	/**
+	 * Create an empty directory.
+	 *
+	 * @param name the path of the new directory.
+	 * @return <tt>true</tt> if the directory was created.
+	 */
+	public boolean createDirectory(String name) {
+		mount();
+
+		beginOperation();
+		nsLock.acquire();
+		boolean created = false;
+		String[] path = parsePath(name);
+		Inode parent = path == null ? null : lookupParent(path);
+		if (parent != null && parent.type == typeDirectory
+				&& lookup(parent, path[path.length - 1]) == 0) {
+			int inumber = allocateInode(typeDirectory);
+			if (inumber != 0) {
+				created = addEntry(parent, path[path.length - 1], inumber);
+				if (!created)
+					freeInode(getInode(inumber));
+			}
+		}
+		nsLock.release();
+		endOperation(created);
+		return created;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	public void sync() {
+		if (journal != null)
+			journal.commit();
+		if (disk != null)
+			disk.flush();
+	}
+
+	/**
+	 * Return the number of free sectors on the disk.
+	 */
+	public int getNumFreeSectors() {
+		mount();
+
+		bitmapLock.acquire();
+		int free = 0;
+		for (int sector = dataStart; sector < numSectors; sector++) {
+			if (!isAllocated(sector))
+				free++;
+		}
+		bitmapLock.release();
+		return free;
+	}
+
+	/**
+	 * Return the disk this file system is stored on.
+	 */
+	public SynchDisk getDisk() {
+		mount();
+		return disk;
+	}
+
+	/**
+	 * Return the journal, or <tt>null</tt> if the disk has no log.
+	 */
+	public Journal getJournal() {
+		mount();
+		return journal;
+	}
+
+	private void mount() {
+		mountLock.acquire();
+		if (!mounted) {
+			if (disk == null)
+				disk = new SynchDisk();
+			numSectors = disk.getNumSectors();
+
+			byte[] buf = new byte[sectorSize];
+			disk.readSector(superblockSector, buf, 0);
+			if (format || Lib.bytesToInt(buf, 0) != magic
+					|| Lib.bytesToInt(buf, 4) != numSectors)
+				formatDisk();
+			else
+				readSuperblock(buf);
+
+			if (logSectors > 0) {
+				journal = new Journal(disk, logStart, logSectors, maxOpSectors());
+				journal.recover();
+			}
+			loadBitmap();
+			loadInodeMap();
+			mounted = true;
+		}
+		mountLock.release();
+	}
+
+	private void computeLayout(int numInodes, int logSectors) {
+		this.numInodes = numInodes;
+		this.logSectors = logSectors;
+		bitmapStart = superblockSector + 1;
+		bitmapSectors = (numSectors + bitsPerSector - 1) / bitsPerSector;
+		inodeStart = bitmapStart + bitmapSectors;
+		inodeSectors = numInodes / inodesPerSector;
+		logStart = inodeStart + inodeSectors;
+		dataStart = logStart + logSectors;
+	}
+
+	private void readSuperblock(byte[] buf) {
+		computeLayout(Lib.bytesToInt(buf, 8), Lib.bytesToInt(buf, 12));
+	}
+
+	/**
+	 * Return the most distinct sectors one journal operation writes: a
+	 * write's data sectors, the pointer sectors they may need, the bitmap and
+	 * a few inode and directory sectors.
+	 */
+	private int maxOpSectors() {
+		return writeChunk + 8 + bitmapSectors;
+	}
+
+	private void formatDisk() {
+		int inodes = Math.max(inodesPerSector, numSectors / 16);
+		computeLayout(inodes - inodes % inodesPerSector, 0);
+
+		int log = newLogSectors;
+		if (log < 0)
+			log = numSectors / 8;
+		if (log > 0)
+			log = Math.max(log, Journal.minLogSectors(maxOpSectors()));
+		computeLayout(numInodes, log);
+
+		byte[] buf = new byte[sectorSize];
+		Lib.bytesFromInt(buf, 0, magic);
+		Lib.bytesFromInt(buf, 4, numSectors);
+		Lib.bytesFromInt(buf, 8, numInodes);
+		Lib.bytesFromInt(buf, 12, logSectors);
+		disk.writeSector(superblockSector, buf, 0);
+
+		// every metadata sector is in use, every data sector is free
+		for (int i = 0; i < bitmapSectors; i++) {
+			buf = new byte[sectorSize];
+			for (int bit = 0; bit < bitsPerSector; bit++) {
+				int sector = i * bitsPerSector + bit;
+				if (sector < dataStart || sector >= numSectors)
+					buf[bit / 8] |= 1 << (bit % 8);
+			}
+			disk.writeSector(bitmapStart + i, buf, 0);
+		}
+
+		byte[] empty = new byte[sectorSize];
+		for (int i = 0; i < inodeSectors; i++) {
+			if (i == rootInode / inodesPerSector) {
+				byte[] root = new byte[sectorSize];
+				Lib.bytesFromInt(root, (rootInode % inodesPerSector) * inodeSize,
+						typeDirectory);
+				disk.writeSector(inodeStart + i, root, 0);
+			}
+			else {
+				disk.writeSector(inodeStart + i, empty, 0);
+			}
+		}
+
+		if (logSectors > 0)
+			Journal.format(disk, logStart, logSectors);
+	}
+
+	private void loadBitmap() {
+		bitmap = new byte[bitmapSectors * sectorSize];
+		for (int i = 0; i < bitmapSectors; i++)
+			readSector(bitmapStart + i, bitmap, i * sectorSize);
+	}
+
+	private void loadInodeMap() {
+		inodeUsed = new boolean[numInodes];
+		inodeUsed[0] = true; // inode 0 means "no inode"
+
+		byte[] buf = new byte[sectorSize];
+		for (int i = 0; i < inodeSectors; i++) {
+			readSector(inodeStart + i, buf, 0);
+			for (int j = 0; j < inodesPerSector; j++) {
+				if (Lib.bytesToInt(buf, j * inodeSize) != typeFree)
+					inodeUsed[i * inodesPerSector + j] = true;
+			}
+		}
+	}
+
+	private boolean isAllocated(int sector) {
+		return (bitmap[sector / 8] & (1 << (sector % 8))) != 0;
+	}
+
+	/**
+	 * Allocate a free sector, optionally filling it with zeros on disk.
+	 *
+	 * @return the sector, or 0 if the disk is full.
+	 */
+	private int allocateSector(boolean zero) {
+		bitmapLock.acquire();
+		int sector = 0;
+		int numData = numSectors - dataStart;
+		for (int i = 0; i < numData; i++) {
+			// continue from the last allocation, so files tend to be contiguous
+			int candidate = dataStart + (nextFreeHint + i) % numData;
+			if (!isAllocated(candidate)) {
+				sector = candidate;
+				break;
+			}
+		}
+		if (sector != 0) {
+			bitmap[sector / 8] |= 1 << (sector % 8);
+			writeBitmapSector(sector);
+			nextFreeHint = sector + 1 - dataStart;
+		}
+		bitmapLock.release();
+
+		if (sector != 0 && zero)
+			writeSector(sector, new byte[sectorSize], 0);
+		return sector;
+	}
+
+	private void freeSector(int sector) {
+		if (sector == 0)
+			return;
+
+		bitmapLock.acquire();
+		Lib.assertTrue(isAllocated(sector), "freeing a free sector");
+		bitmap[sector / 8] &= ~(1 << (sector % 8));
+		writeBitmapSector(sector);
+		bitmapLock.release();
+	}
+
+	private void writeBitmapSector(int sector) {
+		int i = sector / bitsPerSector;
+		writeSector(bitmapStart + i, bitmap, i * sectorSize);
+	}
+
+	/**
+	 * Allocate and initialize an empty inode. Called with nsLock held.
+	 *
+	 * @return the inode number, or 0 if the inode table is full.
+	 */
+	private int allocateInode(int type) {
+		int inumber = 0;
+		for (int i = 1; i < numInodes; i++) {
+			if (!inodeUsed[i]) {
+				inumber = i;
+				break;
+			}
+		}
+		if (inumber == 0)
+			return 0;
+
+		inodeUsed[inumber] = true;
+		Inode inode = new Inode(inumber);
+		inode.type = type;
+		writeInode(inode);
+		return inumber;
+	}
+
+	/**
+	 * Release an inode and all of its sectors. Called with nsLock held, or by
+	 * the last handle of a removed file.
+	 */
+	private void freeInode(Inode inode) {
+		// an empty directory has no entries left in the name cache but
+		// negative ones, which stay true if the inode becomes a directory
+		// again
+		if (inode.type == typeDirectory)
+			dirIndexes.remove(inode.inumber);
+		truncate(inode);
+		inode.type = typeFree;
+		writeInode(inode);
+		inodeUsed[inode.inumber] = false;
+	}
+
+	/**
+	 * Return the inode with the specified number: the shared copy if it is
+	 * open, otherwise a fresh copy read from disk. Called with nsLock held.
+	 */
+	private Inode getInode(int inumber) {
+		Inode inode = openInodes.get(inumber);
+		if (inode != null)
+			return inode;
+
+		inode = new Inode(inumber);
+		byte[] buf = new byte[sectorSize];
+		readSector(inodeStart + inumber / inodesPerSector, buf, 0);
+
+		int offset = (inumber % inodesPerSector) * inodeSize;
+		inode.type = Lib.bytesToInt(buf, offset);
+		inode.size = Lib.bytesToInt(buf, offset + 4);
+		for (int i = 0; i < numDirect; i++)
+			inode.direct[i] = Lib.bytesToInt(buf, offset + 8 + i * 4);
+		inode.indirect = Lib.bytesToInt(buf, offset + 8 + numDirect * 4);
+		inode.doubleIndirect = Lib.bytesToInt(buf, offset + 12 + numDirect * 4);
+		return inode;
+	}
+
+	private void writeInode(Inode inode) {
+		inodeTableLock.acquire();
+		int sector = inodeStart + inode.inumber / inodesPerSector;
+		byte[] buf = new byte[sectorSize];
+		readSector(sector, buf, 0);
+
+		int offset = (inode.inumber % inodesPerSector) * inodeSize;
+		Lib.bytesFromInt(buf, offset, inode.type);
+		Lib.bytesFromInt(buf, offset + 4, inode.size);
+		for (int i = 0; i < numDirect; i++)
+			Lib.bytesFromInt(buf, offset + 8 + i * 4, inode.direct[i]);
+		Lib.bytesFromInt(buf, offset + 8 + numDirect * 4, inode.indirect);
+		Lib.bytesFromInt(buf, offset + 12 + numDirect * 4, inode.doubleIndirect);
+
+		writeSector(sector, buf, 0);
+		inode.dirty = false;
+		inodeTableLock.release();
+	}
+
+	/**
+	 * Return the sector holding block <i>block</i> of a file, allocating it
+	 * (and any pointer sectors on the way) if <i>allocate</i> is set.
+	 *
+	 * @return the sector, or 0 for a hole or if the disk is full.
+	 */
+	private int map(Inode inode, int block, boolean allocate) {
+		if (block < numDirect) {
+			if (inode.direct[block] == 0 && allocate) {
+				inode.direct[block] = allocateSector(false);
+				inode.dirty = true;
+			}
+			return inode.direct[block];
+		}
+
+		block -= numDirect;
+		if (block < pointersPerSector) {
+			if (inode.indirect == 0) {
+				if (!allocate || (inode.indirect = allocateSector(true)) == 0)
+					return 0;
+				inode.dirty = true;
+			}
+			return mapPointer(inode.indirect, block, allocate, false);
+		}
+
+		block -= pointersPerSector;
+		if (block >= pointersPerSector * pointersPerSector)
+			return 0;
+		if (inode.doubleIndirect == 0) {
+			if (!allocate || (inode.doubleIndirect = allocateSector(true)) == 0)
+				return 0;
+			inode.dirty = true;
+		}
+		int indirect = mapPointer(inode.doubleIndirect,
+				block / pointersPerSector, allocate, true);
+		if (indirect == 0)
+			return 0;
+		return mapPointer(indirect, block % pointersPerSector, allocate, false);
+	}
+
+	private int mapPointer(int pointerSector, int index, boolean allocate,
+			boolean zero) {
+		byte[] buf = new byte[sectorSize];
+		readSector(pointerSector, buf, 0);
+
+		int sector = Lib.bytesToInt(buf, index * 4);
+		if (sector == 0 && allocate) {
+			sector = allocateSector(zero);
+			if (sector != 0) {
+				Lib.bytesFromInt(buf, index * 4, sector);
+				writeSector(pointerSector, buf, 0);
+			}
+		}
+		return sector;
+	}
+
+	/**
+	 * Free every sector of a file, including pointer sectors, and set its
+	 * size to 0. Called with the inode's lock held (or nsLock, for inodes
+	 * nobody has open).
+	 */
+	private void truncate(Inode inode) {
+		if (inode.size == 0 && inode.indirect == 0 && inode.doubleIndirect == 0)
+			return;
+
+		for (int i = 0; i < numDirect; i++) {
+			freeSector(inode.direct[i]);
+			inode.direct[i] = 0;
+		}
+		freePointers(inode.indirect, 1);
+		freePointers(inode.doubleIndirect, 2);
+		inode.indirect = inode.doubleIndirect = 0;
+		inode.size = 0;
+		writeInode(inode);
+	}
+
+	private void freePointers(int pointerSector, int depth) {
+		if (pointerSector == 0)
+			return;
+
+		byte[] buf = new byte[sectorSize];
+		readSector(pointerSector, buf, 0);
+		for (int i = 0; i < pointersPerSector; i++) {
+			int sector = Lib.bytesToInt(buf, i * 4);
+			if (depth > 1)
+				freePointers(sector, depth - 1);
+			else
+				freeSector(sector);
+		}
+		freeSector(pointerSector);
+	}
+
+	private int readData(Inode inode, int pos, byte[] buf, int offset,
+			int length) {
+		if (pos >= inode.size)
+			return 0;
+		length = Math.min(length, inode.size - pos);
+
+		byte[] sectorBuf = new byte[sectorSize];
+		int amount = 0;
+		while (amount < length) {
+			int filePos = pos + amount;
+			int sectorOffset = filePos % sectorSize;
+			int chunk = Math.min(length - amount, sectorSize - sectorOffset);
+
+			int sector = map(inode, filePos / sectorSize, false);
+			if (sector == 0) {
+				for (int i = 0; i < chunk; i++)
+					buf[offset + amount + i] = 0;
+			}
+			else {
+				readSector(sector, sectorBuf, 0);
+				System.arraycopy(sectorBuf, sectorOffset, buf, offset + amount,
+						chunk);
+			}
+			amount += chunk;
+		}
+		return amount;
+	}
+
+	private int writeData(Inode inode, int pos, byte[] buf, int offset,
+			int length) {
+		byte[] sectorBuf = new byte[sectorSize];
+		int amount = 0;
+		while (amount < length) {
+			int filePos = pos + amount;
+			int sectorOffset = filePos % sectorSize;
+			int chunk = Math.min(length - amount, sectorSize - sectorOffset);
+			int block = filePos / sectorSize;
+
+			// only merge with the old contents of a partially written sector
+			int sector = map(inode, block, false);
+			if (sector == 0) {
+				sector = map(inode, block, true);
+				if (sector == 0)
+					break; // disk full
+				java.util.Arrays.fill(sectorBuf, (byte) 0);
+			}
+			else if (chunk < sectorSize) {
+				readSector(sector, sectorBuf, 0);
+			}
+
+			System.arraycopy(buf, offset + amount, sectorBuf, sectorOffset, chunk);
+			writeSector(sector, sectorBuf, 0);
+			amount += chunk;
+		}
+
+		if (pos + amount > inode.size) {
+			inode.size = pos + amount;
+			inode.dirty = true;
+		}
+		if (inode.dirty)
+			writeInode(inode);
+		return amount;
+	}
+
+	/**
+	 * Split a path into its components.
+	 *
+	 * @return the components, or <tt>null</tt> if the path is malformed.
+	 */
+	private static String[] parsePath(String name) {
+		if (name == null)
+			return null;
+		if (name.startsWith("/"))
+			name = name.substring(1);
+
+		String[] path = name.split("/", -1);
+		for (int i = 0; i < path.length; i++) {
+			if (path[i].length() == 0 || path[i].length() > maxNameLength)
+				return null;
+		}
+		return path;
+	}
+
+	/**
+	 * Walk every component of <i>path</i> but the last. Called with nsLock
+	 * held.
+	 *
+	 * @return the directory that should hold the last component, or
+	 *         <tt>null</tt> if there is no such directory.
+	 */
+	private Inode lookupParent(String[] path) {
+		Inode dir = getInode(rootInode);
+		for (int i = 0; i < path.length - 1; i++) {
+			if (dir.type != typeDirectory)
+				return null;
+			int inumber = lookup(dir, path[i]);
+			if (inumber == 0)
+				return null;
+			dir = getInode(inumber);
+		}
+		return dir;
+	}
+
+	/**
+	 * Find a name in a directory, through the name cache. Called with nsLock
+	 * held.
+	 *
+	 * @return the inode number, or 0 if the name is not there.
+	 */
+	private int lookup(Inode dir, String name) {
+		numLookups++;
+		String key = dir.inumber + "/" + name;
+		Integer cached = nameCache.get(key);
+		if (cached != null) {
+			numNameCacheHits++;
+			if (cached == 0)
+				numNegativeHits++;
+			return cached;
+		}
+
+		DirectoryEntry entry = getIndex(dir).entries.get(name);
+		int inumber = (entry == null) ? 0 : entry.inumber;
+		nameCache.put(key, inumber);
+		return inumber;
+	}
+
+	/**
+	 * Return the index of a directory, reading the directory to build it if
+	 * it is not cached. Called with nsLock held.
+	 */
+	private DirectoryIndex getIndex(Inode dir) {
+		DirectoryIndex index = dirIndexes.get(dir.inumber);
+		if (index != null)
+			return index;
+
+		index = new DirectoryIndex();
+		byte[] buf = new byte[dir.size];
+		readData(dir, 0, buf, 0, dir.size);
+
+		int pos = 0;
+		for (; pos + direntSize <= dir.size; pos += direntSize) {
+			int inumber = Lib.bytesToInt(buf, pos);
+			if (inumber != 0)
+				index.entries.put(entryName(buf, pos), new DirectoryEntry(
+						inumber, pos));
+			else
+				index.freeSlots.add(pos);
+		}
+		index.end = pos;
+
+		dirIndexes.put(dir.inumber, index);
+		numIndexBuilds++;
+		return index;
+	}
+
+	private static String entryName(byte[] buf, int pos) {
+		int length = 0;
+		while (length < maxNameLength && buf[pos + 4 + length] != 0)
+			length++;
+		return new String(buf, pos + 4, length);
+	}
+
+	/**
+	 * Add an entry to a directory, reusing the lowest free slot if there is
+	 * one. Called with nsLock held.
+	 */
+	private boolean addEntry(Inode dir, String name, int inumber) {
+		DirectoryIndex index = getIndex(dir);
+		Integer free = index.freeSlots.pollFirst();
+		int pos = (free != null) ? free : index.end;
+
+		byte[] entry = new byte[direntSize];
+		Lib.bytesFromInt(entry, 0, inumber);
+		byte[] nameBytes = name.getBytes();
+		System.arraycopy(nameBytes, 0, entry, 4, nameBytes.length);
+
+		if (writeData(dir, pos, entry, 0, direntSize) != direntSize) {
+			if (free != null)
+				index.freeSlots.add(pos);
+			return false;
+		}
+		if (free == null)
+			index.end += direntSize;
+
+		index.entries.put(name, new DirectoryEntry(inumber, pos));
+		nameCache.put(dir.inumber + "/" + name, inumber);
+		return true;
+	}
+
+	private void removeEntry(Inode dir, String name) {
+		DirectoryIndex index = getIndex(dir);
+		DirectoryEntry entry = index.entries.remove(name);
+		if (entry != null) {
+			writeData(dir, entry.position, new byte[direntSize], 0, direntSize);
+			index.freeSlots.add(entry.position);
+		}
+		// remember that the name is gone
+		nameCache.put(dir.inumber + "/" + name, 0);
+	}
+
+	private boolean isEmptyDirectory(Inode dir) {
+		return dir.type == typeDirectory && getIndex(dir).entries.isEmpty();
+	}
+
+	private void close(Inode inode) {
+		beginOperation();
+		nsLock.acquire();
+		boolean freed = false;
+		openCount--;
+		if (--inode.openCount == 0) {
+			openInodes.remove(inode.inumber);
+			if (inode.removed) {
+				freeInode(inode);
+				freed = true;
+			}
+		}
+		nsLock.release();
+		endOperation(freed);
+	}
+
+	/**
+	 * Start an operation that may write the disk. Called before taking any
+	 * other lock.
+	 */
+	private void beginOperation() {
+		if (journal != null)
+			journal.begin();
+	}
+
+	/**
+	 * Finish an operation, waiting until its writes are committed if
+	 * <i>commit</i> is set.
+	 */
+	private void endOperation(boolean commit) {
+		if (journal != null) {
+			long txid = journal.end();
+			if (commit)
+				journal.waitFor(txid);
+		}
+	}
+
+	private void readSector(int sector, byte[] buf, int offset) {
+		if (journal != null)
+			journal.readSector(sector, buf, offset);
+		else
+			disk.readSector(sector, buf, offset);
+	}
+
+	private void writeSector(int sector, byte[] buf, int offset) {
+		if (journal != null)
+			journal.writeSector(sector, buf, offset);
+		else
+			disk.writeSector(sector, buf, offset);
+	}
+
+	/**
+	 * Print out the name lookup statistics.
+	 */
+	public void print() {
+		nsLock.acquire();
+		System.out.println("Directories: lookups " + numLookups
+				+ ", name cache hits " + numNameCacheHits + " ("
+				+ numNegativeHits + " negative), indexes built "
+				+ numIndexBuilds);
+		nsLock.release();
+	}
+
+	/**
+	 * The in-memory index of a directory: where each name's entry is, and
+	 * which slots are free.
+	 */
+	private class DirectoryIndex {
+		HashMap<String, DirectoryEntry> entries = new HashMap<String, DirectoryEntry>();
+
+		TreeSet<Integer> freeSlots = new TreeSet<Integer>();
+
+		int end; // the offset just past the last slot
+	}
+
+	private class DirectoryEntry {
+		DirectoryEntry(int inumber, int position) {
+			this.inumber = inumber;
+			this.position = position;
+		}
+
+		int inumber;
+
+		int position; // the offset of the entry in the directory
+	}
+
+	/**
+	 * The in-memory copy of an inode. Open files share one copy, kept in
+	 * <tt>openInodes</tt>.
+	 */
+	private class Inode {
+		Inode(int inumber) {
+			this.inumber = inumber;
+		}
+
+		int inumber;
+
+		int type = typeFree;
+
+		int size = 0;
+
+		int[] direct = new int[numDirect];
+
+		int indirect = 0, doubleIndirect = 0;
+
+		boolean dirty = false; // differs from the inode table
+
+		int openCount = 0; // guarded by nsLock
+
+		boolean removed = false; // free once the last handle closes
+
+		Lock lock = new Lock(); // guards size and data of an open file
+	}
+
+	private class DiskOpenFile extends OpenFileWithPosition {
+		DiskOpenFile(String name, Inode inode) {
+			super(DiskFileSystem.this, name);
+			this.inode = inode;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (inode == null || pos < 0 || length < 0)
+				return -1;
+
+			inode.lock.acquire();
+			int amount = readData(inode, pos, buf, offset, length);
+			inode.lock.release();
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (inode == null || pos < 0 || length < 0)
+				return -1;
+
+			// one journal operation per writeChunk sectors
+			int amount = 0;
+			while (true) {
+				int chunk = length - amount;
+				if (journal != null)
+					chunk = Math.min(chunk, writeChunk * sectorSize
+							- (pos + amount) % sectorSize);
+
+				beginOperation();
+				inode.lock.acquire();
+				int written = writeData(inode, pos + amount, buf,
+						offset + amount, chunk);
+				inode.lock.release();
+				amount += written;
+
+				boolean done = (written < chunk || amount == length);
+				endOperation(done && amount > 0);
+				if (done)
+					return amount;
+			}
+		}
+
+		public int length() {
+			return inode == null ? -1 : inode.size;
+		}
+
+		public void close() {
+			if (inode == null)
+				return;
+
+			Inode closing = inode;
+			inode = null;
+			DiskFileSystem.this.close(closing);
+		}
+
+		private Inode inode;
+	}
+
+	/**
+	 * Create a few files and a directory on a fresh disk, write one file
+	 * large enough to need the doubly indirect block, then remount the disk
+	 * and check that everything is still there.
+	 */
+	public static void selfTest() {
+		SynchDisk disk = new SynchDisk("selftest.disk", 64,
+				new CLOOKDiskScheduler());
+		DiskFileSystem fs = new DiskFileSystem(disk, true);
+		int freeAtStart = fs.getNumFreeSectors();
+
+		Lib.assertTrue(fs.createDirectory("dir"));
+		Lib.assertTrue(!fs.createDirectory("dir"));
+		Lib.assertTrue(fs.open("missing/file", true) == null);
+
+		int total = (numDirect + pointersPerSector + 3) * sectorSize + 77;
+		byte[] data = new byte[total];
+		for (int i = 0; i < total; i++)
+			data[i] = (byte) (i * 13);
+
+		OpenFile file = fs.open("dir/big", true);
+		Lib.assertTrue(file.write(data, 0, total) == total);
+		file.close();
+
+		OpenFile small = fs.open("small", true);
+		Lib.assertTrue(small.write(data, 0, 100) == 100);
+		small.close();
+		Lib.assertTrue(fs.getOpenCount() == 0);
+
+		// a new file system on the same disk sees what the first one wrote
+		DiskFileSystem again = new DiskFileSystem(disk, false);
+		file = again.open("/dir/big", false);
+		Lib.assertTrue(file.length() == total);
+		byte[] buf = new byte[total];
+		Lib.assertTrue(file.read(0, buf, 0, total) == total);
+		for (int i = 0; i < total; i++)
+			Lib.assertTrue(buf[i] == data[i], "disk file system returned bad data");
+
+		// removing an open file keeps it readable until it is closed
+		Lib.assertTrue(again.remove("dir/big"));
+		Lib.assertTrue(again.open("dir/big", false) == null);
+		Lib.assertTrue(file.read(total - 10, buf, 0, 10) == 10);
+		file.close();
+
+		Lib.assertTrue(again.remove("small"));
+		Lib.assertTrue(again.remove("dir"));
+		// only the sector the root directory grew into stays allocated
+		Lib.assertTrue(again.getNumFreeSectors() == freeAtStart - 1,
+				"disk file system leaked sectors");
+
+		System.out.print("DiskFileSystem.selfTest: passed; ");
+		disk.print();
+		Machine.stubFileSystem().remove("selftest.disk");
+
+		directoryTest();
+	}
+
+	/**
+	 * Fill a directory with hundreds of files, then check that looking names
+	 * up, present or not, reads no directory sectors, and that the cost of
+	 * creating and removing a file does not grow with the directory.
+	 */
+	private static void directoryTest() {
+		SynchDisk disk = new SynchDisk("selftest.disk", 512,
+				new CLOOKDiskScheduler());
+		DiskFileSystem fs = new DiskFileSystem(disk, true, 0);
+		Lib.assertTrue(fs.createDirectory("big"));
+
+		int numFiles = fs.numInodes - 8;
+		long[] createReads = new long[2];
+		for (int i = 0; i < numFiles; i++) {
+			long reads = disk.numReads;
+			OpenFile file = fs.open("big/f" + i, true);
+			Lib.assertTrue(file != null);
+			file.close();
+			if (i == 10)
+				createReads[0] = disk.numReads - reads;
+			else if (i == numFiles - 1)
+				createReads[1] = disk.numReads - reads;
+		}
+		// at most the pointer sectors of a deeper block are extra
+		Lib.assertTrue(createReads[1] <= createReads[0] + 2,
+				"creating a file got slower as the directory grew");
+
+		// each open reads at most the root, directory and file inodes
+		long reads = disk.numReads;
+		for (int i = 0; i < numFiles; i += 7) {
+			OpenFile file = fs.open("big/f" + i, false);
+			Lib.assertTrue(file != null);
+			file.close();
+			Lib.assertTrue(fs.open("big/missing" + i, false) == null);
+			Lib.assertTrue(fs.open("big/missing" + i, false) == null);
+		}
+		Lib.assertTrue(disk.numReads - reads <= 3 * 3 * (numFiles / 7 + 1));
+		Lib.assertTrue(fs.numNegativeHits >= numFiles / 7);
+
+		for (int i = 0; i < numFiles; i++)
+			Lib.assertTrue(fs.remove("big/f" + i));
+		Lib.assertTrue(fs.remove("big"));
+
+		System.out.println("DiskFileSystem.selfTest: " + numFiles
+				+ " files in one directory; creating the 11th read "
+				+ createReads[0] + " sectors, the last " + createReads[1]);
+		fs.print();
+		Machine.stubFileSystem().remove("selftest.disk");
+	}
+
+	private static final int sectorSize = SynchDisk.sectorSize;
+
+	private static final int magic = 0x4E414348; // "NACH"
+
+	private static final int superblockSector = 0;
+
+	private static final int bitsPerSector = sectorSize * 8;
+
+	private static final int numDirect = 12;
+
+	private static final int inodeSize = 64;
+
+	private static final int inodesPerSector = sectorSize / inodeSize;
+
+	private static final int pointersPerSector = sectorSize / 4;
+
+	private static final int rootInode = 1;
+
+	private static final int typeFree = 0, typeFile = 1, typeDirectory = 2;
+
+	/** The longest file name a directory entry can hold. */
+	public static final int maxNameLength = 28;
+
+	private static final int direntSize = 4 + maxNameLength;
+
+	private static final int defaultNameCacheSize = 4096;
+
+	/** How many directories keep an index in memory. */
+	private static final int maxIndexedDirectories = 64;
+
+	/** The most sectors of data one journal operation writes. */
+	private static final int writeChunk = 8;
+
+	private SynchDisk disk;
+
+	private boolean format, mounted = false;
+
+	private int numSectors, numInodes;
+
+	private int bitmapStart, bitmapSectors, inodeStart, inodeSectors, dataStart;
+
+	private int logStart, logSectors, newLogSectors;
+
+	private Journal journal = null;
+
+	private Lock mountLock;
+
+	private Lock nsLock; // guards directories and their caches, inodeUsed and openInodes
+
+	private Lock bitmapLock; // guards bitmap and nextFreeHint
+
+	private Lock inodeTableLock; // guards the inode table sectors
+
+	private byte[] bitmap;
+
+	private int nextFreeHint = 0; // data sector to start searching at
+
+	private boolean[] inodeUsed;
+
+	private Map<Integer, Inode> openInodes;
+
+	// "directory inumber/name" to inumber, or 0 for a name known not to exist
+	private Map<String, Integer> nameCache;
+
+	private Map<Integer, DirectoryIndex> dirIndexes;
+
+	/** The number of names looked up in a directory. */
+	public long numLookups = 0;
+
+	/** The number of lookups answered by the name cache. */
+	public long numNameCacheHits = 0;
+
+	/** The number of lookups the name cache answered with "not there". */
+	public long numNegativeHits = 0;
+
+	/** The number of times a directory was read to build its index. */
+	public long numIndexBuilds = 0;
+
+	private int openCount = 0;
+}
@@ -0,0 +1,90 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A request waiting in a <tt>SynchDisk</tt>'s queue for a run of consecutive
+ * sectors starting on one track. Requests for adjacent sectors in the same direction
+ * are merged into a single request, and every thread that issued a part of it
+ * waits for the merged request to complete.
+ */
+public class DiskRequest {
+	/**
+	 * Allocate a new request for a run of sectors.
+	 *
+	 * @param sector     the first sector to transfer.
+	 * @param numSectors the number of consecutive sectors to transfer.
+	 * @param isWrite    <tt>true</tt> for a write.
+	 * @param deadline   the time by which a deadline scheduler should serve
+	 *                   it.
+	 */
+	public DiskRequest(int sector, int numSectors, boolean isWrite,
+			long deadline) {
+		this.firstSector = sector;
+		this.numSectors = numSectors;
+		this.isWrite = isWrite;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Return the track this request is on.
+	 */
+	public int getTrack() {
+		return firstSector / SynchDisk.sectorsPerTrack;
+	}
+
+	/**
+	 * Try to absorb <i>other</i> into this request. Succeeds if both go the
+	 * same direction and <i>other</i> starts on the same track, right before
+	 * or right after this request.
+	 *
+	 * @param other a new request.
+	 * @return <tt>true</tt> if <i>other</i> is now part of this request.
+	 */
+	public boolean merge(DiskRequest other) {
+		if (other.isWrite != isWrite || other.getTrack() != getTrack())
+			return false;
+
+		if (other.firstSector == firstSector + numSectors) {
+			numSectors += other.numSectors;
+		}
+		else if (other.firstSector + other.numSectors == firstSector) {
+			firstSector = other.firstSector;
+			numSectors += other.numSectors;
+		}
+		else {
+			return false;
+		}
+
+		// the merged request is as urgent as its most urgent part
+		deadline = Math.min(deadline, other.deadline);
+		return true;
+	}
+
+	/** The first sector to transfer. */
+	public int firstSector;
+
+	/**
+	 * The number of consecutive sectors to transfer. A run may continue onto
+	 * the following tracks.
+	 */
+	public int numSectors;
+
+	/** <tt>true</tt> if this request writes the disk. */
+	public final boolean isWrite;
+
+	/** When this request should be served by. */
+	public long deadline;
+
+	/** Set once the disk has finished this request. */
+	public boolean completed = false;
+
+	/** When the disk finished this request. */
+	public long completionTime;
+
+	/** The threads waiting for this request to complete. */
+	public LinkedList<KThread> waiters = new LinkedList<KThread>();
+}
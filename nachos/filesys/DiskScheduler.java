@@ -0,0 +1,119 @@
+package nachos.filesys;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import nachos.machine.*;
+
+/**
+ * Orders the requests waiting for a <tt>SynchDisk</tt>. Subclasses implement
+ * a policy by choosing which of the waiting requests the disk serves next;
+ * this class keeps the queue and merges requests for adjacent sectors.
+ *
+ * <p>
+ * A disk is configured with a scheduler through
+ * <tt>SynchDisk.scheduler</tt>, which names one of the subclasses.
+ */
+public abstract class DiskScheduler {
+	/**
+	 * Allocate a new disk scheduler.
+	 */
+	public DiskScheduler() {
+	}
+
+	/**
+	 * Add a request to the queue, merging it into a queued request for
+	 * adjacent sectors if possible.
+	 *
+	 * @param request a new request.
+	 * @return the queued request that now carries <i>request</i>.
+	 */
+	public DiskRequest add(DiskRequest request) {
+		for (DiskRequest queued : queue) {
+			if (queued.merge(request)) {
+				numMerged++;
+				return queued;
+			}
+		}
+		queue.add(request);
+		return request;
+	}
+
+	/**
+	 * Return <tt>true</tt> if no request is waiting.
+	 */
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Remove and return the request the disk should serve next. There must be
+	 * at least one waiting.
+	 *
+	 * @param headTrack the track the head is on.
+	 * @param time      the time the request will start.
+	 * @return the next request.
+	 */
+	public DiskRequest next(int headTrack, long time) {
+		Lib.assertTrue(!queue.isEmpty());
+
+		DiskRequest request = choose(queue, headTrack, time);
+		queue.remove(request);
+		return request;
+	}
+
+	/**
+	 * Choose one of <i>candidates</i>, the waiting requests in the order
+	 * they were queued. Must not modify the list.
+	 *
+	 * @param candidates the requests that may be served.
+	 * @param headTrack  the track the head is on.
+	 * @param time       the time the request will start.
+	 * @return the chosen request.
+	 */
+	protected abstract DiskRequest choose(List<DiskRequest> candidates,
+			int headTrack, long time);
+
+	/**
+	 * Return the candidate nearest the head in the given direction: on tracks
+	 * at or above <i>headTrack</i> if <i>up</i>, else at or below it. Ties go
+	 * to the lowest sector, then to the oldest request.
+	 *
+	 * @return the candidate, or <tt>null</tt> if there is none that way.
+	 */
+	protected static DiskRequest nearest(List<DiskRequest> candidates,
+			int headTrack, boolean up) {
+		DiskRequest best = null;
+		for (DiskRequest request : candidates) {
+			int track = request.getTrack();
+			if (up ? track < headTrack : track > headTrack)
+				continue;
+			if (best == null
+					|| Math.abs(track - headTrack) < Math.abs(best.getTrack()
+							- headTrack)
+					|| (track == best.getTrack() && request.firstSector < best.firstSector))
+				best = request;
+		}
+		return best;
+	}
+
+	/**
+	 * Return the candidate on the lowest track.
+	 */
+	protected static DiskRequest lowest(List<DiskRequest> candidates) {
+		Iterator<DiskRequest> i = candidates.iterator();
+		DiskRequest best = i.next();
+		while (i.hasNext()) {
+			DiskRequest request = i.next();
+			if (request.firstSector < best.firstSector)
+				best = request;
+		}
+		return best;
+	}
+
+	/** The number of requests absorbed into a queued request. */
+	public long numMerged = 0;
+
+	private LinkedList<DiskRequest> queue = new LinkedList<DiskRequest>();
+}
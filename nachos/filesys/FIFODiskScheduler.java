@@ -0,0 +1,19 @@
+package nachos.filesys;
+
+import java.util.List;
+
+/**
+ * A disk scheduler that serves requests in the order they arrive.
+ */
+public class FIFODiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new FIFO disk scheduler.
+	 */
+	public FIFODiskScheduler() {
+	}
+
+	protected DiskRequest choose(List<DiskRequest> candidates, int headTrack,
+			long time) {
+		return candidates.get(0);
+	}
+}
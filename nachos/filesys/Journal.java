@@ -0,0 +1,535 @@
+package nachos.filesys;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A write-ahead log in a reserved area of a <tt>SynchDisk</tt>, through which
+ * a <tt>DiskFileSystem</tt> writes all of its sectors.
+ *
+ * <p>
+ * File system operations bracket their writes with <tt>begin()</tt> and
+ * <tt>end()</tt>. Writes go to the running transaction in memory, where
+ * repeated writes of the same sector (the free-sector bitmap, an inode table
+ * sector, the last block of a growing file) cost nothing. A commit thread
+ * writes the whole transaction to the log as one record, in a single disk
+ * request: a descriptor sector listing where each sector belongs, followed by
+ * the sectors themselves. Operations that finish while a commit is on its way
+ * to the disk join the next transaction, so the more processes are writing,
+ * the more operations share each commit (group commit). An operation that
+ * needs its writes to be durable waits with <tt>waitFor()</tt>.
+ *
+ * <p>
+ * Committed sectors stay in memory until the log fills up. Then the commit
+ * thread cleans the log: it writes every logged sector to its home location,
+ * each once however often it was logged, sorted and in runs of consecutive
+ * sectors, and starts the log over. Reads see the newest copy of a sector,
+ * wherever it is.
+ *
+ * <p>
+ * On mount, <tt>recover()</tt> replays the records written since the last
+ * cleaning. A record only counts if its sequence number follows the previous
+ * one and its checksum matches, so a record the machine did not finish
+ * writing is ignored, along with every operation in it.
+ */
+public class Journal {
+	/**
+	 * Allocate a new journal. <tt>recover()</tt> must be called before it is
+	 * used.
+	 *
+	 * @param disk         the disk holding the log and the file system.
+	 * @param logStart     the first sector of the log area.
+	 * @param logSectors   the number of sectors in the log area.
+	 * @param maxOpSectors the most distinct sectors one operation may write.
+	 */
+	public Journal(SynchDisk disk, int logStart, int logSectors,
+			int maxOpSectors) {
+		Lib.assertTrue(logSectors >= minLogSectors(maxOpSectors));
+
+		this.disk = disk;
+		this.logStart = logStart;
+		this.logEnd = logStart + logSectors;
+		this.maxOpSectors = maxOpSectors;
+		capacity = Math.min(maxRecordSectors, (logSectors - 1) / 2 - 1);
+
+		lock = new Lock();
+		commitNeeded = new Condition2(lock);
+		opAllowed = new Condition2(lock);
+		committed = new Condition2(lock);
+
+		running = new HashMap<Integer, byte[]>();
+		pending = new HashMap<Integer, byte[]>();
+	}
+
+	/**
+	 * Return the smallest log that can hold a transaction of operations
+	 * writing up to <i>maxOpSectors</i> sectors each.
+	 */
+	public static int minLogSectors(int maxOpSectors) {
+		return 2 * (maxOpSectors + 1) + 1;
+	}
+
+	/**
+	 * Set up an empty log on a disk that is being formatted. Records left in
+	 * the area by an earlier file system are never replayed.
+	 *
+	 * @param disk       the disk.
+	 * @param logStart   the first sector of the log area.
+	 * @param logSectors the number of sectors in the log area.
+	 */
+	public static void format(SynchDisk disk, int logStart, int logSectors) {
+		byte[] header = new byte[sectorSize];
+		disk.readSector(logStart, header, 0);
+
+		// start past any sequence number the old log can hold
+		int seq = 1;
+		if (Lib.bytesToInt(header, 0) == headerMagic)
+			seq = Lib.bytesToInt(header, 4) + logSectors;
+
+		writeHeader(disk, logStart, seq);
+	}
+
+	/**
+	 * Replay the records committed since the log was last cleaned, then start
+	 * the commit thread.
+	 */
+	public void recover() {
+		byte[] header = new byte[sectorSize];
+		disk.readSector(logStart, header, 0);
+		int seq = 1;
+		Map<Integer, byte[]> replay = new HashMap<Integer, byte[]>();
+
+		if (Lib.bytesToInt(header, 0) == headerMagic) {
+			seq = Lib.bytesToInt(header, 4);
+			byte[] descriptor = new byte[sectorSize];
+			int pos = logStart + 1;
+			while (pos + 1 < logEnd) {
+				disk.readSector(pos, descriptor, 0);
+				int count = Lib.bytesToInt(descriptor, 8);
+				if (Lib.bytesToInt(descriptor, 0) != recordMagic
+						|| Lib.bytesToInt(descriptor, 4) != seq || count <= 0
+						|| count > maxRecordSectors || pos + 1 + count > logEnd)
+					break;
+
+				byte[] data = new byte[count * sectorSize];
+				disk.readSectors(pos + 1, count, data, 0);
+				if (checksum(data) != Lib.bytesToInt(descriptor, 12))
+					break;
+
+				for (int i = 0; i < count; i++) {
+					int sector = Lib.bytesToInt(descriptor, 16 + i * 4);
+					replay.put(sector, Arrays.copyOfRange(data, i * sectorSize,
+							(i + 1) * sectorSize));
+				}
+				pos += 1 + count;
+				seq++;
+				numRecovered++;
+			}
+		}
+
+		writeHome(replay);
+		nextSeq = seq;
+		head = logStart + 1;
+		writeHeader(disk, logStart, nextSeq);
+
+		KThread committer = new KThread(new Runnable() {
+			public void run() {
+				commitTransactions();
+			}
+		});
+		committer.setName("journal committer").fork();
+	}
+
+	/**
+	 * Start an operation, waiting if the running transaction has no room for
+	 * it or is being closed. Must be called before taking any lock the
+	 * operation uses.
+	 */
+	public void begin() {
+		lock.acquire();
+		while (closing
+				|| running.size() + (activeOps + 1) * maxOpSectors > capacity) {
+			if (!closing) {
+				forceCommit = true;
+				commitNeeded.wake();
+			}
+			opAllowed.sleep();
+		}
+		activeOps++;
+		opsInRunning++;
+		lock.release();
+	}
+
+	/**
+	 * Finish an operation started with <tt>begin()</tt>.
+	 *
+	 * @return the transaction holding the operation's writes, for
+	 *         <tt>waitFor()</tt>.
+	 */
+	public long end() {
+		lock.acquire();
+		long txid = runningTxid;
+		if (--activeOps == 0)
+			commitNeeded.wake();
+		opAllowed.wakeAll();
+		lock.release();
+		return txid;
+	}
+
+	/**
+	 * Wait until a transaction is in the log, committing it if nobody has
+	 * asked for that yet.
+	 *
+	 * @param txid the transaction, as returned by <tt>end()</tt>.
+	 */
+	public void waitFor(long txid) {
+		lock.acquire();
+		if (txid == runningTxid && running.isEmpty())
+			txid--; // nothing to commit but what is already on its way
+
+		if (committedTxid < txid) {
+			if (txid == runningTxid) {
+				runningWaiters++;
+				commitNeeded.wake();
+			}
+			while (committedTxid < txid)
+				committed.sleep();
+		}
+		lock.release();
+	}
+
+	/**
+	 * Commit everything written so far and wait until it is in the log.
+	 */
+	public void commit() {
+		lock.acquire();
+		long txid = runningTxid;
+		lock.release();
+		waitFor(txid);
+	}
+
+	/**
+	 * Read the newest copy of a sector.
+	 *
+	 * @param sector the sector to read.
+	 * @param buf    the buffer to hold the sector.
+	 * @param offset the offset in <i>buf</i> to store the first byte.
+	 */
+	public void readSector(int sector, byte[] buf, int offset) {
+		lock.acquire();
+		byte[] data = running.get(sector);
+		if (data == null && committing != null)
+			data = committing.get(sector);
+		if (data == null)
+			data = pending.get(sector);
+		if (data != null) {
+			System.arraycopy(data, 0, buf, offset, sectorSize);
+			numReadHits++;
+		}
+		lock.release();
+
+		if (data == null)
+			disk.readSector(sector, buf, offset);
+	}
+
+	/**
+	 * Write a sector as part of the running transaction. Must be called
+	 * between <tt>begin()</tt> and <tt>end()</tt>.
+	 *
+	 * @param sector the sector to write; not in the log area.
+	 * @param buf    the buffer holding the sector's new contents.
+	 * @param offset the offset in <i>buf</i> of the first byte.
+	 */
+	public void writeSector(int sector, byte[] buf, int offset) {
+		Lib.assertTrue(sector < logStart || sector >= logEnd);
+
+		lock.acquire();
+		Lib.assertTrue(activeOps > 0, "journal write outside an operation");
+		numWrites++;
+		byte[] data = running.get(sector);
+		if (data == null) {
+			data = new byte[sectorSize];
+			running.put(sector, data);
+			Lib.assertTrue(running.size() <= capacity, "transaction overflow");
+		}
+		System.arraycopy(buf, offset, data, 0, sectorSize);
+		lock.release();
+	}
+
+	/**
+	 * Print out the journal statistics.
+	 */
+	public void print() {
+		lock.acquire();
+		System.out.println("Journal: writes " + numWrites + ", commits "
+				+ numCommits + " of " + numOpsCommitted + " operations (at most "
+				+ maxOpsPerCommit + "), logged " + numSectorsLogged
+				+ " sectors, cleanings " + numCleanings + " wrote "
+				+ numSectorsCleaned + " sectors home, recovered "
+				+ numRecovered + " records");
+		lock.release();
+	}
+
+	/**
+	 * The body of the commit thread.
+	 */
+	private void commitTransactions() {
+		lock.acquire();
+		while (true) {
+			while (running.isEmpty() || (runningWaiters == 0 && !forceCommit))
+				commitNeeded.sleep();
+
+			// hold off new operations until the ones in progress finish
+			closing = true;
+			while (activeOps > 0)
+				commitNeeded.sleep();
+
+			Map<Integer, byte[]> transaction = running;
+			long txid = runningTxid;
+			int numOps = opsInRunning;
+			committing = transaction;
+			running = new HashMap<Integer, byte[]>();
+			runningTxid++;
+			opsInRunning = 0;
+			runningWaiters = 0;
+			forceCommit = false;
+			closing = false;
+			opAllowed.wakeAll();
+			lock.release();
+
+			writeRecord(transaction);
+
+			lock.acquire();
+			pending.putAll(transaction);
+			committing = null;
+			committedTxid = txid;
+			numCommits++;
+			numOpsCommitted += numOps;
+			maxOpsPerCommit = Math.max(maxOpsPerCommit, numOps);
+			committed.wakeAll();
+		}
+	}
+
+	/**
+	 * Append a transaction to the log, cleaning the log first if it does not
+	 * fit. Called by the commit thread without the lock.
+	 */
+	private void writeRecord(Map<Integer, byte[]> transaction) {
+		int count = transaction.size();
+		if (head + 1 + count > logEnd)
+			clean();
+
+		byte[] record = new byte[(1 + count) * sectorSize];
+		Lib.bytesFromInt(record, 0, recordMagic);
+		Lib.bytesFromInt(record, 4, nextSeq);
+		Lib.bytesFromInt(record, 8, count);
+		int i = 0;
+		for (Map.Entry<Integer, byte[]> entry : transaction.entrySet()) {
+			Lib.bytesFromInt(record, 16 + i * 4, entry.getKey());
+			System.arraycopy(entry.getValue(), 0, record, (1 + i) * sectorSize,
+					sectorSize);
+			i++;
+		}
+		Lib.bytesFromInt(record, 12, checksum(Arrays.copyOfRange(record,
+				sectorSize, record.length)));
+
+		disk.writeSectors(head, 1 + count, record, 0);
+		head += 1 + count;
+		nextSeq++;
+		numSectorsLogged += count;
+	}
+
+	/**
+	 * Write every committed sector home and empty the log. Only the commit
+	 * thread changes <tt>pending</tt>, so it can be read here without the
+	 * lock.
+	 */
+	private void clean() {
+		writeHome(pending);
+		numSectorsCleaned += pending.size();
+		numCleanings++;
+
+		// records with a lower sequence number are dead from here on
+		writeHeader(disk, logStart, nextSeq);
+		head = logStart + 1;
+
+		lock.acquire();
+		pending.clear();
+		lock.release();
+	}
+
+	/**
+	 * Write sectors to their home locations in order, one request per run of
+	 * consecutive sectors.
+	 */
+	private void writeHome(Map<Integer, byte[]> sectors) {
+		Integer[] order = sectors.keySet().toArray(new Integer[0]);
+		Arrays.sort(order);
+
+		for (int i = 0; i < order.length; ) {
+			int end = i + 1;
+			while (end < order.length && order[end] == order[end - 1] + 1)
+				end++;
+
+			byte[] run = new byte[(end - i) * sectorSize];
+			for (int j = i; j < end; j++)
+				System.arraycopy(sectors.get(order[j]), 0, run, (j - i)
+						* sectorSize, sectorSize);
+			disk.writeSectors(order[i], end - i, run, 0);
+			i = end;
+		}
+	}
+
+	private static void writeHeader(SynchDisk disk, int logStart, int seq) {
+		byte[] header = new byte[sectorSize];
+		Lib.bytesFromInt(header, 0, headerMagic);
+		Lib.bytesFromInt(header, 4, seq);
+		disk.writeSector(logStart, header, 0);
+	}
+
+	private static int checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Have several threads make small writes at random places in their own
+	 * files, first on a file system without a journal and then on one with,
+	 * and compare how long the disk was busy. Then reopen the journaled disk
+	 * without cleaning its log and check that recovery brings every write
+	 * back.
+	 */
+	public static void selfTest() {
+		long[] busy = new long[2];
+		byte[][] expected = null;
+
+		for (int pass = 0; pass < 2; pass++) {
+			boolean journaled = (pass == 1);
+			SynchDisk disk = new SynchDisk("journal.disk", 64,
+					new CLOOKDiskScheduler());
+			final DiskFileSystem fs = new DiskFileSystem(disk, true,
+					journaled ? -1 : 0);
+			Lib.assertTrue((fs.getJournal() != null) == journaled);
+
+			final int numThreads = 6, fileSize = 8 * sectorSize;
+			final byte[][] contents = new byte[numThreads][fileSize];
+			for (int t = 0; t < numThreads; t++) {
+				OpenFile file = fs.open("file" + t, true);
+				Lib.assertTrue(file.write(contents[t], 0, fileSize) == fileSize);
+				file.close();
+			}
+
+			long before = disk.totalBusyTime;
+			KThread[] threads = new KThread[numThreads];
+			for (int t = 0; t < numThreads; t++) {
+				final int id = t;
+				threads[t] = new KThread(new Runnable() {
+					public void run() {
+						java.util.Random random = new java.util.Random(id);
+						OpenFile file = fs.open("file" + id, false);
+						byte[] data = new byte[40];
+						for (int n = 0; n < 25; n++) {
+							int pos = random.nextInt(fileSize - data.length);
+							random.nextBytes(data);
+							Lib.assertTrue(file.write(pos, data, 0, data.length) == data.length);
+							System.arraycopy(data, 0, contents[id], pos,
+									data.length);
+						}
+						file.close();
+					}
+				});
+				threads[t].setName("journal test " + t).fork();
+			}
+			for (int t = 0; t < numThreads; t++)
+				threads[t].join();
+			busy[pass] = disk.totalBusyTime - before;
+
+			if (journaled) {
+				fs.getJournal().print();
+				expected = contents;
+
+				// mount the disk again as if the machine had crashed here
+				DiskFileSystem again = new DiskFileSystem(disk, false, -1);
+				for (int t = 0; t < numThreads; t++) {
+					OpenFile file = again.open("file" + t, false);
+					byte[] buf = new byte[fileSize];
+					Lib.assertTrue(file.read(0, buf, 0, fileSize) == fileSize);
+					Lib.assertTrue(Arrays.equals(buf, expected[t]),
+							"journal recovery lost a write");
+					file.close();
+				}
+				Lib.assertTrue(again.getJournal().numRecovered > 0);
+			}
+		}
+
+		Machine.stubFileSystem().remove("journal.disk");
+		System.out.println("Journal.selfTest: passed; random writes kept the disk busy "
+				+ busy[0] + " ticks without the journal, " + busy[1] + " with it");
+	}
+
+	private static final int sectorSize = SynchDisk.sectorSize;
+
+	private static final int headerMagic = 0x4A524E4C; // "JRNL"
+
+	private static final int recordMagic = 0x5245434F; // "RECO"
+
+	/** The most sectors one record's descriptor can list. */
+	private static final int maxRecordSectors = (sectorSize - 16) / 4;
+
+	/** The number of operations that have written to the journal. */
+	public long numOpsCommitted = 0;
+
+	/** The number of sector writes made through the journal. */
+	public long numWrites = 0;
+
+	/** The number of sector reads served from memory. */
+	public long numReadHits = 0;
+
+	/** The number of records written to the log. */
+	public long numCommits = 0;
+
+	/** The most operations that went into one record. */
+	public int maxOpsPerCommit = 0;
+
+	/** The number of sectors written to the log, not counting descriptors. */
+	public long numSectorsLogged = 0;
+
+	/** The number of times the log was cleaned. */
+	public long numCleanings = 0;
+
+	/** The number of sectors written home by cleaning the log. */
+	public long numSectorsCleaned = 0;
+
+	/** The number of records replayed by <tt>recover()</tt>. */
+	public long numRecovered = 0;
+
+	private SynchDisk disk;
+
+	private int logStart, logEnd, maxOpSectors, capacity;
+
+	private Lock lock; // guards everything below but head and nextSeq
+
+	private Condition2 commitNeeded, opAllowed, committed;
+
+	private Map<Integer, byte[]> running; // the transaction being built
+
+	private Map<Integer, byte[]> committing = null; // on its way to the log
+
+	private Map<Integer, byte[]> pending; // in the log, not yet home
+
+	private long runningTxid = 1, committedTxid = 0;
+
+	private int activeOps = 0, opsInRunning = 0, runningWaiters = 0;
+
+	private boolean closing = false, forceCommit = false;
+
+	private int head; // next free log sector; commit thread only
+
+	private int nextSeq; // sequence number of the next record
+}
@@ -0,0 +1,284 @@
+package nachos.filesys;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A file system that keeps every file in kernel memory, for fast scratch space
+ * such as the swap file. Nothing survives a halt, and there is no simulated
+ * delay.
+ *
+ * <p>
+ * File contents are stored in fixed-size chunks allocated as the file grows,
+ * so growing a file never copies what is already there, and never-written
+ * parts of a file (holes) take no memory. Any number of handles can be open on
+ * the same file; a file removed while open stays readable through its open
+ * handles until they are closed.
+ *
+ * <p>
+ * To use it, set <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.RamFileSystem</tt>. Files named in
+ * <tt>RamFileSystem.preload</tt> (a comma-separated list without spaces) are
+ * copied in from the stub file system when the file system is first used,
+ * so that for example the test programs can be run from memory. The kernel
+ * cannot list host directories, which is why the files are named explicitly.
+ */
+public class RamFileSystem implements FileSystem {
+	/**
+	 * Allocate a new, empty RAM file system.
+	 */
+	public RamFileSystem() {
+		lock = new Lock();
+		preloadLock = new Lock();
+		files = new HashMap<String, RamFile>();
+		preload = Config.getString("RamFileSystem.preload", "");
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		loadPreloaded();
+
+		lock.acquire();
+		RamFile file = files.get(name);
+		if (file == null && truncate) {
+			file = new RamFile();
+			files.put(name, file);
+		}
+		if (file != null)
+			openCount++;
+		lock.release();
+
+		if (file == null)
+			return null;
+
+		if (truncate) {
+			file.lock.acquire();
+			file.chunks.clear();
+			file.length = 0;
+			file.lock.release();
+		}
+		return new RamOpenFile(name, file);
+	}
+
+	public boolean remove(String name) {
+		loadPreloaded();
+
+		// open handles keep their own reference to the file's contents
+		lock.acquire();
+		boolean removed = files.remove(name) != null;
+		lock.release();
+		return removed;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Return the number of bytes of memory holding file contents.
+	 */
+	public long getBytesUsed() {
+		lock.acquire();
+		long used = 0;
+		for (RamFile file : files.values()) {
+			for (byte[] chunk : file.chunks) {
+				if (chunk != null)
+					used += chunkSize;
+			}
+		}
+		lock.release();
+		return used;
+	}
+
+	private void loadPreloaded() {
+		if (preload == null)
+			return;
+
+		// later callers wait here until the files are in
+		preloadLock.acquire();
+		String names = preload;
+		if (names != null)
+			load(names);
+		preload = null;
+		preloadLock.release();
+	}
+
+	private void load(String names) {
+		String[] list = names.split(",");
+		for (int i = 0; i < list.length; i++) {
+			String name = list[i].trim();
+			if (name.length() == 0)
+				continue;
+
+			OpenFile from = Machine.stubFileSystem().open(name, false);
+			if (from == null) {
+				System.out.println("RamFileSystem: cannot preload " + name);
+				continue;
+			}
+
+			byte[] contents = new byte[from.length()];
+			int amount = from.read(0, contents, 0, contents.length);
+			from.close();
+
+			RamFile file = new RamFile();
+			if (amount > 0)
+				file.write(0, contents, 0, amount);
+
+			lock.acquire();
+			files.put(name, file);
+			lock.release();
+		}
+	}
+
+	/**
+	 * The contents of one file, shared by every handle open on it.
+	 */
+	private class RamFile {
+		int read(int pos, byte[] buf, int offset, int length) {
+			lock.acquire();
+			if (pos >= this.length)
+				length = 0;
+			else
+				length = Math.min(length, this.length - pos);
+
+			int amount = 0;
+			while (amount < length) {
+				int filePos = pos + amount;
+				int index = filePos / chunkSize;
+				int chunkOffset = filePos % chunkSize;
+				int n = Math.min(length - amount, chunkSize - chunkOffset);
+
+				byte[] chunk = index < chunks.size() ? chunks.get(index) : null;
+				if (chunk == null) {
+					for (int i = 0; i < n; i++)
+						buf[offset + amount + i] = 0;
+				}
+				else {
+					System.arraycopy(chunk, chunkOffset, buf, offset + amount, n);
+				}
+				amount += n;
+			}
+			lock.release();
+			return amount;
+		}
+
+		int write(int pos, byte[] buf, int offset, int length) {
+			lock.acquire();
+			int amount = 0;
+			while (amount < length) {
+				int filePos = pos + amount;
+				int index = filePos / chunkSize;
+				int chunkOffset = filePos % chunkSize;
+				int n = Math.min(length - amount, chunkSize - chunkOffset);
+
+				while (chunks.size() <= index)
+					chunks.add(null);
+				byte[] chunk = chunks.get(index);
+				if (chunk == null) {
+					chunk = new byte[chunkSize];
+					chunks.set(index, chunk);
+				}
+				System.arraycopy(buf, offset + amount, chunk, chunkOffset, n);
+				amount += n;
+			}
+			this.length = Math.max(this.length, pos + amount);
+			lock.release();
+			return amount;
+		}
+
+		ArrayList<byte[]> chunks = new ArrayList<byte[]>(); // null for holes
+
+		int length = 0;
+
+		Lock lock = new Lock();
+	}
+
+	private class RamOpenFile extends OpenFileWithPosition {
+		RamOpenFile(String name, RamFile file) {
+			super(RamFileSystem.this, name);
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0 || length < 0)
+				return -1;
+			return file.read(pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0 || length < 0)
+				return -1;
+			return file.write(pos, buf, offset, length);
+		}
+
+		public int length() {
+			return file == null ? -1 : file.length;
+		}
+
+		public void close() {
+			if (file == null)
+				return;
+
+			file = null;
+			lock.acquire();
+			openCount--;
+			lock.release();
+		}
+
+		private RamFile file;
+	}
+
+	/**
+	 * Write through one handle and read through another, leave a hole, and
+	 * check that a removed file stays readable while it is open.
+	 */
+	public static void selfTest() {
+		RamFileSystem fs = new RamFileSystem();
+		Lib.assertTrue(fs.open("tmp", false) == null);
+		long preloaded = fs.getBytesUsed();
+
+		OpenFile a = fs.open("tmp", true);
+		OpenFile b = fs.open("tmp", false);
+		byte[] data = new byte[3 * chunkSize + 10];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 11);
+
+		Lib.assertTrue(a.write(data, 0, data.length) == data.length);
+		byte[] buf = new byte[data.length];
+		Lib.assertTrue(b.read(buf, 0, buf.length) == buf.length);
+		for (int i = 0; i < data.length; i++)
+			Lib.assertTrue(buf[i] == data[i], "RAM file system returned bad data");
+
+		// a write far past the end leaves a hole that reads as zeros
+		int far = 10 * chunkSize;
+		Lib.assertTrue(a.write(far, data, 0, 1) == 1);
+		Lib.assertTrue(b.length() == far + 1);
+		Lib.assertTrue(b.read(far - 5, buf, 0, 10) == 6);
+		Lib.assertTrue(buf[0] == 0 && buf[5] == data[0]);
+		Lib.assertTrue(fs.getBytesUsed() == preloaded + 5 * chunkSize);
+
+		Lib.assertTrue(fs.remove("tmp"));
+		Lib.assertTrue(fs.open("tmp", false) == null);
+		Lib.assertTrue(b.read(0, buf, 0, 10) == 10 && buf[3] == data[3]);
+		a.close();
+		b.close();
+		Lib.assertTrue(fs.getOpenCount() == 0);
+
+		System.out.println("RamFileSystem.selfTest: passed");
+	}
+
+	private static final int chunkSize = 4096;
+
+	private Lock lock; // guards files and openCount
+
+	private Map<String, RamFile> files;
+
+	private Lock preloadLock;
+
+	private String preload; // null once loaded
+
+	private int openCount = 0;
+}
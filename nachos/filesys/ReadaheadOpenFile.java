@@ -0,0 +1,235 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * An <tt>OpenFile</tt> that notices when it is being read sequentially and
+ * reads ahead of the caller.
+ *
+ * <p>
+ * Programs like <tt>cat</tt> and <tt>cp</tt> read a file front to back in
+ * small pieces, and every piece would otherwise be a separate (and, on the
+ * stub file system, separately delayed) read of the underlying file. While
+ * reads keep starting where the previous one ended, a miss fetches a whole
+ * window into a prefetch buffer instead, and the window doubles on every
+ * miss up to <tt>ReadaheadOpenFile.maxWindow</tt> bytes. A read anywhere else
+ * goes straight to the file and shrinks the window back to nothing, so random
+ * access costs no more than it did before.
+ *
+ * <p>
+ * Writes through this handle go straight to the file and update any buffered
+ * copy. Whoever lets other handles write the same file must call
+ * <tt>invalidate()</tt> after they do.
+ */
+public class ReadaheadOpenFile extends OpenFileWithPosition {
+	/**
+	 * Wrap an open file.
+	 *
+	 * @param file the file to read and write.
+	 */
+	public ReadaheadOpenFile(OpenFile file) {
+		super(file.getFileSystem(), file.getName());
+		this.file = file;
+		lock = new Lock();
+		maxWindow = Math.max(minWindow,
+				Config.getInteger("ReadaheadOpenFile.maxWindow", defaultMaxWindow));
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+		if (file == null || pos < 0 || length < 0)
+			return -1;
+
+		lock.acquire();
+		numReads++;
+		boolean sequential = (pos == nextPos);
+
+		// whatever the buffer already holds
+		int amount = 0;
+		if (pos >= bufferStart && pos < bufferStart + bufferLength) {
+			amount = Math.min(length, bufferStart + bufferLength - pos);
+			System.arraycopy(buffer, pos - bufferStart, buf, offset, amount);
+		}
+
+		if (amount == length && length > 0) {
+			numHits++;
+		}
+		else if (sequential) {
+			// fetch the next window and take the rest from it
+			window = Math.min(maxWindow, window == 0 ? Math.max(minWindow,
+					2 * length) : 2 * window);
+			int size = Math.max(window, length - amount);
+			if (buffer == null || buffer.length < size)
+				buffer = new byte[Math.max(size, maxWindow)];
+
+			int filled = file.read(pos + amount, buffer, 0, size);
+			numReadaheads++;
+			if (filled < 0) {
+				bufferLength = 0;
+				lock.release();
+				return amount > 0 ? amount : -1;
+			}
+			bytesPrefetched += filled;
+			bufferStart = pos + amount;
+			bufferLength = filled;
+
+			int n = Math.min(length - amount, filled);
+			System.arraycopy(buffer, 0, buf, offset + amount, n);
+			amount += n;
+		}
+		else {
+			numRandomReads++;
+			window = 0;
+			int n = file.read(pos + amount, buf, offset + amount, length - amount);
+			if (n < 0) {
+				lock.release();
+				return amount > 0 ? amount : -1;
+			}
+			amount += n;
+		}
+
+		nextPos = pos + amount;
+		lock.release();
+		return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+		if (file == null || pos < 0 || length < 0)
+			return -1;
+
+		lock.acquire();
+		int amount = file.write(pos, buf, offset, length);
+		if (amount > 0) {
+			// copy the bytes into whatever part of the window they overlap
+			int start = Math.max(pos, bufferStart);
+			int end = Math.min(pos + amount, bufferStart + bufferLength);
+			if (start < end)
+				System.arraycopy(buf, offset + start - pos, buffer, start
+						- bufferStart, end - start);
+		}
+		lock.release();
+		return amount;
+	}
+
+	public int length() {
+		return file == null ? -1 : file.length();
+	}
+
+	/**
+	 * Drop the prefetch buffer, because the file may have been changed
+	 * through another handle.
+	 */
+	public void invalidate() {
+		lock.acquire();
+		bufferLength = 0;
+		lock.release();
+	}
+
+	public void close() {
+		if (file == null)
+			return;
+
+		file.close();
+		file = null;
+		buffer = null;
+	}
+
+	/**
+	 * Print the readahead statistics.
+	 */
+	public static void print() {
+		System.out.println("Readahead: reads " + numReads + ", hits " + numHits
+				+ ", readaheads " + numReadaheads + " (" + bytesPrefetched
+				+ " bytes), random reads " + numRandomReads);
+	}
+
+	/**
+	 * Read a file sequentially in small pieces and check that most reads are
+	 * served from the prefetch buffer, then read it at random and check that
+	 * nothing is prefetched.
+	 */
+	public static void selfTest() {
+		OpenFile raw = Machine.stubFileSystem().open("readahead.tmp", true);
+		if (raw == null) {
+			System.out.println("ReadaheadOpenFile.selfTest: skipped, no stub file system");
+			return;
+		}
+
+		byte[] data = new byte[20000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 7);
+		Lib.assertTrue(raw.write(0, data, 0, data.length) == data.length);
+
+		ReadaheadOpenFile file = new ReadaheadOpenFile(raw);
+		long hits = numHits, readaheads = numReadaheads, random = numRandomReads;
+
+		byte[] buf = new byte[100];
+		for (int pos = 0; pos < data.length; pos += buf.length) {
+			Lib.assertTrue(file.read(buf, 0, buf.length) == buf.length);
+			for (int j = 0; j < buf.length; j++)
+				Lib.assertTrue(buf[j] == data[pos + j], "readahead returned bad data");
+		}
+		Lib.assertTrue(file.read(buf, 0, buf.length) == 0);
+		long sequentialReadaheads = numReadaheads - readaheads;
+		Lib.assertTrue(sequentialReadaheads < 10, "sequential reads were not prefetched");
+		Lib.assertTrue(numHits - hits >= 190);
+
+		// a write through the handle shows up in the buffer
+		file.seek(0);
+		Lib.assertTrue(file.read(buf, 0, 10) == 10);
+		Lib.assertTrue(file.read(buf, 0, 10) == 10);
+		buf[0] = 42;
+		Lib.assertTrue(file.write(15, buf, 0, 1) == 1);
+		Lib.assertTrue(file.read(15, buf, 0, 10) == 10 && buf[0] == 42);
+
+		// random reads go straight to the file
+		readaheads = numReadaheads;
+		java.util.Random rng = new java.util.Random(0);
+		for (int i = 0; i < 20; i++) {
+			int pos = 1000 + rng.nextInt(data.length - 1100);
+			Lib.assertTrue(file.read(pos, buf, 0, 100) == 100);
+			Lib.assertTrue(buf[50] == data[pos + 50], "random read returned bad data");
+		}
+		Lib.assertTrue(numReadaheads - readaheads <= 1);
+
+		file.close();
+		Machine.stubFileSystem().remove("readahead.tmp");
+		System.out.println("ReadaheadOpenFile.selfTest: passed; "
+				+ (data.length / buf.length) + " sequential reads took "
+				+ sequentialReadaheads + " readaheads, "
+				+ (numRandomReads - random) + " random reads");
+	}
+
+	private static final int minWindow = 1024;
+
+	private static final int defaultMaxWindow = 16 * 1024;
+
+	/** The number of reads. */
+	public static long numReads = 0;
+
+	/** The number of reads served entirely from a prefetch buffer. */
+	public static long numHits = 0;
+
+	/** The number of windows fetched ahead of sequential reads. */
+	public static long numReadaheads = 0;
+
+	/** The number of bytes fetched into prefetch buffers. */
+	public static long bytesPrefetched = 0;
+
+	/** The number of reads that were not sequential and went to the file. */
+	public static long numRandomReads = 0;
+
+	private OpenFile file;
+
+	private int maxWindow;
+
+	private Lock lock; // guards the fields below
+
+	private byte[] buffer = null;
+
+	private int bufferStart = 0, bufferLength = 0;
+
+	private int window = 0; // size of the next readahead; 0 after random reads
+
+	private int nextPos = 0; // where a sequential read would start
+}
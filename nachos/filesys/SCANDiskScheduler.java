@@ -0,0 +1,29 @@
+package nachos.filesys;
+
+import java.util.List;
+
+/**
+ * An elevator disk scheduler. The head sweeps in one direction serving every
+ * request it passes, and turns around when there is nothing left ahead of it.
+ * (Strictly this is LOOK: the head reverses at the last request instead of
+ * travelling on to the edge of the disk.)
+ */
+public class SCANDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new SCAN disk scheduler.
+	 */
+	public SCANDiskScheduler() {
+	}
+
+	protected DiskRequest choose(List<DiskRequest> candidates, int headTrack,
+			long time) {
+		DiskRequest request = nearest(candidates, headTrack, up);
+		if (request == null) {
+			up = !up;
+			request = nearest(candidates, headTrack, up);
+		}
+		return request;
+	}
+
+	private boolean up = true;
+}
@@ -0,0 +1,29 @@
+package nachos.filesys;
+
+import java.util.List;
+
+/**
+ * A disk scheduler that always serves the request closest to the head
+ * (shortest seek time first). It minimizes each seek but can starve requests
+ * far from a busy region of the disk.
+ */
+public class SSTFDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new SSTF disk scheduler.
+	 */
+	public SSTFDiskScheduler() {
+	}
+
+	protected DiskRequest choose(List<DiskRequest> candidates, int headTrack,
+			long time) {
+		DiskRequest up = nearest(candidates, headTrack, true);
+		DiskRequest down = nearest(candidates, headTrack, false);
+
+		if (up == null)
+			return down;
+		if (down == null)
+			return up;
+		return (up.getTrack() - headTrack <= headTrack - down.getTrack()) ? up
+				: down;
+	}
+}
@@ -0,0 +1,15 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+/**
+ * A file system that may hold written data in memory and must be told when to
+ * make it durable.
+ */
+public interface SyncFileSystem extends FileSystem {
+	/**
+	 * Write everything this file system is holding in memory to its
+	 * underlying storage. Called before the machine halts.
+	 */
+	public void sync();
+}
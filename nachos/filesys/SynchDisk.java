@@ -0,0 +1,415 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A simulated disk with a synchronous interface. <tt>readSector()</tt> and
+ * <tt>writeSector()</tt> block the calling thread until the simulated
+ * operation has finished, while other threads keep running.
+ *
+ * <p>
+ * The disk has <tt>numTracks</tt> tracks of <tt>sectorsPerTrack</tt> sectors
+ * and a single head. Every request costs a seek proportional to the distance
+ * the head moves (<tt>Stats.SeekTime</tt> for a full stroke), the rotational
+ * delay until the sector comes under the head (one revolution takes
+ * <tt>Stats.RotationTime</tt>), and the time for the sectors to pass under the
+ * head.
+ *
+ * <p>
+ * Requests wait in a queue ordered by a pluggable <tt>DiskScheduler</tt>
+ * (<tt>SynchDisk.scheduler</tt>, C-LOOK by default), which also merges
+ * requests for adjacent sectors. When the disk starts a request it schedules
+ * a completion interrupt for the moment the transfer ends; the interrupt
+ * handler wakes the threads waiting for the request and starts the next one.
+ * The queue is shared with the handler, so it is guarded by disabling
+ * interrupts. Data is copied to or from the platter when a request is issued,
+ * so requests see each other's effects in issue order whatever order they are
+ * served in.
+ *
+ * <p>
+ * The contents of the disk are kept in a host image file in the test
+ * directory, read in through the stub file system when the disk is created.
+ * Sectors written since then are copied back to the image by
+ * <tt>flush()</tt>; anything not flushed is lost when Nachos exits, as if the
+ * machine had crashed.
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new disk using the image, geometry and scheduler named in
+	 * <tt>nachos.conf</tt>.
+	 */
+	public SynchDisk() {
+		this(Config.getString("SynchDisk.imageName", defaultImageName), Config
+				.getInteger("SynchDisk.numTracks", defaultNumTracks),
+				(DiskScheduler) Lib.constructObject(Config.getString(
+						"SynchDisk.scheduler", defaultScheduler)));
+	}
+
+	/**
+	 * Allocate a new disk.
+	 *
+	 * @param imageName the name of the host image file in the test directory.
+	 * @param numTracks the number of tracks on the disk.
+	 * @param scheduler the policy for ordering requests.
+	 */
+	public SynchDisk(String imageName, int numTracks, DiskScheduler scheduler) {
+		Lib.assertTrue(numTracks > 0);
+
+		this.imageName = imageName;
+		this.numTracks = numTracks;
+		this.scheduler = scheduler;
+		numSectors = numTracks * sectorsPerTrack;
+
+		platter = new byte[numSectors * sectorSize];
+		dirty = new boolean[numSectors];
+		lock = new Lock();
+		completionHandler = new Runnable() {
+			public void run() {
+				requestDone();
+			}
+		};
+
+		OpenFile image = Machine.stubFileSystem().open(imageName, false);
+		if (image != null) {
+			image.read(0, platter, 0, platter.length);
+			image.close();
+		}
+	}
+
+	/**
+	 * Return the number of sectors on this disk.
+	 */
+	public int getNumSectors() {
+		return numSectors;
+	}
+
+	/**
+	 * Read a sector into a buffer, blocking until the transfer completes.
+	 *
+	 * @param sector the sector to read.
+	 * @param buf    the buffer to hold the sector.
+	 * @param offset the offset in <i>buf</i> to store the first byte.
+	 */
+	public void readSector(int sector, byte[] buf, int offset) {
+		readSectors(sector, 1, buf, offset);
+	}
+
+	/**
+	 * Read a run of consecutive sectors in a single request, blocking until
+	 * the transfer completes.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count  the number of sectors to read.
+	 * @param buf    the buffer to hold the sectors.
+	 * @param offset the offset in <i>buf</i> to store the first byte.
+	 */
+	public void readSectors(int sector, int count, byte[] buf, int offset) {
+		Lib.assertTrue(sector >= 0 && count > 0 && sector + count <= numSectors);
+
+		lock.acquire();
+		System.arraycopy(platter, sector * sectorSize, buf, offset, count
+				* sectorSize);
+		numReads += count;
+		lock.release();
+
+		waitFor(sector, count, false);
+
+		Machine.stats().numDiskReads++;
+	}
+
+	/**
+	 * Write a sector from a buffer, blocking until the transfer completes.
+	 *
+	 * @param sector the sector to write.
+	 * @param buf    the buffer holding the sector's new contents.
+	 * @param offset the offset in <i>buf</i> of the first byte.
+	 */
+	public void writeSector(int sector, byte[] buf, int offset) {
+		writeSectors(sector, 1, buf, offset);
+	}
+
+	/**
+	 * Write a run of consecutive sectors in a single request, blocking until
+	 * the transfer completes.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count  the number of sectors to write.
+	 * @param buf    the buffer holding the sectors' new contents.
+	 * @param offset the offset in <i>buf</i> of the first byte.
+	 */
+	public void writeSectors(int sector, int count, byte[] buf, int offset) {
+		Lib.assertTrue(sector >= 0 && count > 0 && sector + count <= numSectors);
+
+		lock.acquire();
+		System.arraycopy(buf, offset, platter, sector * sectorSize, count
+				* sectorSize);
+		for (int i = 0; i < count; i++)
+			dirty[sector + i] = true;
+		numWrites += count;
+		lock.release();
+
+		waitFor(sector, count, true);
+
+		Machine.stats().numDiskWrites++;
+	}
+
+	/**
+	 * Copy every sector written since the last flush back to the host image.
+	 */
+	public void flush() {
+		lock.acquire();
+		OpenFile image = Machine.stubFileSystem().open(imageName, false);
+		if (image == null)
+			image = Machine.stubFileSystem().open(imageName, true);
+
+		if (image != null) {
+			// one host write per run of consecutive dirty sectors
+			for (int sector = 0; sector < numSectors; ) {
+				if (!dirty[sector]) {
+					sector++;
+					continue;
+				}
+				int end = sector;
+				while (end < numSectors && dirty[end])
+					dirty[end++] = false;
+				image.write(sector * sectorSize, platter, sector * sectorSize,
+						(end - sector) * sectorSize);
+				sector = end;
+			}
+			image.close();
+		}
+		lock.release();
+	}
+
+	/**
+	 * Print out the disk statistics, including a histogram of request
+	 * latencies: the bucket labelled <i>n</i> counts requests that took less
+	 * than <i>n</i> ticks from issue to completion (and at least <i>n</i>/2).
+	 */
+	public void print() {
+		lock.acquire();
+		long requests = numRequests;
+		System.out.println("Disk: reads " + numReads + ", writes " + numWrites
+				+ ", merged " + scheduler.numMerged + ", seeks " + numSeeks
+				+ ", seek time " + totalSeekTime + ", busy time "
+				+ totalBusyTime + ", average latency "
+				+ (requests == 0 ? 0 : totalLatency / requests) + " ticks");
+		printHistogram("read", readLatencies);
+		printHistogram("write", writeLatencies);
+		lock.release();
+	}
+
+	private static void printHistogram(String name, long[] histogram) {
+		StringBuffer line = new StringBuffer("Disk: " + name + " latency");
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] != 0)
+				line.append(" <" + (1L << i) + ":" + histogram[i]);
+		}
+		System.out.println(line);
+	}
+
+	/**
+	 * Queue a request for <i>count</i> sectors starting at <i>sector</i> and
+	 * wait until the disk has served it.
+	 */
+	private void waitFor(int sector, int count, boolean isWrite) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		long now = Machine.timer().getTime();
+		DiskRequest request = scheduler.add(new DiskRequest(sector, count,
+				isWrite, now + (isWrite ? writeExpire : readExpire)));
+		if (inService == null)
+			startNext();
+
+		while (!request.completed) {
+			request.waiters.add(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		lock.acquire();
+		long latency = request.completionTime - now;
+		totalLatency += latency;
+		numRequests++;
+		long[] histogram = isWrite ? writeLatencies : readLatencies;
+		histogram[Math.min(histogram.length - 1,
+				64 - Long.numberOfLeadingZeros(latency))]++;
+		lock.release();
+	}
+
+	/**
+	 * Start the next queued request and schedule its completion interrupt.
+	 * Called with interrupts disabled while the disk is idle.
+	 */
+	private void startNext() {
+		long now = Machine.timer().getTime();
+		inService = scheduler.next(headTrack, now);
+		long done = access(inService, now);
+		Machine.interrupt().scheduleDeviceInterrupt(done - now,
+				"disk", completionHandler);
+	}
+
+	/**
+	 * The disk's completion interrupt handler. Wakes the threads waiting for
+	 * the request that just finished and starts the next one.
+	 */
+	private void requestDone() {
+		DiskRequest request = inService;
+		inService = null;
+
+		request.completed = true;
+		request.completionTime = Machine.timer().getTime();
+		for (KThread waiter : request.waiters)
+			waiter.ready();
+		request.waiters.clear();
+
+		if (!scheduler.isEmpty())
+			startNext();
+	}
+
+	/**
+	 * Work out when <i>request</i> completes if the disk starts on it at
+	 * <i>start</i>, and move the head there. Called with interrupts
+	 * disabled.
+	 */
+	private long access(DiskRequest request, long start) {
+		int track = request.getTrack();
+		int distance = Math.abs(track - headTrack);
+		long arrive = start;
+		if (distance > 0) {
+			long seek = seekTime(distance);
+			arrive += seek;
+			totalSeekTime += seek;
+			numSeeks++;
+		}
+
+		// sector i of every track starts passing under the head at
+		// i * sectorTime past the start of each revolution
+		long angle = (request.firstSector % sectorsPerTrack) * sectorTime;
+		long delay = ((angle - arrive % revolutionTime) + revolutionTime)
+				% revolutionTime;
+		long done = arrive + delay + request.numSectors * sectorTime;
+
+		// a run that goes on past the end of the track leaves the head on
+		// the track it ends on
+		headTrack = (request.firstSector + request.numSectors - 1)
+				/ sectorsPerTrack;
+		totalBusyTime += done - start;
+		return done;
+	}
+
+	private long seekTime(int distance) {
+		// round up, so that moving to the next track is never free
+		return (Stats.SeekTime * (long) distance + numTracks - 1) / numTracks;
+	}
+
+	/**
+	 * Run the same random workload, a few threads each reading and writing
+	 * short runs of sectors all over the disk, under each disk scheduler, and
+	 * print what it cost.
+	 */
+	public static void selfTest() {
+		String[] schedulers = { "FIFO", "SSTF", "SCAN", "CLOOK", "Deadline" };
+
+		for (int i = 0; i < schedulers.length; i++) {
+			final SynchDisk disk = new SynchDisk("selftest.disk", 64,
+					(DiskScheduler) Lib.constructObject("nachos.filesys."
+							+ schedulers[i] + "DiskScheduler"));
+
+			KThread[] threads = new KThread[8];
+			for (int t = 0; t < threads.length; t++) {
+				final java.util.Random random = new java.util.Random(t);
+				threads[t] = new KThread(new Runnable() {
+					public void run() {
+						byte[] buf = new byte[sectorSize];
+						for (int n = 0; n < 20; n++) {
+							int sector = random.nextInt(disk.getNumSectors() - 4);
+							for (int j = 0; j < 4; j++) {
+								if (n % 4 == 0)
+									disk.writeSector(sector + j, buf, 0);
+								else
+									disk.readSector(sector + j, buf, 0);
+							}
+						}
+					}
+				});
+				threads[t].setName("disk test " + t).fork();
+			}
+
+			long start = Machine.timer().getTime();
+			for (int t = 0; t < threads.length; t++)
+				threads[t].join();
+
+			System.out.println("SynchDisk.selfTest: " + schedulers[i]
+					+ " finished in " + (Machine.timer().getTime() - start)
+					+ " ticks");
+			disk.print();
+		}
+	}
+
+	/** The number of bytes in a sector. */
+	public static final int sectorSize = 512;
+
+	/** The number of sectors on each track. */
+	public static final int sectorsPerTrack = 16;
+
+	private static final String defaultImageName = "DISK";
+
+	private static final int defaultNumTracks = 64;
+
+	private static final String defaultScheduler = "nachos.filesys.CLOOKDiskScheduler";
+
+	/** How long reads and writes may wait under a deadline scheduler. */
+	private static final long readExpire = 10 * Stats.RotationTime,
+			writeExpire = 50 * Stats.RotationTime;
+
+	/** Time for one sector to pass under the head. */
+	private static final long sectorTime = Math.max(1, Stats.RotationTime
+			/ sectorsPerTrack);
+
+	private static final long revolutionTime = sectorTime * sectorsPerTrack;
+
+	/** The number of sectors read. */
+	public long numReads = 0;
+
+	/** The number of sectors written. */
+	public long numWrites = 0;
+
+	/** The number of requests that moved the head to another track. */
+	public long numSeeks = 0;
+
+	/** Total ticks spent seeking. */
+	public long totalSeekTime = 0;
+
+	/** Total ticks the disk spent serving requests. */
+	public long totalBusyTime = 0;
+
+	/** Total ticks from issuing a request until its completion. */
+	public long totalLatency = 0;
+
+	private long numRequests = 0; // calls to readSectors() and writeSectors()
+
+	private long[] readLatencies = new long[24], writeLatencies = new long[24];
+
+	private String imageName;
+
+	private int numTracks, numSectors;
+
+	private byte[] platter;
+
+	private boolean[] dirty; // written since the last flush
+
+	private Lock lock; // guards the platter, dirty and the counters
+
+	// the queue and the head, shared with the completion interrupt handler;
+	// guarded by disabling interrupts
+	private DiskScheduler scheduler;
+
+	private DiskRequest inService = null; // the request being served
+
+	private Runnable completionHandler;
+
+	private int headTrack = 0;
+}
@@ -119,6 +119,46 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Advance the simulated time straight to the next pending interrupt and
+	 * invoke the handlers that are then due, as though the processor had sat
+	 * idle until then. Interrupts must be disabled. Does nothing if no
+	 * interrupt is pending.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (pending.isEmpty())
+			return;
+
+		Stats stats = privilege.stats;
+		long time = pending.first().time;
+		if (time > stats.totalTicks) {
+			Lib.debug(dbgInt, "Idling until time = " + time);
+			stats.idleTicks += time - stats.totalTicks;
+			stats.totalTicks = time;
+		}
+
+		checkIfDue();
+	}
+
+	/**
+	 * Schedule an interrupt for a device that the kernel models itself, such
+	 * as a disk, so that its completions arrive the way the machine's own
+	 * devices deliver theirs. <i>handler</i> is invoked with interrupts
+	 * disabled once <i>when</i> more ticks have passed, and must not block.
+	 * 
+	 * @param when    how many ticks from now the interrupt occurs.
+	 * @param type    a name for the interrupt, for debugging.
+	 * @param handler the interrupt handler.
+	 */
+	public void scheduleDeviceInterrupt(long when, String type,
+			Runnable handler) {
+		Lib.assertTrue(when > 0 && handler != null);
+
+		schedule(when, type, handler);
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
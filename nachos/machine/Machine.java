@@ -369,6 +369,16 @@ public final class Machine {
 		return networkLink;
 	}
 
+	/**
+	 * Return the machine-wide statistics. The kernel may read the counters and
+	 * update the ones only it can observe (e.g. swap reads and writes).
+	 * 
+	 * @return the runtime statistics.
+	 */
+	public static Stats stats() {
+		return stats;
+	}
+
 	/**
 	 * Return the autograder.
 	 * 
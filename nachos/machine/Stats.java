@@ -19,7 +19,7 @@ public final class Stats {
 	 */
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
-				+ kernelTicks + ", user " + userTicks);
+				+ kernelTicks + ", user " + userTicks + ", idle " + idleTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
@@ -31,6 +31,8 @@ public final class Stats {
 			        + ", swap writes " + numSwapWrites);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		System.out.println("Real-time: deadlines met " + numDeadlinesMet
+				+ ", missed " + numDeadlineMisses);
 	}
 
 	/**
@@ -48,6 +50,12 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/**
+	 * The total amount of simulated time skipped while no thread was ready to
+	 * run.
+	 */
+	public long idleTicks = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
@@ -81,6 +89,12 @@ public final class Stats {
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/** The total number of real-time jobs that finished by their deadline. */
+	public int numDeadlinesMet = 0;
+
+	/** The total number of real-time jobs that finished after their deadline. */
+	public int numDeadlineMisses = 0;
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
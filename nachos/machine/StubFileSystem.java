@@ -8,10 +8,22 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * <tt>StubFileSystem.ioBackend</tt> selects how file data reaches the host:
+ * <tt>stream</tt> (the default) seeks and reads or writes the host file for
+ * every request, <tt>channel</tt> uses positional <tt>FileChannel</tt> I/O,
+ * and <tt>mapped</tt> memory-maps files no larger than
+ * <tt>StubFileSystem.mapThreshold</tt> bytes and uses positional I/O for the
+ * rest. <tt>StubFileSystem.delay</tt> sets the simulated time each request
+ * costs.
  */
 public class StubFileSystem implements FileSystem {
 	/**
@@ -23,6 +35,14 @@ public class StubFileSystem implements FileSystem {
 	public StubFileSystem(Privilege privilege, File directory) {
 		this.privilege = privilege;
 		this.directory = directory;
+
+		String backend = Config.getString("StubFileSystem.ioBackend", "stream");
+		Lib.assertTrue(backend.equals("stream") || backend.equals("channel")
+				|| backend.equals("mapped"), "unknown StubFileSystem.ioBackend");
+		useChannel = !backend.equals("stream");
+		mapThreshold = backend.equals("mapped") ? Config.getInteger(
+				"StubFileSystem.mapThreshold", defaultMapThreshold) : -1;
+		delayTicks = Config.getInteger("StubFileSystem.delay", defaultDelay);
 	}
 
 	public OpenFile open(String name, boolean truncate) {
@@ -70,7 +90,7 @@ public class StubFileSystem implements FileSystem {
 
 	private void delay() {
 		long time = Machine.timer().getTime();
-		int amount = 1000;
+		int amount = delayTicks;
 		ThreadedKernel.alarm.waitUntil(amount);
 		Lib.assertTrue(Machine.timer().getTime() >= time + amount);
 	}
@@ -107,6 +127,9 @@ public class StubFileSystem implements FileSystem {
 
 				if (truncate)
 					file.setLength(0);
+
+				if (useChannel)
+					channel = file.getChannel();
 			}
 			catch (IOException e) {
 			}
@@ -119,6 +142,9 @@ public class StubFileSystem implements FileSystem {
 			try {
 				delay();
 
+				if (channel != null)
+					return Math.max(0, channelRead(pos, buf, offset, length));
+
 				file.seek(pos);
 				return Math.max(0, file.read(buf, offset, length));
 			}
@@ -134,6 +160,11 @@ public class StubFileSystem implements FileSystem {
 			try {
 				delay();
 
+				if (channel != null) {
+					channelWrite(pos, buf, offset, length);
+					return length;
+				}
+
 				file.seek(pos);
 				file.write(buf, offset, length);
 				return length;
@@ -143,6 +174,82 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		private int channelRead(int pos, byte[] buf, int offset, int length)
+				throws IOException {
+			if (pos < 0 || length < 0)
+				throw new IOException();
+
+			long size = checkMapping();
+			// the file may have grown since it was mapped
+			if (pos + length > mappedLength && size > mappedLength
+					&& size <= mapThreshold)
+				map(size);
+
+			if (mapped != null && pos + length <= mappedLength) {
+				ByteBuffer view = mapped.duplicate();
+				view.position(pos);
+				view.get(buf, offset, length);
+				return length;
+			}
+
+			int amount = 0;
+			while (amount < length) {
+				int n = channel.read(ByteBuffer.wrap(buf, offset + amount,
+						length - amount), pos + amount);
+				if (n <= 0)
+					break;
+				amount += n;
+			}
+			return amount;
+		}
+
+		private void channelWrite(int pos, byte[] buf, int offset, int length)
+				throws IOException {
+			if (pos < 0 || length < 0)
+				throw new IOException();
+
+			checkMapping();
+			if (mapped != null && pos + length <= mappedLength) {
+				ByteBuffer view = mapped.duplicate();
+				view.position(pos);
+				view.put(buf, offset, length);
+				return;
+			}
+
+			// writing past the mapping grows the file, which a mapping cannot
+			ByteBuffer src = ByteBuffer.wrap(buf, offset, length);
+			while (src.hasRemaining())
+				channel.write(src, pos + src.position() - offset);
+		}
+
+		/**
+		 * Drop the mapping if another handle has truncated the file below it,
+		 * since touching a mapped page past the end of the file faults the
+		 * host process. Remap what is left if it is worth mapping.
+		 *
+		 * @return the current size of the file.
+		 */
+		private long checkMapping() throws IOException {
+			long size = channel.size();
+			if (mapped != null && size < mappedLength) {
+				mapped = null;
+				mappedLength = 0;
+				if (size > 0 && size <= mapThreshold)
+					map(size);
+			}
+			return size;
+		}
+
+		/**
+		 * Map the first <i>size</i> bytes of the file. The mapping never
+		 * extends past the end of the file, so it does not change the file's
+		 * length as seen by other handles.
+		 */
+		private void map(long size) throws IOException {
+			mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			mappedLength = (int) size;
+		}
+
 		public int length() {
 			try {
 				return (int) file.length();
@@ -157,6 +264,7 @@ public class StubFileSystem implements FileSystem {
 				open = false;
 				openCount--;
 			}
+			mapped = null;
 
 			try {
 				file.close();
@@ -167,6 +275,12 @@ public class StubFileSystem implements FileSystem {
 
 		private RandomAccessFile file = null;
 
+		private FileChannel channel = null; // unless using the stream backend
+
+		private MappedByteBuffer mapped = null;
+
+		private int mappedLength = 0; // bytes of the file that are mapped
+
 		private boolean open = false;
 	}
 
@@ -174,6 +288,16 @@ public class StubFileSystem implements FileSystem {
 
 	private static final int maxOpenFiles = 32;
 
+	private static final int defaultMapThreshold = 1 << 20;
+
+	private static final int defaultDelay = 1000;
+
+	private boolean useChannel;
+
+	private int mapThreshold; // -1 unless using the mapped backend
+
+	private int delayTicks;
+
 	private Privilege privilege;
 
 	private File directory;
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,19 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * <tt>TCB.backend</tt> picks how. <tt>monitor</tt> (the default) runs each TCB
+ * on a platform thread and hands the processor over with <tt>wait()</tt> and
+ * <tt>notify()</tt>. <tt>park</tt> hands it over with
+ * <tt>LockSupport.park()</tt> and <tt>unpark()</tt> instead, which skips the
+ * monitor and wakes only the one thread. <tt>virtual</tt> also parks, but runs
+ * each TCB on a virtual thread when the JVM has them (Java 21 and later), and
+ * falls back to <tt>park</tt> on platform threads when it does not.
+ * <tt>TCB.stackSize</tt> sets the stack of each platform thread (0 for the JVM
+ * default), and <tt>TCB.maxThreads</tt> sets the cap on running TCBs. The cap
+ * defaults to <tt>maxThreads</tt>, or to <tt>virtualMaxThreads</tt> when
+ * the <tt>virtual</tt> backend really has virtual threads.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +54,36 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String backend = Config.getString("TCB.backend", "monitor");
+		Lib.assertTrue(backend.equals("monitor") || backend.equals("park")
+				|| backend.equals("virtual"), "unknown TCB.backend: " + backend);
+		park = !backend.equals("monitor");
+		if (backend.equals("virtual")) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				virtualBuilder = builder;
+				unstarted = Class.forName("java.lang.Thread$Builder").getMethod(
+						"unstarted", Runnable.class);
+			}
+			catch (Exception e) {
+				System.out.print(" (no virtual threads, parking platform threads)");
+				virtualBuilder = null;
+			}
+		}
+		stackSize = Config.getInteger("TCB.stackSize", 0);
+		threadLimit = Config.getInteger("TCB.maxThreads",
+				virtualBuilder != null ? virtualMaxThreads : maxThreads);
+		Lib.assertTrue(threadLimit > 0);
+	}
+
+	/**
+	 * Return the maximum number of started, non-destroyed TCBs, which is
+	 * <tt>maxThreads</tt> (<tt>virtualMaxThreads</tt> on virtual threads)
+	 * unless <tt>TCB.maxThreads</tt> says otherwise.
+	 */
+	public static int getMaxThreads() {
+		return threadLimit;
 	}
 
 	/**
@@ -68,7 +113,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +147,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newThread(tcbTarget);
 				}
 			});
 
@@ -216,6 +261,18 @@ public final class TCB {
 		return (currentTCB != null && Thread.currentThread() == currentTCB.javaThread);
 	}
 
+	private static Thread newThread(Runnable target) {
+		if (virtualBuilder != null) {
+			try {
+				return (Thread) unstarted.invoke(virtualBuilder, target);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("could not create a virtual thread: " + e);
+			}
+		}
+		return new Thread(null, target, "TCB", stackSize);
+	}
+
 	private void threadroot() {
 		// this should be running the current thread
 		Lib.assertTrue(javaThread == Thread.currentThread());
@@ -291,14 +348,23 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
+	 * Waits on the monitor bound to this TCB (or, with a <tt>park</tt> backend,
+	 * parks) until its <tt>running</tt> flag is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
 	 * needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (park) {
+			while (!running)
+				LockSupport.park(this);
+			return;
+		}
+		waitOnMonitor();
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -310,11 +376,20 @@ public final class TCB {
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
+	 * and signalling the monitor bound to it (or unparking its thread). Used in the ping-pong process of
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (park) {
+			running = true;
+			LockSupport.unpark(javaThread);
+			return;
+		}
+		notifyMonitor();
+	}
+
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -341,11 +416,27 @@ public final class TCB {
 	}
 
 	/**
-	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * The default maximum number of started, non-destroyed TCB's that can be
+	 * in existence.
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The default maximum when TCBs run on virtual threads, which cost no
+	 * platform thread each. Parked platform threads keep <tt>maxThreads</tt>.
+	 */
+	public static final int virtualMaxThreads = 50000;
+
+	private static int threadLimit = maxThreads;
+
+	private static boolean park = false; // hand off with park/unpark
+
+	private static int stackSize = 0;
+
+	private static Object virtualBuilder = null; // Thread.ofVirtual(), if any
+
+	private static Method unstarted = null; // Thread.Builder.unstarted()
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -401,9 +492,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. Volatile because the <tt>park</tt> backends read it outside a
+	 * monitor.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -10,21 +10,22 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  * 
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot be
- * done in the receive interrupt handler because each queue (implemented with a
- * <tt>SynchList</tt>) is protected by a lock.
+ * Each time a message arrives, the receive interrupt handler submits a task to
+ * the post office's own one-worker <tt>KThreadPool</tt> to place it in the
+ * appropriate queue. This cannot be done in the interrupt handler itself
+ * because each queue (implemented with a <tt>SynchList</tt>) is protected by
+ * a lock. The pool is not the kernel's shared one, so tasks blocked there
+ * cannot hold up delivery.
  */
 public class PostOffice {
 	/**
 	 * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-	 * Register the interrupt handlers with the network hardware and start the
-	 * "postal worker" thread.
+	 * Register the interrupt handlers with the network hardware.
 	 */
 	public PostOffice() {
-		messageReceived = new Semaphore(0);
 		messageSent = new Semaphore(0);
 		sendLock = new Lock();
+		deliveryPool = new KThreadPool(1);
 
 		queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
@@ -40,15 +41,12 @@ public class PostOffice {
 				sendInterrupt();
 			}
 		};
-		Machine.networkLink().setInterruptHandlers(receiveHandler, sendHandler);
-
-		KThread t = new KThread(new Runnable() {
+		postalDelivery = new Runnable() {
 			public void run() {
 				postalDelivery();
 			}
-		});
-
-		t.fork();
+		};
+		Machine.networkLink().setInterruptHandlers(receiveHandler, sendHandler);
 	}
 
 	/**
@@ -72,30 +70,28 @@ public class PostOffice {
 	}
 
 	/**
-	 * Wait for incoming messages, and then put them in the correct mailbox.
+	 * Take the incoming message off the network link and put it in the correct
+	 * mailbox. Run on the delivery worker once for every receive interrupt;
+	 * the link holds no further message until this one is taken.
 	 */
 	private void postalDelivery() {
-		while (true) {
-			messageReceived.P();
-
-			Packet p = Machine.networkLink().receive();
+		Packet p = Machine.networkLink().receive();
 
-			MailMessage mail;
+		MailMessage mail;
 
-			try {
-				mail = new MailMessage(p);
-			}
-			catch (MalformedPacketException e) {
-				continue;
-			}
+		try {
+			mail = new MailMessage(p);
+		}
+		catch (MalformedPacketException e) {
+			return;
+		}
 
-			if (Lib.test(dbgNet))
-				System.out.println("delivering mail to port " + mail.dstPort
-						+ ": " + mail);
+		if (Lib.test(dbgNet))
+			System.out.println("delivering mail to port " + mail.dstPort
+					+ ": " + mail);
 
-			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
-		}
+		// atomically add message to the mailbox and wake a waiting thread
+		queues[mail.dstPort].add(mail);
 	}
 
 	/**
@@ -103,7 +99,7 @@ public class PostOffice {
 	 * link.
 	 */
 	private void receiveInterrupt() {
-		messageReceived.V();
+		deliveryPool.submit(postalDelivery);
 	}
 
 	/**
@@ -132,7 +128,9 @@ public class PostOffice {
 
 	private SynchList[] queues;
 
-	private Semaphore messageReceived; // V'd when a message can be dequeued
+	private Runnable postalDelivery; // delivers one message
+
+	private KThreadPool deliveryPool; // runs postalDelivery
 
 	private Semaphore messageSent; // V'd when a message can be queued
 
@@ -0,0 +1,59 @@
+/*
+ * dup1.c
+ *
+ * Check that a descriptor made by dup() shares the file position with the
+ * original and keeps the file open after the original is closed, then use
+ * dup2() to send the standard output into the file.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int
+main (int argc, char *argv[])
+{
+    char buf[32];
+    int fd, copy, out, r;
+
+    fd = creat ("dup1.out");
+    if (fd < 0) {
+	printf ("...failed to create dup1.out\n");
+	exit (-1);
+    }
+
+    copy = dup (fd);
+    if (copy < 0 || copy == fd) {
+	printf ("...dup failed (copy = %d)\n", copy);
+	exit (-1);
+    }
+
+    /* writes through either descriptor advance the same position */
+    write (fd, "abc", 3);
+    write (copy, "def", 3);
+    close (fd);
+
+    /* the file is still open through the copy */
+    out = dup (1);
+    if (dup2 (copy, 1) != 1) {
+	write (out, "...dup2 failed\n", 15);
+	exit (-1);
+    }
+    printf ("ghi");
+    dup2 (out, 1);
+    close (out);
+    close (copy);
+
+    fd = open ("dup1.out");
+    r = read (fd, buf, sizeof (buf));
+    close (fd);
+    unlink ("dup1.out");
+
+    if (r != 9 || strncmp (buf, "abcdefghi", 9) != 0) {
+	printf ("...read back %d bytes, expected \"abcdefghi\"\n", r);
+	exit (-1);
+    }
+
+    printf ("dup1 passed\n");
+    exit (0);
+}
@@ -0,0 +1,46 @@
+/*
+ * pipe1.c
+ *
+ * Create a pipe, push a message through it and read it back.  Then
+ * close the write end and check that the reader sees end of file.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int
+main (int argc, char *argv[])
+{
+    char *msg = "through the pipe\n";
+    char buf[64];
+    int fds[2], len, r;
+
+    if (pipe (fds) != 0) {
+	printf ("...failed to create pipe\n");
+	exit (-1);
+    }
+
+    len = strlen (msg);
+    r = write (fds[1], msg, len);
+    if (r != len) {
+	printf ("...failed to write (r = %d)\n", r);
+	exit (-1);
+    }
+
+    r = read (fds[0], buf, sizeof (buf));
+    if (r != len || strncmp (buf, msg, len) != 0) {
+	printf ("...failed to read back (r = %d)\n", r);
+	exit (-1);
+    }
+
+    close (fds[1]);
+    r = read (fds[0], buf, sizeof (buf));
+    if (r != 0) {
+	printf ("...expected end of file (r = %d)\n", r);
+	exit (-1);
+    }
+
+    printf ("...passed\n");
+    return 0;
+}
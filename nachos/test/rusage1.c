@@ -0,0 +1,39 @@
+/*
+ * rusage1.c
+ *
+ * Write a few bytes to stdout and check that getrusage reports the
+ * syscalls and the bytes written.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int
+main (int argc, char *argv[])
+{
+    struct rusage ru;
+    char *str = "hello, rusage\n";
+    int i, r;
+
+    for (i = 0; i < 4; i++)
+	write (1, str, strlen (str));
+
+    r = getrusage (&ru);
+    if (r != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+
+    printf ("user %d, kernel %d, faults %d, syscalls %d, in %d, out %d\n",
+	    ru.ru_utime, ru.ru_stime, ru.ru_majflt, ru.ru_nsyscall,
+	    ru.ru_inbytes, ru.ru_outbytes);
+
+    if (ru.ru_nsyscall < 5 || ru.ru_outbytes < 4 * strlen (str)) {
+	printf ("...failed\n");
+	exit (-1);
+    }
+
+    printf ("...passed\n");
+    return 0;
+}
@@ -5,17 +5,19 @@
 
 #define MAXARGSIZE	16
 #define MAXARGS		16
+#define MAXSTAGES	8
 
 /**
  * tokenizeCommand
  *
  * Splits the specified command line into tokens, creating a token array with a maximum
- * of maxTokens entries, using storage to hold the tokens. The storage array should be as
- * long as the command line.
+ * of maxTokens entries, using storage to hold the tokens. The storage array should be
+ * twice as long as the command line.
  *
  * Whitespace (spaces, tabs, newlines) separate tokens, unless
  * enclosed in double quotes. Any character can be quoted by preceeding
- * it with a backslash. Quotes must be terminated.
+ * it with a backslash. Quotes must be terminated. An unquoted | is a token
+ * of its own.
  *
  * Returns the number of tokens, or -1 on error.
  */
@@ -67,6 +69,18 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
 		    state &= ~startedArg;
 		}
 		break;
+	    case '|':
+		if (state & startedArg) {
+		    *(storage++) = '\0';
+		    state &= ~startedArg;
+		}
+		if (numTokens == maxTokens) {
+		    return -1;
+		}
+		tokens[numTokens++] = storage;
+		*(storage++) = '|';
+		*(storage++) = '\0';
+		break;
 	    default:
 		if (!(state & startedArg)) {
 		    if (numTokens == maxTokens) {
@@ -108,12 +122,112 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
     return numTokens;
 }
 
+static int execCommand(int argc, char *argv[]) {
+    char prog[BUFFERSIZE];
+
+    strcpy(prog, argv[0]);
+    strcat(prog, ".coff");
+
+    return exec(prog, argc, argv);
+}
+
+static void joinCommand(int pid) {
+    int status;
+
+    switch (join(pid, &status)) {
+    case -1:
+	printf("join: Invalid process ID.\n");
+	break;
+    case 0:
+	printf("\n[%d] Unhandled exception\n", pid);
+	break;
+    case 1:
+	printf("\n[%d] Done (%d)\n", pid, status);
+	break;
+    }
+}
+
+/**
+ * runPipeline
+ *
+ * Runs each stage with its stdout connected to the next stage's stdin. The
+ * children inherit the shell's descriptors 0 and 1, so the shell points those
+ * at the pipes while it execs each stage, then restores its own.
+ */
+static void runPipeline(int numStages, int stageArgc[], char **stageArgv[],
+			int background) {
+    int pids[MAXSTAGES], fds[2];
+    int savedIn, savedOut, started, failed, i;
+
+    savedIn = dup(0);
+    savedOut = dup(1);
+    if (savedIn == -1 || savedOut == -1) {
+	if (savedIn != -1)
+	    close(savedIn);
+	if (savedOut != -1)
+	    close(savedOut);
+	printf("pipe: Too many open files.\n");
+	return;
+    }
+
+    failed = -1;
+    for (started = 0; started < numStages; started++) {
+	if (started < numStages - 1) {
+	    if (pipe(fds) == -1) {
+		break;
+	    }
+	    dup2(fds[1], 1);
+	    close(fds[1]);
+	}
+	else {
+	    dup2(savedOut, 1);
+	}
+
+	pids[started] = execCommand(stageArgc[started], stageArgv[started]);
+
+	/* the next stage reads what this one writes */
+	if (started < numStages - 1) {
+	    dup2(fds[0], 0);
+	    close(fds[0]);
+	}
+
+	if (pids[started] == -1) {
+	    failed = started;
+	    break;
+	}
+    }
+
+    /* dropping the shell's copies lets the stages see end of file */
+    dup2(savedIn, 0);
+    dup2(savedOut, 1);
+    close(savedIn);
+    close(savedOut);
+
+    if (failed != -1)
+	printf("%s: exec failed.\n", stageArgv[failed][0]);
+    else if (started < numStages)
+	printf("pipe: Too many open files.\n");
+
+    for (i = 0; i < started; i++) {
+	if (i == failed)
+	    continue;
+	if (!background)
+	    joinCommand(pids[i]);
+	else
+	    printf("\n[%d]\n", pids[i]);
+    }
+}
+
 void runline(char* line) {
-    int pid, background, status;
+    int pid, background;
    
-    char args[BUFFERSIZE], prog[BUFFERSIZE];
+    char args[2*BUFFERSIZE];
     char *argv[MAXARGS];
 
+    char **stageArgv[MAXSTAGES];
+    int stageArgc[MAXSTAGES];
+    int numStages, start, i;
+
     int argc = tokenizeCommand(line, MAXARGS, argv, args);
     if (argc <= 0)
 	return;
@@ -126,66 +240,77 @@ void runline(char* line) {
 	background = 0;
     }
 
-    if (argc > 0) {
-	if (strcmp(argv[0], "exit")==0) {
-	    if (argc == 1) {
-		exit(0);
-	    }
-	    else if (argc == 2) {
-		exit(atoi(argv[1]));
+    if (argc == 0)
+	return;
+
+    numStages = 0;
+    start = 0;
+    for (i = 0; i <= argc; i++) {
+	if (i == argc || strcmp(argv[i], "|") == 0) {
+	    if (i == start) {
+		printf("Invalid null command.\n");
+		return;
 	    }
-	    else {
-		printf("exit: Expression Syntax.\n");
+	    if (numStages == MAXSTAGES) {
+		printf("Too many commands in pipeline.\n");
 		return;
 	    }
+	    stageArgv[numStages] = &argv[start];
+	    stageArgc[numStages++] = i - start;
+	    start = i + 1;
 	}
-	else if (strcmp(argv[0], "halt")==0) {
-	    if (argc == 1) {
-		halt();
-		printf("Not the root process!\n");
-	    }
-	    else {
-		printf("halt: Expression Syntax.\n");
-	    }
+    }
+
+    if (numStages > 1) {
+	runPipeline(numStages, stageArgc, stageArgv, background);
+	return;
+    }
+
+    if (strcmp(argv[0], "exit")==0) {
+	if (argc == 1) {
+	    exit(0);
+	}
+	else if (argc == 2) {
+	    exit(atoi(argv[1]));
+	}
+	else {
+	    printf("exit: Expression Syntax.\n");
 	    return;
 	}
-	else if (strcmp(argv[0], "join")==0) {
-	    if (argc == 2) {
-		pid = atoi(argv[1]);
-	    }
-	    else {
-		printf("join: Expression Syntax.\n");
-		return;
-	    }
+    }
+    else if (strcmp(argv[0], "halt")==0) {
+	if (argc == 1) {
+	    halt();
+	    printf("Not the root process!\n");
 	}
 	else {
-	    strcpy(prog, argv[0]);
-	    strcat(prog, ".coff");
-
-	    pid = exec(prog, argc, argv);
-	    if (pid == -1) {
-		printf("%s: exec failed.\n", argv[0]);
-		return;
-	    }
+	    printf("halt: Expression Syntax.\n");
 	}
-
-	if (!background) {
-	    switch (join(pid, &status)) {
-	    case -1:
-		printf("join: Invalid process ID.\n");
-		break;
-	    case 0:
-		printf("\n[%d] Unhandled exception\n", pid);
-		break;
-	    case 1:
-		printf("\n[%d] Done (%d)\n", pid, status);
-		break;
-	    }
+	return;
+    }
+    else if (strcmp(argv[0], "join")==0) {
+	if (argc == 2) {
+	    pid = atoi(argv[1]);
 	}
 	else {
-	    printf("\n[%d]\n", pid);
+	    printf("join: Expression Syntax.\n");
+	    return;
+	}
+    }
+    else {
+	pid = execCommand(argc, argv);
+	if (pid == -1) {
+	    printf("%s: exec failed.\n", argv[0]);
+	    return;
 	}
     }
+
+    if (!background) {
+	joinCommand(pid);
+    }
+    else {
+	printf("\n[%d]\n", pid);
+    }
 }
 
 int main(int argc, char *argv[]) {
@@ -25,6 +25,15 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallGetrusage	13
+#define syscallPipe		14
+#define syscallThreadCreate	15
+#define syscallThreadJoin	16
+#define syscallThreadExit	17
+#define syscallFutexWait	18
+#define syscallFutexWake	19
+#define syscallDup		20
+#define syscallDup2		21
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -71,7 +80,10 @@ void exit(int status);
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
  * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * opened as file descriptor 1. These are the caller's own descriptors 0 and
+ * 1, shared with the child, so the caller can point them at a pipe or a file
+ * with dup2() before calling exec() (and restore them afterwards) to
+ * redirect the child. The caller's other descriptors are not passed on.
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -203,6 +215,23 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * Make the lowest-numbered unused file descriptor refer to the same open file
+ * as fd. The two descriptors share the file position, and the file stays open
+ * until both are closed.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fd);
+
+/**
+ * Make newfd refer to the same open file as oldfd, closing whatever newfd
+ * referred to first. dup2(fd, 1) sends the standard output to fd.
+ *
+ * Returns newfd, or -1 if an error occurred.
+ */
+int dup2(int oldfd, int newfd);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
@@ -217,6 +246,69 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Create a pipe: a one-way channel buffered in the kernel. fds[0] is set to a
+ * file descriptor for the read end and fds[1] to one for the write end. Data
+ * written to fds[1] can be read from fds[0] in order. read() blocks while the
+ * pipe is empty and returns 0 once every write end is closed; write() blocks
+ * while the pipe is full and fails once every read end is closed.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/* THREAD SYSCALLS: thread_create, thread_join, thread_exit, futex_wait,
+ * futex_wake
+ *
+ * Threads of a process share its address space and file descriptors. exit()
+ * called from any thread terminates the whole process, including its other
+ * threads.
+ */
+
+/**
+ * Start a new thread in the current process that calls func(arg). stack
+ * points just past the top of memory the caller set aside for the new
+ * thread's stack. func must not return; it ends the thread by calling
+ * thread_exit().
+ *
+ * Returns the new thread's ID, or -1 if an error occurred.
+ */
+int thread_create(void (*func)(void *), void *arg, void *stack);
+
+/**
+ * Wait for the thread with the specified ID to call thread_exit(), and store
+ * the value it passed in *status (unless status is null). A thread can be
+ * joined only once, and not by itself.
+ *
+ * Returns 0 on success, or -1 if tid is not a joinable thread.
+ */
+int thread_join(int tid, int *status);
+
+/**
+ * End the calling thread, passing status to thread_join(). If this is the
+ * last thread of the process, the process exits with status 0.
+ *
+ * thread_exit() never returns.
+ */
+void thread_exit(int status);
+
+/**
+ * If *addr still equals expected, block until another thread of the process
+ * calls futex_wake() on addr. Checking the value and going to sleep happen
+ * atomically with respect to futex_wake(), which is what makes it possible to
+ * build locks that only enter the kernel under contention.
+ *
+ * Returns 0 after being woken, or -1 if *addr did not equal expected.
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake up to count threads blocked in futex_wait() on addr.
+ *
+ * Returns the number of threads woken.
+ */
+int futex_wake(int *addr, int count);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -246,6 +338,31 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* RESOURCE ACCOUNTING SYSCALLS: getrusage */
+
+/**
+ * Resource counters of a process, filled in by getrusage(). Ticks are
+ * simulated machine ticks; byte counts are what read() and write() returned.
+ */
+struct rusage {
+    int ru_utime;	/* ticks spent in user mode */
+    int ru_stime;	/* ticks spent in the kernel on behalf of the process */
+    int ru_majflt;	/* page faults */
+    int ru_tlbmiss;	/* TLB misses */
+    int ru_swapin;	/* pages read back from swap */
+    int ru_swapout;	/* pages written out to swap */
+    int ru_nsyscall;	/* syscalls made */
+    int ru_inbytes;	/* bytes read */
+    int ru_outbytes;	/* bytes written */
+};
+
+/**
+ * Store the resource counters of the current process in *usage.
+ *
+ * Returns 0 on success, or -1 if usage is not a valid address.
+ */
+int getrusage(struct rusage *usage);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,73 @@
+/*
+ * thread1.c
+ *
+ * Start several threads that each sum part of an array, wait for them
+ * with futex_wait on per-thread "done" flags, then join them and check
+ * the results.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define NTHREADS	4
+#define NVALUES		1000
+#define STACKSIZE	1024
+
+static int values[NTHREADS * NVALUES];
+static int sums[NTHREADS];
+static int done[NTHREADS];
+static char stacks[NTHREADS][STACKSIZE];
+
+static void
+worker (void *arg)
+{
+    int id = (int) arg, i;
+
+    for (i = id * NVALUES; i < (id + 1) * NVALUES; i++)
+	sums[id] += values[i];
+
+    done[id] = 1;
+    futex_wake (&done[id], 1);
+    thread_exit (id);
+}
+
+int
+main (int argc, char *argv[])
+{
+    int tids[NTHREADS], i, status, total = 0;
+
+    for (i = 0; i < NTHREADS * NVALUES; i++)
+	values[i] = 1;
+
+    for (i = 0; i < NTHREADS; i++) {
+	tids[i] = thread_create (worker, (void *) i, stacks[i] + STACKSIZE);
+	if (tids[i] < 0) {
+	    printf ("...failed to create thread %d\n", i);
+	    exit (-1);
+	}
+    }
+
+    /* the kernel rechecks the flag before sleeping, so a wake that
+     * happens between our test and the syscall is not lost */
+    for (i = 0; i < NTHREADS; i++) {
+	while (done[i] == 0)
+	    futex_wait (&done[i], 0);
+	total += sums[i];
+    }
+
+    for (i = 0; i < NTHREADS; i++) {
+	if (thread_join (tids[i], &status) != 0 || status != i) {
+	    printf ("...failed to join thread %d\n", i);
+	    exit (-1);
+	}
+    }
+
+    if (total != NTHREADS * NVALUES) {
+	printf ("...failed (total = %d)\n", total);
+	exit (-1);
+    }
+
+    printf ("...passed\n");
+    return 0;
+}
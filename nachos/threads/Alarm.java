@@ -1,19 +1,21 @@
 package nachos.threads;
 
-import java.util.ArrayDeque;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.PriorityQueue;
-import java.util.Queue;
-
-import javax.management.loading.MLetContent;
 
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a min-heap by wake time, so a timer interrupt
+ * with nobody due only looks at the top of the heap, and putting a thread to
+ * sleep takes O(log n) time. <tt>cancel()</tt> finds the thread's entry
+ * through a map and only marks it cancelled, which takes O(1) time; cancelled
+ * entries are dropped when they reach the top, or all at once when they make
+ * up half the heap.
  */
 public class Alarm {
 	/**
@@ -30,27 +32,30 @@ public class Alarm {
 			}
 		});
 
-		// initialize Wait List
-		this.waitList = new LinkedList<WaitThread>();
+		waitQueue = new PriorityQueue<WaitThread>();
+		sleeping = new IdentityHashMap<KThread, WaitThread>();
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
 	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * should be run, unless the scheduler would rather let it keep running.
 	 */
 	public void timerInterrupt() {
 		Machine.interrupt().disable();
-		Iterator<WaitThread> itr = waitList.iterator();
-		while (itr.hasNext()) {
-			WaitThread thread = itr.next();
-			if (thread.wakeTime <= Machine.timer().getTime()) {
-				thread.currThread.ready();
-				itr.remove();
+		long now = Machine.timer().getTime();
+		while (!waitQueue.isEmpty() && waitQueue.peek().wakeTime <= now) {
+			WaitThread thread = waitQueue.poll();
+			if (thread.cancelled) {
+				numCancelled--;
+				continue;
 			}
+			sleeping.remove(thread.currThread);
+			thread.currThread.ready();
 		}
-		KThread.yield();
+		if (ThreadedKernel.scheduler.shouldPreempt())
+			KThread.yield();
 		Machine.interrupt().enable();
 	}
 
@@ -73,29 +78,46 @@ public class Alarm {
 		long wakeTime = Machine.timer().getTime() + x;
 		WaitThread currWaitThread = new WaitThread(KThread.currentThread(), wakeTime);
 
-		waitList.add(currWaitThread);
+		waitQueue.add(currWaitThread);
+		sleeping.put(currWaitThread.currThread, currWaitThread);
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 	}
 
 	public void printList() {
-		for (WaitThread thr : waitList) {
-			System.out.println("Alarm Class: " + thr.currThread.getName());
+		for (WaitThread thr : waitQueue) {
+			if (!thr.cancelled)
+				System.out.println("Alarm Class: " + thr.currThread.getName());
 		}
 	}
 
-	private class WaitThread {
+	private class WaitThread implements Comparable<WaitThread> {
 		public KThread currThread;
 		public long wakeTime;
+		public long order = numWaits++; // wakes threads due at once in FIFO order
+		public boolean cancelled = false;
 
 		public WaitThread(KThread thread, long x) {
 			this.currThread = thread;
 			this.wakeTime = x;
 		}
+
+		public int compareTo(WaitThread other) {
+			if (wakeTime != other.wakeTime)
+				return wakeTime < other.wakeTime ? -1 : 1;
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
 	}
 
-	// Priority Queue storing threads which are currently waiting
-	private LinkedList<WaitThread> waitList;
+	// min-heap of waiting threads by wake time, including cancelled entries
+	private PriorityQueue<WaitThread> waitQueue;
+
+	// the live entry of every waiting thread
+	private IdentityHashMap<KThread, WaitThread> sleeping;
+
+	private long numWaits = 0;
+
+	private int numCancelled = 0; // cancelled entries still in waitQueue
 
 	// Alarm testing code
 	public static void alarmTest1() {
@@ -123,12 +145,65 @@ public class Alarm {
 		}
 	}
 
+	// many sleepers at once wake in order of wake time, never early
+	public static void alarmTest3() {
+		final int numThreads = 200;
+		final java.util.Random random = new java.util.Random(0);
+		final java.util.ArrayList<Long> wakeTimes = new java.util.ArrayList<Long>();
+		KThread[] threads = new KThread[numThreads];
+
+		for (int i = 0; i < numThreads; i++) {
+			final long duration = 1 + random.nextInt(20000);
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					long wakeTime = Machine.timer().getTime() + duration;
+					ThreadedKernel.alarm.waitUntil(duration);
+					Lib.assertTrue(Machine.timer().getTime() >= wakeTime,
+							"alarmTest3: woke too early");
+					wakeTimes.add(wakeTime);
+				}
+			}).setName("sleeper " + i);
+			threads[i].fork();
+		}
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+
+		// threads woken by one interrupt may run in any order
+		for (int i = 1; i < numThreads; i++)
+			Lib.assertTrue(wakeTimes.get(i) > wakeTimes.get(i - 1) - 2 * Stats.TimerTicks,
+					"alarmTest3: woke out of order");
+		System.out.println("alarmTest3: " + numThreads + " sleepers woke in order");
+	}
+
+	// a cancelled sleeper wakes at once, and only once
+	public static void alarmTest4() {
+		final long[] woke = new long[1];
+		KThread sleeper = new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(1000000);
+				woke[0] = Machine.timer().getTime();
+			}
+		}).setName("cancelled");
+		sleeper.fork();
+
+		ThreadedKernel.alarm.waitUntil(1000);
+		long t0 = Machine.timer().getTime();
+		Lib.assertTrue(ThreadedKernel.alarm.cancel(sleeper));
+		Lib.assertTrue(!ThreadedKernel.alarm.cancel(sleeper));
+		sleeper.join();
+		Lib.assertTrue(woke[0] - t0 < 1000, "alarmTest4: cancel did not wake the thread");
+		System.out.println("alarmTest4: cancelled sleeper woke after "
+				+ (woke[0] - t0) + " ticks");
+	}
+
 	// Invoke Alarm.selfTest() from ThreadedKernel.selfTest()
 	public static void selfTest() {
 		alarmTest1();
 
 		// Invoke other test methods here
 		alarmTest2();
+		alarmTest3();
+		alarmTest4();
 	}
 
 	/**
@@ -143,17 +218,21 @@ public class Alarm {
 	 */
 	public boolean cancel(KThread thread) {
 		boolean intStatus = Machine.interrupt().disable();
-		Iterator<WaitThread> itr = waitList.iterator();
-		while (itr.hasNext()) {
-			WaitThread curr = itr.next();
-			if (curr.currThread == thread) {
-				thread.ready();
-				itr.remove();
-				Machine.interrupt().restore(intStatus);
-				return true;
-			}
+		WaitThread curr = sleeping.remove(thread);
+		if (curr == null) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		curr.cancelled = true;
+		numCancelled++;
+		if (numCancelled > 64 && numCancelled > waitQueue.size() / 2) {
+			// drop the cancelled entries before they crowd out the live ones
+			waitQueue = new PriorityQueue<WaitThread>(sleeping.values());
+			numCancelled = 0;
 		}
+		thread.ready();
 		Machine.interrupt().restore(intStatus);
-		return false;
+		return true;
 	}
 }
@@ -0,0 +1,406 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.IdentityHashMap;
+import java.util.TreeSet;
+
+/**
+ * A scheduler with an earliest-deadline-first real-time class on top of a
+ * best-effort scheduler.
+ *
+ * <p>
+ * A thread joins the real-time class with <tt>admit()</tt>, giving its period,
+ * its relative deadline, and the processor time each job needs. The thread is
+ * admitted only if the real-time threads' densities (time over deadline) add
+ * up to no more than <tt>EDFScheduler.maxUtilization</tt>, 1 by default, which
+ * is the test under which EDF meets every deadline. A real-time thread runs
+ * one job per period and calls <tt>waitForNextPeriod()</tt> when the job is
+ * done. That counts the job as met or missed in <tt>Machine.stats()</tt>, and
+ * sleeps until the next release.
+ *
+ * <p>
+ * Ready real-time threads always run before best-effort ones, earliest
+ * absolute deadline first. A running real-time thread is only preempted by a
+ * real-time thread with an earlier deadline. Everything else is left to the
+ * scheduler named by <tt>EDFScheduler.fallback</tt> (the round-robin
+ * scheduler by default), which never sees the real-time threads.
+ *
+ * <p>
+ * A real-time thread's share of the processor is given back when it finishes.
+ * <tt>leave()</tt> gives it back earlier, returning the thread to the
+ * best-effort class.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler and its fallback scheduler.
+	 */
+	public EDFScheduler() {
+		fallback = (Scheduler) Lib.constructObject(Config.getString(
+				"EDFScheduler.fallback", "nachos.threads.RoundRobinScheduler"));
+		maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 1.0);
+		realTime = new IdentityHashMap<KThread, RealTimeState>();
+	}
+
+	/**
+	 * Allocate a new queue that serves real-time threads by deadline before
+	 * anything the fallback scheduler queues.
+	 *
+	 * @param transferPriority passed on to the fallback scheduler.
+	 * @return a new thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new EDFQueue(fallback.newThreadQueue(transferPriority));
+	}
+
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new EDFQueue(fallback.newReadyQueue());
+		return readyQueue;
+	}
+
+	/**
+	 * Preempt a real-time thread only for a real-time thread with an earlier
+	 * deadline, and a best-effort thread for any real-time thread or whenever
+	 * the fallback scheduler would.
+	 */
+	public boolean shouldPreempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (readyQueue == null)
+			return true;
+
+		RealTimeState state = realTime.get(KThread.currentThread());
+		if (state == null)
+			return !readyQueue.ready.isEmpty() || fallback.shouldPreempt();
+
+		return !readyQueue.ready.isEmpty()
+				&& readyQueue.ready.first().absoluteDeadline < state.absoluteDeadline;
+	}
+
+	public int getPriority(KThread thread) {
+		return fallback.getPriority(thread);
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return fallback.getEffectivePriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		fallback.setPriority(thread, priority);
+	}
+
+	public boolean increasePriority() {
+		return fallback.increasePriority();
+	}
+
+	public boolean decreasePriority() {
+		return fallback.decreasePriority();
+	}
+
+	/**
+	 * Make a thread real-time, or change its parameters if it already is. The
+	 * thread must be the current thread or one that has not been forked yet.
+	 * Its first job is released now.
+	 *
+	 * @param thread   the thread.
+	 * @param period   the ticks between releases of its jobs.
+	 * @param deadline the ticks after its release by which a job must finish,
+	 *                 at most <i>period</i>.
+	 * @param budget   the processor time a job needs, at most <i>deadline</i>.
+	 * @return <tt>true</tt> if the thread was admitted; <tt>false</tt> if the
+	 *         parameters are invalid or the real-time threads would then need
+	 *         more than <tt>maxUtilization</tt> of the processor.
+	 */
+	public boolean admit(KThread thread, long period, long deadline, long budget) {
+		if (budget <= 0 || deadline < budget || period < deadline)
+			return false;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		RealTimeState state = realTime.get(thread);
+		Lib.assertTrue(state == null || state.waitQueue == null);
+
+		double density = (double) budget / deadline;
+		double others = utilization - (state == null ? 0 : state.density);
+		if (others + density > maxUtilization + 1e-9) {
+			numRejected++;
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		if (state == null) {
+			state = new RealTimeState(thread);
+			realTime.put(thread, state);
+		}
+		state.period = period;
+		state.deadline = deadline;
+		state.density = density;
+		state.release = Machine.timer().getTime();
+		state.absoluteDeadline = state.release + deadline;
+		utilization = others + density;
+		numAdmitted++;
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * Return a thread to the best-effort class. Like <tt>admit()</tt>, the
+	 * thread must not be waiting on a queue.
+	 *
+	 * @param thread the thread.
+	 */
+	public void leave(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		RealTimeState state = realTime.remove(thread);
+		if (state != null) {
+			Lib.assertTrue(state.waitQueue == null);
+			utilization -= state.density;
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Finish the current thread's job: count it as met or missed, then sleep
+	 * until the next one is released. If the job ran past the next release,
+	 * the next job is released at once.
+	 */
+	public void waitForNextPeriod() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		RealTimeState state = realTime.get(KThread.currentThread());
+		Lib.assertTrue(state != null, "waitForNextPeriod() from a best-effort thread");
+
+		long now = Machine.timer().getTime();
+		if (now > state.absoluteDeadline) {
+			Machine.stats().numDeadlineMisses++;
+			maxLateness = Math.max(maxLateness, now - state.absoluteDeadline);
+		}
+		else {
+			Machine.stats().numDeadlinesMet++;
+		}
+
+		state.release = Math.max(state.release + state.period, now);
+		state.absoluteDeadline = state.release + state.deadline;
+		long wait = state.release - now;
+
+		Machine.interrupt().restore(intStatus);
+
+		if (wait > 0)
+			ThreadedKernel.alarm.waitUntil(wait);
+	}
+
+	/**
+	 * Return the share of the processor reserved by real-time threads.
+	 */
+	public double getUtilization() {
+		return utilization;
+	}
+
+	/**
+	 * Print the real-time statistics.
+	 */
+	public void print() {
+		System.out.println("EDF: admitted " + numAdmitted + ", rejected "
+				+ numRejected + ", utilization " + Math.round(utilization * 100)
+				+ "%, latest job finished " + maxLateness + " ticks after its deadline");
+	}
+
+	/**
+	 * A queue holding real-time threads by absolute deadline, and handing
+	 * everything else to a queue of the fallback scheduler. A real-time
+	 * thread's deadline only changes while it runs, never while it waits.
+	 */
+	protected class EDFQueue extends ThreadQueue {
+		EDFQueue(ThreadQueue bestEffort) {
+			this.bestEffort = bestEffort;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			RealTimeState state = realTime.get(thread);
+			if (state == null) {
+				bestEffort.waitForAccess(thread);
+				return;
+			}
+			Lib.assertTrue(state.waitQueue == null);
+			ready.add(state);
+			state.waitQueue = this;
+		}
+
+		public void acquire(KThread thread) {
+			bestEffort.acquire(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// a finishing thread gives up the processor through here for
+			// the last time, so drop its reservation
+			KThread current = KThread.currentThread();
+			if (this == readyQueue && current != null && current.isFinished())
+				leave(current);
+
+			if (ready.isEmpty())
+				return bestEffort.nextThread();
+
+			RealTimeState state = ready.pollFirst();
+			state.waitQueue = null;
+			return state.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (RealTimeState state : ready)
+				System.out.print(state.thread + " (deadline "
+						+ state.absoluteDeadline + ") ");
+			bestEffort.print();
+		}
+
+		TreeSet<RealTimeState> ready = new TreeSet<RealTimeState>();
+
+		private ThreadQueue bestEffort;
+	}
+
+	/**
+	 * The parameters and current job of a real-time thread.
+	 */
+	protected static class RealTimeState implements Comparable<RealTimeState> {
+		RealTimeState(KThread thread) {
+			this.thread = thread;
+		}
+
+		public int compareTo(RealTimeState other) {
+			if (absoluteDeadline != other.absoluteDeadline)
+				return absoluteDeadline < other.absoluteDeadline ? -1 : 1;
+			return thread.compareTo(other.thread);
+		}
+
+		KThread thread;
+
+		long period, deadline;
+
+		double density;
+
+		long release; // when the current job was released
+
+		long absoluteDeadline; // when the current job must be done
+
+		EDFQueue waitQueue = null;
+	}
+
+	/**
+	 * Check the admission test, then, with this scheduler running the kernel,
+	 * run three periodic real-time threads next to three CPU-bound best-effort
+	 * threads and check that no job misses its deadline, and that the
+	 * threads' shares are given back when they finish.
+	 */
+	public static void selfTest() {
+		EDFScheduler scheduler = new EDFScheduler();
+		KThread a = new KThread(), b = new KThread(), c = new KThread();
+		Lib.assertTrue(!scheduler.admit(a, 1000, 2000, 100), "deadline past period");
+		Lib.assertTrue(scheduler.admit(a, 1000, 1000, 400));
+		Lib.assertTrue(scheduler.admit(b, 2000, 1000, 400));
+		Lib.assertTrue(!scheduler.admit(c, 4000, 1000, 300), "admitted past 100%");
+		scheduler.leave(a);
+		Lib.assertTrue(scheduler.admit(c, 4000, 1000, 300));
+		Lib.assertTrue(Math.abs(scheduler.getUtilization() - 0.7) < 1e-9);
+
+		if (ThreadedKernel.scheduler instanceof EDFScheduler)
+			deadlineTest((EDFScheduler) ThreadedKernel.scheduler);
+		else
+			System.out.println("EDFScheduler.selfTest: passed");
+	}
+
+	private static void deadlineTest(final EDFScheduler scheduler) {
+		final long[] periods = { 2000, 3000, 5000 };
+		final long[] budgets = { 400, 600, 1000 };
+		final long runTicks = 60000;
+		final boolean[] done = new boolean[1];
+		int met = Machine.stats().numDeadlinesMet;
+		int missed = Machine.stats().numDeadlineMisses;
+		int jobs = 0;
+
+		KThread[] hogs = new KThread[3];
+		for (int i = 0; i < hogs.length; i++) {
+			hogs[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0])
+						spin(Stats.KernelTick);
+				}
+			}).setName("hog " + i);
+			hogs[i].fork();
+		}
+
+		KThread[] periodic = new KThread[periods.length];
+		for (int i = 0; i < periodic.length; i++) {
+			final int n = i;
+			final int numJobs = (int) (runTicks / periods[i]);
+			jobs += numJobs;
+			periodic[i] = new KThread(new Runnable() {
+				public void run() {
+					KThread self = KThread.currentThread();
+					Lib.assertTrue(scheduler.admit(self, periods[n], periods[n], budgets[n]));
+					for (int j = 0; j < numJobs; j++) {
+						spin(budgets[n]);
+						scheduler.waitForNextPeriod();
+					}
+				}
+			}).setName("periodic " + i);
+			periodic[i].fork();
+		}
+
+		// let the periodic threads admit themselves, then try one too many
+		ThreadedKernel.alarm.waitUntil(1);
+		Lib.assertTrue(!scheduler.admit(new KThread(), 1000, 1000, 500),
+				"admitted past 100%");
+
+		for (int i = 0; i < periodic.length; i++)
+			periodic[i].join();
+		Lib.assertTrue(scheduler.getUtilization() < 1e-9,
+				"finished threads still hold their shares");
+		done[0] = true;
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].join();
+
+		met = Machine.stats().numDeadlinesMet - met;
+		missed = Machine.stats().numDeadlineMisses - missed;
+		Lib.assertTrue(met + missed == jobs);
+		Lib.assertTrue(missed == 0, missed + " of " + jobs + " jobs missed their deadlines");
+
+		System.out.println("EDFScheduler.selfTest: passed; " + met
+				+ " jobs of three periodic threads met their deadlines next to three CPU-bound threads");
+		scheduler.print();
+	}
+
+	// use about ticks of processor time
+	private static void spin(long ticks) {
+		for (long i = 0; i < ticks; i += Stats.KernelTick) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+	}
+
+	/** The number of threads admitted to the real-time class. */
+	public long numAdmitted = 0;
+
+	/** The number of threads refused by the admission test. */
+	public long numRejected = 0;
+
+	/** The most ticks any job finished after its deadline. */
+	public long maxLateness = 0;
+
+	private Scheduler fallback;
+
+	private double maxUtilization;
+
+	private double utilization = 0;
+
+	private IdentityHashMap<KThread, RealTimeState> realTime;
+
+	private EDFQueue readyQueue = null;
+}
@@ -0,0 +1,606 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the processor among ready threads in proportion to
+ * their weights, in the manner of the Linux completely fair scheduler.
+ *
+ * <p>
+ * Every thread has a virtual runtime: the ticks it has run, scaled down by its
+ * weight. Ready threads are kept in a balanced tree ordered by virtual
+ * runtime, and the one furthest behind runs next, so over time every thread
+ * gets processor time in proportion to its weight. A thread's weight follows
+ * from its priority, from <tt>priorityMinimum</tt> to <tt>priorityMaximum</tt>;
+ * each step up is worth 25% more processor time.
+ *
+ * <p>
+ * The running thread is charged as it runs by the ready queue, which sees it
+ * start and stop running in the same places <tt>KThread</tt> saves and
+ * restores its state. At a timer interrupt it keeps the processor until it
+ * has had its slice of <tt>FairScheduler.targetLatency</tt> ticks (shared by
+ * weight among the ready threads, but never less than
+ * <tt>FairScheduler.minGranularity</tt>), or until a ready thread is more than
+ * <tt>minGranularity</tt> behind it. A thread that wakes up is placed no more
+ * than half a target latency behind the furthest-behind thread, so sleeping
+ * earns it a prompt turn but not a long one. Among <i>n</i> ready threads of
+ * equal weight, each therefore runs at least once every
+ * <tt>max(targetLatency, n * minGranularity)</tt> ticks or so, however large
+ * <i>n</i> gets.
+ *
+ * <p>
+ * Other queues (locks, semaphores, joins) serve the thread with the least
+ * virtual runtime first and transfer nothing.
+ */
+public class FairScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair scheduler.
+	 */
+	public FairScheduler() {
+		minGranularity = Math.max(1, Config.getInteger(
+				"FairScheduler.minGranularity", Stats.TimerTicks));
+		targetLatency = Math.max(minGranularity, Config.getInteger(
+				"FairScheduler.targetLatency", 4 * Stats.TimerTicks));
+	}
+
+	/**
+	 * Allocate a new queue ordered by virtual runtime.
+	 *
+	 * @param transferPriority ignored; this scheduler does not donate.
+	 * @return a new thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue();
+	}
+
+	/**
+	 * Allocate the ready queue, which also charges threads for the time they
+	 * run.
+	 *
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new ReadyQueue();
+		return readyQueue;
+	}
+
+	public boolean shouldPreempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (readyQueue == null)
+			return true;
+		return readyQueue.shouldPreempt();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+		setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+		setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * Return the number of ticks a thread has spent on the processor. Must be
+	 * called with interrupts disabled.
+	 *
+	 * @param thread the thread.
+	 * @return the ticks it has run.
+	 */
+	public long getRuntime(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (readyQueue != null && readyQueue.running == getThreadState(thread))
+			readyQueue.charge(Machine.timer().getTime());
+		return getThreadState(thread).runtime;
+	}
+
+	/**
+	 * Return the weight of a priority: 1024 at <tt>priorityDefault</tt>, and
+	 * 25% more for each step up.
+	 *
+	 * @param priority the priority.
+	 * @return its weight.
+	 */
+	public static int weightOf(int priority) {
+		return weights[priority - priorityMinimum];
+	}
+
+	/**
+	 * Print the scheduling statistics.
+	 */
+	public void print() {
+		System.out.println("Fair: switches " + numPicks + ", average wait "
+				+ (numPicks == 0 ? 0 : totalWait / numPicks) + " ticks, longest wait "
+				+ maxWait + " ticks, timer interrupts without a switch "
+				+ numSliceExtensions);
+	}
+
+	/**
+	 * The default priority for a new thread.
+	 */
+	public static final int priorityDefault = 20;
+
+	/**
+	 * The minimum priority that a thread can have.
+	 */
+	public static final int priorityMinimum = 0;
+
+	/**
+	 * The maximum priority that a thread can have.
+	 */
+	public static final int priorityMaximum = 39;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A queue that serves the thread with the least virtual runtime first.
+	 * A thread joins a lock, semaphore or join queue while it is still
+	 * running, and is charged for that last stretch only when it goes to
+	 * sleep, so the ready queue takes it out of its tree and puts it back
+	 * whenever its virtual runtime changes.
+	 */
+	protected class FairQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			add(getThreadState(thread));
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (tree.isEmpty())
+				return null;
+			ThreadState state = tree.pollFirst();
+			state.waitQueue = null;
+			totalWeight -= state.weight;
+			return state.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (ThreadState state : tree)
+				System.out.print(state.thread + " (vruntime " + state.vruntime + ") ");
+		}
+
+		void add(ThreadState state) {
+			Lib.assertTrue(state.waitQueue == null);
+
+			tree.add(state);
+			state.waitQueue = this;
+			totalWeight += state.weight;
+		}
+
+		protected TreeSet<ThreadState> tree = new TreeSet<ThreadState>();
+
+		/** The sum of the weights of the waiting threads. */
+		protected long totalWeight = 0;
+	}
+
+	/**
+	 * The ready queue. When the running thread comes back through
+	 * <tt>waitForAccess()</tt> it yielded; when another thread is asked for
+	 * without it coming back, it blocked or finished. Either way it is charged
+	 * for the time it ran.
+	 */
+	protected class ReadyQueue extends FairQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			long now = Machine.timer().getTime();
+			ThreadState state = getThreadState(thread);
+			if (state == running) {
+				charge(now);
+				running = null;
+			}
+			else {
+				// a new or waking thread gets at most half a target latency
+				// of credit for the time it was away
+				long floor = minVruntime - scale(targetLatency / 2, priorityDefault);
+				state.vruntime = Math.max(state.vruntime, floor);
+			}
+			state.readySince = now;
+			add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			Lib.assertTrue(tree.isEmpty());
+
+			long now = Machine.timer().getTime();
+			running = getThreadState(thread);
+			runStart = pickedAt = now;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			long now = Machine.timer().getTime();
+			if (running != null) {
+				charge(now);
+				running = null;
+			}
+
+			KThread thread = super.nextThread();
+			if (thread != null) {
+				running = getThreadState(thread);
+				runStart = pickedAt = now;
+
+				long wait = now - running.readySince;
+				numPicks++;
+				totalWait += wait;
+				maxWait = Math.max(maxWait, wait);
+				updateMinVruntime();
+			}
+			return thread;
+		}
+
+		boolean shouldPreempt() {
+			if (running == null)
+				return true;
+
+			charge(Machine.timer().getTime());
+			if (tree.isEmpty()) {
+				numSliceExtensions++;
+				return false;
+			}
+
+			long slice = Math.max(minGranularity, targetLatency * running.weight
+					/ (totalWeight + running.weight));
+			if (Machine.timer().getTime() - pickedAt >= slice
+					|| running.vruntime - tree.first().vruntime > scale(
+							minGranularity, priorityDefault))
+				return true;
+
+			numSliceExtensions++;
+			return false;
+		}
+
+		// charge the running thread for the time since runStart, moving it
+		// within any queue it is already waiting on
+		void charge(long now) {
+			long delta = now - runStart;
+			FairQueue queue = running.waitQueue;
+			if (queue != null && delta > 0)
+				queue.tree.remove(running);
+			running.runtime += delta;
+			running.vruntime += scale(delta, running.priority);
+			if (queue != null && delta > 0)
+				queue.tree.add(running);
+			runStart = now;
+			updateMinVruntime();
+		}
+
+		// minVruntime follows the least virtual runtime of the running and
+		// ready threads, and never goes back
+		private void updateMinVruntime() {
+			long least = Long.MAX_VALUE;
+			if (running != null)
+				least = running.vruntime;
+			if (!tree.isEmpty())
+				least = Math.min(least, tree.first().vruntime);
+			if (least != Long.MAX_VALUE)
+				minVruntime = Math.max(minVruntime, least);
+		}
+
+		private ThreadState running = null;
+
+		private long runStart = 0; // when running was last charged
+
+		private long pickedAt = 0; // when running got the processor
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState implements Comparable<ThreadState> {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object for a thread, with the
+		 * default priority and the virtual runtime of the thread furthest
+		 * behind.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			vruntime = minVruntime;
+			setPriority(priorityDefault);
+		}
+
+		/**
+		 * Set this thread's priority, and with it its weight.
+		 *
+		 * @param priority the new priority.
+		 */
+		public void setPriority(int priority) {
+			int weight = weightOf(priority);
+			if (waitQueue != null)
+				waitQueue.totalWeight += weight - this.weight;
+			this.priority = priority;
+			this.weight = weight;
+		}
+
+		public int compareTo(ThreadState other) {
+			if (vruntime != other.vruntime)
+				return vruntime < other.vruntime ? -1 : 1;
+			return thread.compareTo(other.thread);
+		}
+
+		protected KThread thread;
+
+		protected int priority;
+
+		protected int weight = 0;
+
+		/**
+		 * The ticks this thread has run, in units of 1/1024 tick at the
+		 * default weight.
+		 */
+		protected long vruntime;
+
+		/** The ticks this thread has run. */
+		protected long runtime = 0;
+
+		private long readySince = 0;
+
+		private FairQueue waitQueue = null;
+	}
+
+	// ticks of processor time as virtual runtime at a priority
+	private static long scale(long ticks, int priority) {
+		return (ticks << 20) / weightOf(priority);
+	}
+
+	/**
+	 * Check the queues with a private scheduler, timing a tree of thousands of
+	 * waiting threads. With this scheduler running the kernel, also check
+	 * that threads blocked on a lock are woken in order of virtual runtime,
+	 * then run three CPU-bound threads of different weights next to a thread
+	 * that sleeps in short bursts, and check that each CPU-bound thread got
+	 * its share and the sleeper got the processor promptly.
+	 */
+	public static void selfTest() {
+		FairScheduler scheduler = new FairScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		int numThreads = 20000;
+		java.util.Random random = new java.util.Random(0);
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		long start = System.nanoTime();
+		for (int i = 0; i < numThreads; i++) {
+			KThread thread = new KThread();
+			scheduler.getThreadState(thread).vruntime = random.nextInt(1000000);
+			queue.waitForAccess(thread);
+		}
+		long previous = -1;
+		for (int i = 0; i < numThreads; i++) {
+			long vruntime = scheduler.getThreadState(queue.nextThread()).vruntime;
+			Lib.assertTrue(vruntime >= previous, "queue out of order");
+			previous = vruntime;
+		}
+		Lib.assertTrue(queue.nextThread() == null);
+		long treeTime = System.nanoTime() - start;
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("FairScheduler.selfTest: " + numThreads
+				+ " threads through one queue in " + treeTime / 1000000 + " ms");
+
+		if (ThreadedKernel.scheduler instanceof FairScheduler) {
+			wakeOrderTest((FairScheduler) ThreadedKernel.scheduler);
+			shareTest((FairScheduler) ThreadedKernel.scheduler);
+		}
+	}
+
+	private static void wakeOrderTest(final FairScheduler scheduler) {
+		final int numThreads = 8;
+		final Lock lock = new Lock();
+		final int[] arrived = new int[1];
+		final int[] order = new int[numThreads];
+		final int[] numWoken = new int[1];
+
+		lock.acquire();
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final int which = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					// threads run for shuffled stretches before they block, so
+					// the order of virtual runtimes is not the order of arrival
+					for (int j = 0; j < 4 * (1 + which * 3 % numThreads); j++) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+					Machine.interrupt().disable();
+					arrived[0]++;
+					lock.acquire();
+					Machine.interrupt().enable();
+
+					order[numWoken[0]++] = which;
+					lock.release();
+				}
+			}).setName("waiter " + i);
+			threads[i].fork();
+		}
+		while (arrived[0] < numThreads)
+			KThread.yield();
+
+		// every thread is now asleep on the lock with its final virtual runtime
+		boolean intStatus = Machine.interrupt().disable();
+		long[] vruntime = new long[numThreads];
+		for (int i = 0; i < numThreads; i++)
+			vruntime[i] = scheduler.getThreadState(threads[i]).vruntime;
+		Machine.interrupt().restore(intStatus);
+
+		lock.release();
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+
+		Lib.assertTrue(numWoken[0] == numThreads);
+		for (int i = 1; i < numThreads; i++)
+			Lib.assertTrue(vruntime[order[i - 1]] <= vruntime[order[i]],
+					"lock waiters woken out of order");
+
+		System.out.println("FairScheduler.selfTest: " + numThreads
+				+ " lock waiters woken in order of virtual runtime");
+	}
+
+	private static void shareTest(FairScheduler scheduler) {
+		final int[] priorities = { priorityDefault, priorityDefault + 5,
+				priorityDefault + 10 };
+		final int numSleeps = 200, sleepTicks = 1000;
+		final boolean[] done = new boolean[1];
+		final long[] lateness = new long[1];
+
+		KThread[] hogs = new KThread[priorities.length];
+		for (int i = 0; i < hogs.length; i++) {
+			hogs[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0]) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+				}
+			}).setName("hog " + i);
+			boolean intStatus = Machine.interrupt().disable();
+			scheduler.setPriority(hogs[i], priorities[i]);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		KThread sleeper = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < numSleeps; i++) {
+					long start = Machine.timer().getTime();
+					ThreadedKernel.alarm.waitUntil(sleepTicks);
+					lateness[0] += Machine.timer().getTime() - start - sleepTicks;
+				}
+			}
+		}).setName("sleeper");
+
+		boolean intStatus = Machine.interrupt().disable();
+		long[] before = new long[hogs.length];
+		for (int i = 0; i < hogs.length; i++)
+			before[i] = scheduler.getRuntime(hogs[i]);
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].fork();
+		sleeper.fork();
+		sleeper.join();
+
+		// each hog's processor time per unit of weight, and Jain's fairness
+		// index over them (1 is perfectly fair)
+		intStatus = Machine.interrupt().disable();
+		double[] share = new double[hogs.length];
+		double sum = 0, sumSquares = 0;
+		for (int i = 0; i < hogs.length; i++) {
+			share[i] = (double) (scheduler.getRuntime(hogs[i]) - before[i])
+					/ weightOf(priorities[i]);
+			sum += share[i];
+			sumSquares += share[i] * share[i];
+		}
+		Machine.interrupt().restore(intStatus);
+		done[0] = true;
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].join();
+
+		double fairness = sum * sum / (hogs.length * sumSquares);
+		long average = lateness[0] / numSleeps;
+		for (int i = 0; i < hogs.length; i++)
+			Lib.assertTrue(Math.abs(share[i] * hogs.length / sum - 1) < 0.2,
+					"a thread did not get its share of the processor");
+		Lib.assertTrue(average < 2 * Stats.TimerTicks, "a sleeping thread waited "
+				+ average + " ticks on average");
+
+		System.out.println("FairScheduler.selfTest: passed; threads weighted "
+				+ weightOf(priorities[0]) + ", " + weightOf(priorities[1]) + " and "
+				+ weightOf(priorities[2]) + " got shares with fairness index "
+				+ (Math.round(fairness * 1000) / 1000.0) + ", a thread sleeping "
+				+ sleepTicks + " ticks woke on average " + average + " ticks late");
+		scheduler.print();
+	}
+
+	// 1024 * 1.25^(priority - priorityDefault)
+	private static final int[] weights = new int[priorityMaximum - priorityMinimum + 1];
+
+	static {
+		for (int i = 0; i < weights.length; i++)
+			weights[i] = (int) Math.max(1, Math.round(1024 * Math.pow(1.25,
+					i + priorityMinimum - priorityDefault)));
+	}
+
+	/** The number of times a thread was given the processor. */
+	public long numPicks = 0;
+
+	/** The total ticks threads spent ready before getting the processor. */
+	public long totalWait = 0;
+
+	/** The longest a thread was ready before getting the processor. */
+	public long maxWait = 0;
+
+	/** The number of timer interrupts that let the running thread go on. */
+	public long numSliceExtensions = 0;
+
+	private int minGranularity, targetLatency;
+
+	private long minVruntime = 0;
+
+	private ReadyQueue readyQueue = null;
+}
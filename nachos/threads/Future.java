@@ -1,58 +1,383 @@
 package nachos.threads;
 
 import java.util.*;
-import java.util.function.IntSupplier;
+import java.util.concurrent.CancellationException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import nachos.machine.*;
 
 /**
  * A <i>Future</i> is a convenient mechanism for using asynchonous
  * operations.
+ *
+ * <p>
+ * A future created from a function runs it as a task on a
+ * <tt>KThreadPool</tt> (the kernel's shared pool unless one is given), so
+ * fanning out many small computations costs pool tasks rather than threads.
+ * <tt>thenApply()</tt>, <tt>thenCompose()</tt> and <tt>allOf()</tt> make
+ * futures that complete from other futures: nothing waits for the inputs;
+ * each input runs the next step as a pool task when it completes.
+ *
+ * <p>
+ * A thread that calls <tt>get()</tt> before the future is done sleeps on a
+ * <tt>Condition2</tt>; <tt>await()</tt> waits the same way, but only up to a
+ * timeout, and says whether the future is done. If
+ * the function has not started yet, <tt>get()</tt> runs it in the calling
+ * thread instead of waiting for a worker. An exception thrown by the function
+ * is thrown again by <tt>get()</tt>, and a cancelled future throws
+ * <tt>CancellationException</tt>.
+ *
+ * <p>
+ * Futures must not be completed or waited for from interrupt handlers.
  */
-public class Future {
-    private KThread thread;
-    private int value;
-    /**
-     * Instantiate a new <i>Future</i>.  The <i>Future</i> will invoke
-     * the supplied <i>function</i> asynchronously in a KThread.  In
-     * particular, the constructor should not block as a consequence
-     * of invoking <i>function</i>.
-     */
-    public Future (IntSupplier function) {
-        thread = new KThread( new Runnable () {
+public class Future<T> {
+	/**
+	 * Instantiate a new <i>Future</i>. The <i>Future</i> will invoke the
+	 * supplied <i>function</i> asynchronously on the kernel's shared
+	 * <tt>KThreadPool</tt>. In particular, the constructor does not block
+	 * as a consequence of invoking <i>function</i>.
+	 *
+	 * @param function the computation.
+	 */
+	public Future(Supplier<T> function) {
+		this(KThreadPool.getDefault(), function);
+	}
+
+	/**
+	 * Instantiate a new <i>Future</i> that invokes <i>function</i> on
+	 * <i>pool</i>.
+	 *
+	 * @param pool     the pool to run on.
+	 * @param function the computation.
+	 */
+	public Future(KThreadPool pool, final Supplier<T> function) {
+		this(pool);
+		task = pool.submit(new Runnable() {
 			public void run() {
-				value = function.getAsInt();
+				if (isDone())
+					return;
+				try {
+					complete(function.get());
+				}
+				catch (RuntimeException e) {
+					fail(e);
+				}
 			}
 		});
-        System.out.println("Time before running: " + " " + Machine.timer().getTime());
-        thread.fork();
-        System.out.println("thread starts running");
+	}
 
-    }
+	// a future completed by a combinator
+	private Future(KThreadPool pool) {
+		this.pool = pool;
+		numCreated++;
+	}
 
-    /**
-     * Return the result of invoking the <i>function</i> passed in to
-     * the <i>Future</i> when it was created.  If the function has not
-     * completed when <i>get</i> is invoked, then the caller is
-     * blocked.  If the function has completed, then <i>get</i>
-     * returns the result of the function.  Note that <i>get</i> may
-     * be called any number of times (potentially by multiple
-     * threads), and it should always return the same value.
-     */
-    public int get() {
-        System.out.println("Time calling get(): " + " " + Machine.timer().getTime());
-	    thread.join();
-        System.out.println(KThread.currentThread().getName() + " thread finish running" + " " + Machine.timer().getTime());
-        return value; 
-    }
+	/**
+	 * Return a future that is already done.
+	 *
+	 * @param value its value.
+	 * @return the future.
+	 */
+	public static <T> Future<T> completed(T value) {
+		Future<T> future = new Future<T>(KThreadPool.getDefault());
+		future.complete(value);
+		return future;
+	}
+
+	/**
+	 * Return the result of invoking the <i>function</i> passed in to the
+	 * <i>Future</i> when it was created. If the function has not completed
+	 * when <i>get</i> is invoked, then the caller is blocked. If the function
+	 * has completed, then <i>get</i> returns the result of the function. Note
+	 * that <i>get</i> may be called any number of times (potentially by
+	 * multiple threads), and it always returns the same value.
+	 *
+	 * @return the value.
+	 */
+	public T get() {
+		// runs the function here if no worker has started it
+		if (task != null)
+			task.join();
+
+		Lock lock = lock();
+		lock.acquire();
+		if (state == statePending)
+			numWaits++;
+		while (state == statePending)
+			condition().sleep();
+		lock.release();
+
+		return result();
+	}
+
+	/**
+	 * Wait up to <i>timeout</i> ticks for this future to be done. This reports
+	 * whether it is done rather than returning its value, since a future can
+	 * complete with <tt>null</tt>. Once it returns <tt>true</tt>,
+	 * <tt>get()</tt> returns (or throws) without waiting.
+	 *
+	 * @param timeout the most ticks to wait.
+	 * @return <tt>true</tt> if the future is done, <tt>false</tt> if the
+	 *         timeout ran out first.
+	 */
+	public boolean await(long timeout) {
+		long deadline = Machine.timer().getTime() + timeout;
+
+		Lock lock = lock();
+		lock.acquire();
+		if (state == statePending)
+			numWaits++;
+		while (state == statePending) {
+			long left = deadline - Machine.timer().getTime();
+			if (left <= 0)
+				break;
+			condition().sleepFor(left);
+		}
+		boolean done = (state != statePending);
+		lock.release();
+
+		return done;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this future has a value, failed, or was
+	 * cancelled.
+	 */
+	public boolean isDone() {
+		return state != statePending;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this future was cancelled.
+	 */
+	public boolean isCancelled() {
+		return state == stateCancelled;
+	}
+
+	/**
+	 * Cancel this future if it is not done. A function that has not started
+	 * will not run; one that is running runs to the end, but its result is
+	 * dropped. Futures made from this one are cancelled too.
+	 *
+	 * @return <tt>true</tt> if this call cancelled the future.
+	 */
+	public boolean cancel() {
+		if (task != null)
+			task.cancel();
+		return finish(stateCancelled, null, null);
+	}
+
+	/**
+	 * Return a future for <i>fn</i> applied to this future's value.
+	 *
+	 * @param fn the function to apply.
+	 * @return the new future.
+	 */
+	public <U> Future<U> thenApply(final Function<? super T, ? extends U> fn) {
+		final Future<U> next = new Future<U>(pool);
+		whenDone(new Runnable() {
+			public void run() {
+				if (next.forward(Future.this)) {
+					try {
+						next.complete(fn.apply(value));
+					}
+					catch (RuntimeException e) {
+						next.fail(e);
+					}
+				}
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Return a future for the future <i>fn</i> makes from this future's value.
+	 *
+	 * @param fn the function making the next future.
+	 * @return a future that completes with the future <i>fn</i> returns.
+	 */
+	public <U> Future<U> thenCompose(final Function<? super T, Future<U>> fn) {
+		final Future<U> next = new Future<U>(pool);
+		whenDone(new Runnable() {
+			public void run() {
+				if (!next.forward(Future.this))
+					return;
+
+				final Future<U> inner;
+				try {
+					inner = fn.apply(value);
+				}
+				catch (RuntimeException e) {
+					next.fail(e);
+					return;
+				}
+				inner.whenDone(new Runnable() {
+					public void run() {
+						if (next.forward(inner))
+							next.complete(inner.value);
+					}
+				});
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Return a future that completes when all of <i>futures</i> have. It
+	 * fails or is cancelled as soon as any of them does.
+	 *
+	 * @param futures the futures to wait for.
+	 * @return a future with a <tt>null</tt> value.
+	 */
+	public static Future<Void> allOf(Future<?>... futures) {
+		final Future<Void> all = new Future<Void>(KThreadPool.getDefault());
+		final int[] remaining = { futures.length };
+		if (futures.length == 0)
+			all.complete(null);
+
+		for (final Future<?> future : futures) {
+			future.whenDone(new Runnable() {
+				public void run() {
+					if (!all.forward(future))
+						return;
+
+					Lock lock = lock();
+					lock.acquire();
+					boolean last = (--remaining[0] == 0);
+					lock.release();
+					if (last)
+						all.complete(null);
+				}
+			});
+		}
+		return all;
+	}
+
+	/**
+	 * Print the future statistics.
+	 */
+	public static void print() {
+		System.out.println("Future: created " + numCreated + ", completed "
+				+ numCompleted + ", waits " + numWaits);
+	}
+
+	// run callback on the pool once this future is done
+	private void whenDone(Runnable callback) {
+		Lock lock = lock();
+		lock.acquire();
+		boolean done = (state != statePending);
+		if (!done) {
+			if (callbacks == null)
+				callbacks = new LinkedList<Runnable>();
+			callbacks.add(callback);
+		}
+		lock.release();
+
+		if (done)
+			pool.submit(callback);
+	}
+
+	// pass a failure or cancellation of source on to this future; return
+	// true if source has a value instead
+	private boolean forward(Future<?> source) {
+		if (source.state == stateDone)
+			return true;
+		finish(source.state, null, source.failure);
+		return false;
+	}
+
+	private boolean complete(T value) {
+		return finish(stateDone, value, null);
+	}
+
+	private boolean fail(RuntimeException failure) {
+		return finish(stateFailed, null, failure);
+	}
+
+	private boolean finish(int state, T value, RuntimeException failure) {
+		Lock lock = lock();
+		lock.acquire();
+		if (this.state != statePending) {
+			lock.release();
+			return false;
+		}
+		this.value = value;
+		this.failure = failure;
+		this.state = state;
+		numCompleted++;
+		if (done != null)
+			done.wakeAll();
+		LinkedList<Runnable> ready = callbacks;
+		callbacks = null;
+		lock.release();
+
+		if (ready != null)
+			for (Runnable callback : ready)
+				pool.submit(callback);
+		return true;
+	}
+
+	private T result() {
+		if (state == stateCancelled)
+			throw new CancellationException();
+		if (state == stateFailed)
+			throw failure;
+		return value;
+	}
+
+	// the condition waiters sleep on, made by the first of them; called with
+	// the lock held
+	private Condition2 condition() {
+		if (done == null)
+			done = new Condition2(lock());
+		return done;
+	}
+
+	// one lock guards every future; made the first time it is needed
+	private static Lock lock() {
+		boolean intStatus = Machine.interrupt().disable();
+		if (futureLock == null)
+			futureLock = new Lock();
+		Machine.interrupt().restore(intStatus);
+		return futureLock;
+	}
+
+	private static final int statePending = 0, stateDone = 1, stateFailed = 2,
+			stateCancelled = 3;
+
+	private static Lock futureLock = null;
+
+	/** The number of futures created. */
+	public static long numCreated = 0;
+
+	/** The number of futures that finished, failed or were cancelled. */
+	public static long numCompleted = 0;
+
+	/** The number of calls that had to wait for a future. */
+	public static long numWaits = 0;
+
+	private KThreadPool pool;
+
+	private KThreadPool.Task task = null; // runs the function, if there is one
+
+	private int state = statePending;
+
+	private T value = null;
+
+	private RuntimeException failure = null;
+
+	private Condition2 done = null;
+
+	private LinkedList<Runnable> callbacks = null;
 
     // test
     public static void test1() {
         System.out.println("======================================");
         System.out.println("Testing Future, #1");
-        IntSupplier testFunc = new IntSupplier() {
+        Supplier<Integer> testFunc = new Supplier<Integer>() {
             private int val = 0;
 
-            public int getAsInt() {
+            public Integer get() {
                 for (int i = 0; i < 1000000000; i++) {
                     val++;
                 }
@@ -60,7 +385,7 @@ public class Future {
             }
         };
 
-        Future testFuture = new Future(testFunc);
+        Future<Integer> testFuture = new Future<Integer>(testFunc);
         int res = testFuture.get();
         System.out.println("Time after running: " + Machine.timer().getTime() + " Result: " + res);
     }
@@ -68,17 +393,17 @@ public class Future {
     public static void test2() {
         System.out.println("======================================");
         System.out.println("Testing Future, #2");
-        IntSupplier testFunc = new IntSupplier() {
+        Supplier<Integer> testFunc = new Supplier<Integer>() {
             private int val = 0;
 
-            public int getAsInt() {
+            public Integer get() {
                 for (int i = 0; i < 1000000000; i++) {
                     val++;
                 }
                 return val;
             }
         };
-        Future testFuture = new Future(testFunc);
+        Future<Integer> testFuture = new Future<Integer>(testFunc);
         KThread t1 = new KThread( new Runnable () {
 			public void run() {
                 int res = testFuture.get();
@@ -98,11 +423,11 @@ public class Future {
         System.out.println("======================================");
         System.out.println("Testing Future, #3");
         // call get() after the future is done, should return result immediately
-        IntSupplier testFunc = new IntSupplier() {
+        Supplier<Integer> testFunc = new Supplier<Integer>() {
             private int val = 0;
 
-            public int getAsInt() {
-                System.out.println("Time when getAsInt() is called: " + Machine.timer().getTime());
+            public Integer get() {
+                System.out.println("Time when get() is called: " + Machine.timer().getTime());
                 for (int j = 0; j < 10; j++) {
                     for (int i = 0; i < 1000000000; i++) {
                         val += val % 2 == 0 ? val : -val;
@@ -111,21 +436,127 @@ public class Future {
                 System.out.println("Time when java-side complex computation is done: " + Machine.timer().getTime());
                 ThreadedKernel.alarm.waitUntil(5000);
 
-                System.out.println("Time right before getAsInt() return: " + Machine.timer().getTime());
+                System.out.println("Time right before get() return: " + Machine.timer().getTime());
                 return val;
             }
         };
-        Future testFuture = new Future(testFunc);
+        Future<Integer> testFuture = new Future<Integer>(testFunc);
         ThreadedKernel.alarm.waitUntil(10000);
         System.out.println("Sleeped 10000 to reach time: " + Machine.timer().getTime());
         int res = testFuture.get();
         System.out.println("Time after running: " + Machine.timer().getTime() + " Result: " + res);
     }
 
+    // fan out many small futures on a small pool and combine them
+    public static void test4() {
+        System.out.println("======================================");
+        System.out.println("Testing Future, #4");
+        KThreadPool pool = new KThreadPool(2);
+        int n = 500;
+        long start = System.nanoTime();
+        List<Future<Integer>> squares = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < n; i++) {
+            final int x = i;
+            squares.add(new Future<Integer>(pool, new Supplier<Integer>() {
+                public Integer get() {
+                    return x * x;
+                }
+            }).thenApply(new Function<Integer, Integer>() {
+                public Integer apply(Integer y) {
+                    return y + 1;
+                }
+            }));
+        }
+        Future.allOf(squares.toArray(new Future<?>[0])).get();
+        long sum = 0;
+        for (Future<Integer> f : squares) {
+            Lib.assertTrue(f.isDone());
+            sum += f.get();
+        }
+        Lib.assertTrue(sum == (long) (n - 1) * n * (2 * n - 1) / 6 + n, "wrong sum " + sum);
+        Lib.assertTrue(pool.getNumWorkers() <= 2);
+        long fanTime = System.nanoTime() - start;
+
+        // thenCompose chains a future made from the value
+        Future<String> composed = Future.completed(6).thenCompose(
+                new Function<Integer, Future<String>>() {
+                    public Future<String> apply(final Integer x) {
+                        return new Future<String>(new Supplier<String>() {
+                            public String get() {
+                                return "" + (x * 7);
+                            }
+                        });
+                    }
+                });
+        Lib.assertTrue(composed.get().equals("42"));
+
+        // a timed wait gives up, and a later one sees the value
+        Future<Integer> slow = new Future<Integer>(new Supplier<Integer>() {
+            public Integer get() {
+                ThreadedKernel.alarm.waitUntil(20000);
+                return 7;
+            }
+        });
+        KThread.yield();
+        long t0 = Machine.timer().getTime();
+        Lib.assertTrue(!slow.await(2000) && !slow.isDone());
+        Lib.assertTrue(Machine.timer().getTime() - t0 >= 2000);
+        Lib.assertTrue(slow.await(100000) && slow.get() == 7);
+
+        // a timed wait on a future of no value still tells done from not
+        Future<Void> none = Future.allOf(slow);
+        Lib.assertTrue(none.await(100000) && none.get() == null);
+
+        // failures and cancellation reach get() and later stages
+        Future<Integer> broken = new Future<Integer>(new Supplier<Integer>() {
+            public Integer get() {
+                throw new IllegalStateException("broken");
+            }
+        });
+        Future<Integer> after = broken.thenApply(new Function<Integer, Integer>() {
+            public Integer apply(Integer x) {
+                return x + 1;
+            }
+        });
+        try {
+            after.get();
+            Lib.assertNotReached("a failure was not passed on");
+        }
+        catch (IllegalStateException e) {
+        }
+        KThreadPool one = new KThreadPool(1);
+        Future<Integer> blocker = new Future<Integer>(one, new Supplier<Integer>() {
+            public Integer get() {
+                ThreadedKernel.alarm.waitUntil(5000);
+                return 1;
+            }
+        });
+        KThread.yield();
+        Future<Integer> queued = new Future<Integer>(one, new Supplier<Integer>() {
+            public Integer get() {
+                Lib.assertNotReached("a cancelled future ran");
+                return 0;
+            }
+        });
+        Lib.assertTrue(queued.cancel() && queued.isCancelled());
+        try {
+            queued.get();
+            Lib.assertNotReached("get() on a cancelled future returned");
+        }
+        catch (CancellationException e) {
+        }
+        Lib.assertTrue(blocker.get() == 1);
+
+        System.out.println("Future test4 passed; " + n + " futures and their "
+                + "continuations on 2 workers in " + fanTime / 1000000 + " ms");
+        Future.print();
+    }
+
     public static void selfTest() {
         test1();
         test2();
         test3();
+        test4();
         // for (int i = 0; i < 1000; i++) {
         //     System.out.println("---------------" + i + "----------------------");
         //     test2();
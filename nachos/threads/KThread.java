@@ -62,7 +62,7 @@ public class KThread {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
 			currentThread = this;
@@ -207,8 +207,10 @@ public class KThread {
 
 		currentThread.status = statusFinished;
 
-		while (!currentThread().parent.isEmpty()) {
-			currentThread().parent.removeFirst().ready();
+		if (currentThread.joinQueue != null) {
+			KThread joiner;
+			while ((joiner = currentThread.joinQueue.nextThread()) != null)
+				joiner.ready();
 		}
 
 		sleep();
@@ -266,6 +268,15 @@ public class KThread {
 		runNextThread();
 	}
 
+	/**
+	 * Return <tt>true</tt> if this thread has called <tt>finish()</tt>, so a
+	 * scheduler can tell a finishing thread from a blocking one when it gives
+	 * up the processor.
+	 */
+	boolean isFinished() {
+		return status == statusFinished;
+	}
+
 	/**
 	 * Moves this thread to the ready state and adds this to the scheduler's
 	 * ready queue.
@@ -293,11 +304,20 @@ public class KThread {
 
 		Lib.assertTrue(this != currentThread);
 
-		if (this.status == statusFinished) return;
-
 		boolean intStatus = Machine.interrupt().disable();
 
-		this.parent.addLast(currentThread());
+		if (this.status == statusFinished) {
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
+
+		// this thread holds its join queue, so a scheduler that transfers
+		// priority lends it the priority of the threads waiting for it
+		if (joinQueue == null) {
+			joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+			joinQueue.acquire(this);
+		}
+		joinQueue.waitForAccess(currentThread());
 
 		// put current thread to sleep, invoke it when the child thread finish (in finish() method)
 		currentThread().sleep();
@@ -315,15 +335,25 @@ public class KThread {
 	 * other threads are blocked.
 	 * 
 	 * <p>
+	 * Unless <tt>KThread.ticklessIdle</tt> is <tt>false</tt>, the idle thread
+	 * does not tick through the time until the next interrupt: it skips the
+	 * clock straight to it.
+	 * 
+	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
+		final boolean tickless = Config.getBoolean("KThread.ticklessIdle", true);
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
-					KThread.yield();
+				while (true) {
+					if (tickless)
+						idle();
+					else
+						KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -333,6 +363,27 @@ public class KThread {
 		idleThread.fork();
 	}
 
+	/**
+	 * Called by the idle thread. Run a ready thread if there is one;
+	 * otherwise, with no thread able to run until an interrupt readies one,
+	 * advance the clock straight to the next interrupt.
+	 */
+	private static void idle() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread nextThread = readyQueue.nextThread();
+		if (nextThread == null) {
+			numIdleSkips++;
+			Machine.interrupt().idle();
+		}
+		else {
+			currentThread.ready();
+			nextThread.run();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
@@ -497,6 +548,70 @@ public class KThread {
 		joinTest2();
 	}
 
+	/**
+	 * Time context switches between two threads yielding to each other,
+	 * threads forked and joined one after another, and as many threads alive
+	 * at once as the TCB backend allows (up to 50000). Compare the TCB
+	 * backends by running it under each <tt>TCB.backend</tt>. This measures
+	 * wall-clock time, so it is not part of <tt>selfTest()</tt>; set
+	 * <tt>KThread.benchmark</tt> to run it.
+	 */
+	public static void benchmark() {
+		final int rounds = 20000;
+		Runnable pingPong = new Runnable() {
+			public void run() {
+				for (int i = 0; i < rounds; i++)
+					KThread.yield();
+			}
+		};
+		KThread ping = new KThread(pingPong).setName("ping");
+		KThread pong = new KThread(pingPong).setName("pong");
+		long start = System.nanoTime();
+		ping.fork();
+		pong.fork();
+		ping.join();
+		pong.join();
+		long pingTime = System.nanoTime() - start;
+
+		int forks = 1000;
+		start = System.nanoTime();
+		for (int i = 0; i < forks; i++) {
+			KThread child = new KThread(new Runnable() {
+				public void run() {
+				}
+			}).setName("child");
+			child.fork();
+			child.join();
+		}
+		long forkTime = System.nanoTime() - start;
+
+		// leave room for the kernel's own threads
+		int wide = Math.min(50000, TCB.getMaxThreads() - 20);
+		final Semaphore gate = new Semaphore(0);
+		KThread[] threads = new KThread[wide];
+		start = System.nanoTime();
+		for (int i = 0; i < wide; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					gate.P();
+				}
+			}).setName("waiter");
+			threads[i].fork();
+		}
+		for (int i = 0; i < wide; i++)
+			gate.V();
+		for (int i = 0; i < wide; i++)
+			threads[i].join();
+		long wideTime = System.nanoTime() - start;
+
+		System.out.println("KThread.benchmark: " + Config.getString("TCB.backend",
+				"monitor") + " backend: " + (2 * rounds) + " yields in "
+				+ pingTime / 1000000 + " ms (" + pingTime / (2 * rounds)
+				+ " ns each), " + forks + " fork/joins in " + forkTime / 1000000
+				+ " ms, " + wide + " threads alive at once in " + wideTime / 1000000
+				+ " ms");
+	}
+
 	private static final char dbgThread = 't';
 
 	/**
@@ -546,6 +661,9 @@ public class KThread {
 
 	private static KThread idleThread = null;
 
+	/** The number of times the idle thread skipped ahead to an interrupt. */
+	public static long numIdleSkips = 0;
+
 	// newly added variables
-	private LinkedList<KThread> parent = new LinkedList<>();
+	private ThreadQueue joinQueue = null; // threads waiting in join()
 }
@@ -0,0 +1,351 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+
+/**
+ * A bounded set of worker threads that run submitted tasks, so that short
+ * pieces of deferred work do not each cost a new <tt>KThread</tt> (and with
+ * it a new TCB and Java thread).
+ *
+ * <p>
+ * Workers are forked as work arrives, up to the pool's limit, and then stay
+ * around waiting for more. A task submitted by a worker goes on that worker's
+ * own deque, which it works through newest first; a task submitted by any
+ * other thread goes on a shared submission queue. A worker with nothing of its
+ * own takes from the submission queue, and failing that steals the oldest
+ * task from another worker's deque.
+ *
+ * <p>
+ * <tt>submit()</tt> only disables interrupts and never blocks, so it may be
+ * called from an interrupt handler. <tt>Task.join()</tt> runs a task that no
+ * worker has started yet in the joining thread, so a task that waits for
+ * tasks it submitted cannot deadlock the pool by occupying every worker.
+ * Tasks that block for a long time (or forever) should get a thread of their
+ * own instead.
+ */
+public class KThreadPool {
+	/**
+	 * Allocate a new pool.
+	 *
+	 * @param maxWorkers the most worker threads the pool will fork.
+	 */
+	public KThreadPool(int maxWorkers) {
+		Lib.assertTrue(maxWorkers > 0);
+
+		workers = new Worker[maxWorkers];
+		submissions = new LinkedList<Task>();
+		idle = new LinkedList<Worker>();
+	}
+
+	/**
+	 * Return the kernel's shared pool, creating it the first time, with
+	 * <tt>KThreadPool.numWorkers</tt> workers (4 by default).
+	 */
+	public static KThreadPool getDefault() {
+		boolean intStatus = Machine.interrupt().disable();
+		if (defaultPool == null)
+			defaultPool = new KThreadPool(Config.getInteger(
+					"KThreadPool.numWorkers", defaultNumWorkers));
+		Machine.interrupt().restore(intStatus);
+
+		return defaultPool;
+	}
+
+	/**
+	 * Queue <i>work</i> to be run by a worker. Never blocks.
+	 *
+	 * @param work the work to run.
+	 * @return a handle on the task.
+	 */
+	public Task submit(Runnable work) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Task task = new Task(work);
+		numSubmitted++;
+		Worker self = currentWorker();
+		if (self != null)
+			self.deque.addLast(task);
+		else
+			submissions.addLast(task);
+
+		if (!idle.isEmpty())
+			idle.removeFirst().thread.ready();
+		else if (numWorkers < workers.length)
+			startWorker();
+
+		Machine.interrupt().restore(intStatus);
+		return task;
+	}
+
+	/**
+	 * Return the number of worker threads forked so far.
+	 */
+	public int getNumWorkers() {
+		return numWorkers;
+	}
+
+	/**
+	 * Print the pool's statistics.
+	 */
+	public void print() {
+		System.out.println("KThreadPool: workers " + numWorkers + ", tasks "
+				+ numSubmitted + ", completed " + numCompleted + ", stolen "
+				+ numStolen + ", run by joiners " + numRunByJoiner);
+	}
+
+	/**
+	 * A submitted piece of work.
+	 */
+	public class Task {
+		Task(Runnable work) {
+			this.work = work;
+		}
+
+		/**
+		 * Wait for this task to finish. If no worker has started it yet, run it
+		 * in the current thread instead.
+		 */
+		public void join() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			if (state == stateNew) {
+				state = stateRunning;
+				numRunByJoiner++;
+				Machine.interrupt().restore(intStatus);
+				execute();
+				return;
+			}
+
+			while (state == stateRunning) {
+				waiters.add(KThread.currentThread());
+				KThread.sleep();
+			}
+
+			Machine.interrupt().restore(intStatus);
+		}
+
+		/**
+		 * Return <tt>true</tt> if this task has finished or was cancelled.
+		 */
+		public boolean isDone() {
+			return state == stateDone || state == stateCancelled;
+		}
+
+		/**
+		 * Cancel this task if it has not started.
+		 *
+		 * @return <tt>true</tt> if the task will now never run.
+		 */
+		public boolean cancel() {
+			boolean intStatus = Machine.interrupt().disable();
+			boolean cancelled = (state == stateNew);
+			if (cancelled)
+				state = stateCancelled;
+			Machine.interrupt().restore(intStatus);
+
+			return cancelled;
+		}
+
+		// run the work, then wake whoever is waiting for it; the caller has
+		// claimed the task
+		void execute() {
+			work.run();
+
+			boolean intStatus = Machine.interrupt().disable();
+			state = stateDone;
+			numCompleted++;
+			for (KThread waiter : waiters)
+				waiter.ready();
+			waiters.clear();
+			Machine.interrupt().restore(intStatus);
+		}
+
+		private Runnable work;
+
+		private int state = stateNew;
+
+		private LinkedList<KThread> waiters = new LinkedList<KThread>();
+	}
+
+	/**
+	 * A worker thread and its deque of tasks.
+	 */
+	private class Worker implements Runnable {
+		public void run() {
+			while (true) {
+				boolean intStatus = Machine.interrupt().disable();
+				Task task = nextTask(this);
+				while (task == null) {
+					idle.add(this);
+					KThread.sleep();
+					task = nextTask(this);
+				}
+				task.state = stateRunning;
+				Machine.interrupt().restore(intStatus);
+
+				task.execute();
+			}
+		}
+
+		KThread thread;
+
+		ArrayDeque<Task> deque = new ArrayDeque<Task>();
+	}
+
+	// fork another worker; called with interrupts disabled
+	private void startWorker() {
+		Worker worker = new Worker();
+		worker.thread = new KThread(worker).setName("pool worker " + numWorkers);
+		workers[numWorkers++] = worker;
+		worker.thread.fork();
+	}
+
+	private Worker currentWorker() {
+		KThread current = KThread.currentThread();
+		for (int i = 0; i < numWorkers; i++)
+			if (workers[i].thread == current)
+				return workers[i];
+		return null;
+	}
+
+	// the next task for a worker to run: its own newest, else the oldest
+	// submission, else another worker's oldest; skips tasks a joiner ran or
+	// that were cancelled. Called with interrupts disabled
+	private Task nextTask(Worker self) {
+		Task task;
+		while ((task = self.deque.pollLast()) != null)
+			if (task.state == stateNew)
+				return task;
+		while ((task = submissions.pollFirst()) != null)
+			if (task.state == stateNew)
+				return task;
+		for (int i = 0; i < numWorkers; i++) {
+			if (workers[i] == self)
+				continue;
+			while ((task = workers[i].deque.pollFirst()) != null) {
+				if (task.state == stateNew) {
+					numStolen++;
+					return task;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Run a thousand small tasks through a pool and compare against forking a
+	 * thread for each, then split a sum recursively into tasks that wait for
+	 * their halves, on a pool with fewer workers than waiting tasks.
+	 */
+	public static void selfTest() {
+		final int numTasks = 1000;
+		final int[] count = new int[1];
+		Runnable increment = new Runnable() {
+			public void run() {
+				count[0]++;
+			}
+		};
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numTasks; i++) {
+			KThread thread = new KThread(increment).setName("one-shot");
+			thread.fork();
+			thread.join();
+		}
+		long forkTime = System.nanoTime() - start;
+
+		KThreadPool pool = new KThreadPool(4);
+		Task[] tasks = new Task[numTasks];
+		start = System.nanoTime();
+		for (int i = 0; i < numTasks; i++)
+			tasks[i] = pool.submit(increment);
+		for (int i = 0; i < numTasks; i++)
+			tasks[i].join();
+		long poolTime = System.nanoTime() - start;
+		Lib.assertTrue(count[0] == 2 * numTasks, "a task did not run");
+		Lib.assertTrue(pool.getNumWorkers() <= 4);
+
+		Task never = pool.submit(increment);
+		Lib.assertTrue(never.cancel() && never.isDone());
+		never.join();
+		Lib.assertTrue(count[0] == 2 * numTasks, "a cancelled task ran");
+
+		// each task sums half its range itself and hands the other half to
+		// the pool, so most of them wait on a task of their own
+		KThreadPool small = new KThreadPool(2);
+		long[] total = new long[1];
+		small.submit(new Sum(small, 0, 4096, total)).join();
+		Lib.assertTrue(total[0] == 4095L * 4096 / 2, "recursive sum went wrong");
+		Lib.assertTrue(small.numStolen > 0, "no task was stolen");
+
+		System.out.println("KThreadPool.selfTest: passed; " + numTasks
+				+ " tasks on fresh threads in " + forkTime / 1000000 + " ms, on "
+				+ pool.getNumWorkers() + " pooled workers in " + poolTime / 1000000
+				+ " ms");
+		pool.print();
+		small.print();
+	}
+
+	private static class Sum implements Runnable {
+		Sum(KThreadPool pool, int from, int to, long[] result) {
+			this.pool = pool;
+			this.from = from;
+			this.to = to;
+			this.result = result;
+		}
+
+		public void run() {
+			if (to - from <= 16) {
+				long sum = 0;
+				for (int i = from; i < to; i++)
+					sum += i;
+				result[0] = sum;
+				return;
+			}
+
+			int middle = (from + to) / 2;
+			long[] upper = new long[1];
+			Task task = pool.submit(new Sum(pool, middle, to, upper));
+			new Sum(pool, from, middle, result).run();
+			KThread.yield(); // give an idle worker a chance to steal
+			task.join();
+			result[0] += upper[0];
+		}
+
+		private KThreadPool pool;
+
+		private int from, to;
+
+		private long[] result;
+	}
+
+	private static final int defaultNumWorkers = 4;
+
+	private static final int stateNew = 0, stateRunning = 1, stateDone = 2,
+			stateCancelled = 3;
+
+	private static KThreadPool defaultPool = null;
+
+	/** The number of tasks submitted. */
+	public long numSubmitted = 0;
+
+	/** The number of tasks that ran to completion. */
+	public long numCompleted = 0;
+
+	/** The number of tasks a worker took from another worker's deque. */
+	public long numStolen = 0;
+
+	/** The number of tasks run by the thread that joined them. */
+	public long numRunByJoiner = 0;
+
+	private Worker[] workers;
+
+	private int numWorkers = 0;
+
+	private LinkedList<Task> submissions; // tasks submitted by non-workers
+
+	private LinkedList<Worker> idle; // workers asleep waiting for tasks
+}
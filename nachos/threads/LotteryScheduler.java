@@ -8,23 +8,32 @@ import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ *
+ * <p>
+ * Here a thread's priority is its number of tickets, from 1 to
+ * <tt>Integer.MAX_VALUE</tt>, and its effective priority is its own tickets
+ * plus everything donated to it. Each queue keeps the tickets of its waiting
+ * threads in a Fenwick (binary indexed) tree over slots, so adding a thread,
+ * changing its tickets and drawing a winner all take O(log n) time. Donations
+ * are passed down a chain of owners as differences, without rescanning any
+ * queue.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -35,13 +44,406 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) getLotteryState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(Integer.MAX_VALUE,
+				getLotteryState(thread).effective);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= ticketsMinimum && priority <= ticketsMaximum);
+
+		LotteryState state = getLotteryState(thread);
+		long delta = priority - state.tickets;
+		state.tickets = priority;
+		propagate(state, delta);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The fewest tickets a thread can hold.
+	 */
+	public static final int ticketsMinimum = 1;
+
+	/**
+	 * The most tickets a thread can hold of its own. Donations can take its
+	 * effective count higher.
+	 */
+	public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * Add <i>delta</i> tickets to the effective count of <i>state</i>, and
+	 * pass the change on to the queue it waits on and that queue's owner, and
+	 * so on. A thread already visited stops the walk, so that a cycle of
+	 * threads waiting for each other cannot make it go on forever.
+	 */
+	private void propagate(LotteryState state, long delta) {
+		long epoch = ++numPropagations;
+		while (state != null && delta != 0 && state.visited != epoch) {
+			state.visited = epoch;
+			state.effective += delta;
+
+			LotteryQueue queue = state.waitingOn;
+			if (queue == null)
+				break;
+			queue.changeTickets(state, delta);
+			if (!queue.transferPriority || queue.owner == null)
+				break;
+			queue.owner.donated += delta;
+			state = queue.owner;
+		}
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that chooses threads by lottery.
+	 *
+	 * <p>
+	 * Each waiting thread has a slot. A Fenwick tree over the slots holds
+	 * partial sums of their tickets, so the winner of a draw between 0 and the
+	 * total is found by walking down the tree. Freed slots are reused, and the
+	 * tree doubles in size when it is full.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getLotteryState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			if (numFree == 0)
+				grow();
+			int slot = freeSlots[--numFree];
+			slots[slot] = state;
+			state.slot = slot;
+			state.waitingOn = this;
+			size++;
+
+			add(slot, state.effective);
+			total += state.effective;
+			if (transferPriority && owner != null) {
+				owner.donated += state.effective;
+				propagate(owner, state.effective);
+			}
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			setOwner(getLotteryState(thread));
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// the owner is giving up whatever this queue guards
+			setOwner(null);
+
+			if (size == 0)
+				return null;
+
+			LotteryState winner = draw();
+			long tickets = winner.effective;
+			add(winner.slot, -tickets);
+			total -= tickets;
+			slots[winner.slot] = null;
+			freeSlots[numFree++] = winner.slot;
+			winner.waitingOn = null;
+			winner.slot = -1;
+			size--;
+
+			setOwner(winner);
+			return winner.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + "(" + slots[i].effective
+							+ ") ");
+			}
+		}
+
+		/**
+		 * Return the total number of tickets held by the waiting threads.
+		 */
+		public long getTotalTickets() {
+			return total;
+		}
+
+		/**
+		 * Record that a waiting thread's effective tickets changed by
+		 * <i>delta</i>. Called by <tt>propagate()</tt>, which passes the
+		 * change on to the owner.
+		 */
+		void changeTickets(LotteryState state, long delta) {
+			add(state.slot, delta);
+			total += delta;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads.
+		 */
+		private LotteryState draw() {
+			long winning = (long) (Lib.random() * total);
+			if (winning >= total)
+				winning = total - 1;
+
+			// find the first slot whose prefix sum is more than winning
+			int pos = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				if (pos + step <= slots.length && tree[pos + step] <= winning) {
+					pos += step;
+					winning -= tree[pos];
+				}
+			}
+			Lib.assertTrue(slots[pos] != null);
+			return slots[pos];
+		}
+
+		private void add(int slot, long delta) {
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Double the number of slots, rebuilding the tree in linear time.
+		 */
+		private void grow() {
+			int oldLength = slots.length;
+			int length = Math.max(8, 2 * oldLength);
+			slots = java.util.Arrays.copyOf(slots, length);
+
+			tree = new long[length + 1];
+			for (int i = 1; i <= length; i++) {
+				if (slots[i - 1] != null)
+					tree[i] += slots[i - 1].effective;
+				int parent = i + (i & -i);
+				if (parent <= length)
+					tree[parent] += tree[i];
+			}
+
+			freeSlots = new int[length];
+			numFree = 0;
+			for (int i = length - 1; i >= oldLength; i--)
+				freeSlots[numFree++] = i;
+		}
+
+		/**
+		 * Make <i>state</i> the owner of this queue, moving the donation of
+		 * the waiting threads' tickets from the old owner to the new one.
+		 */
+		private void setOwner(LotteryState state) {
+			if (!transferPriority || owner == state)
+				return;
+
+			if (owner != null) {
+				LotteryState old = owner;
+				owner = null;
+				old.donated -= total;
+				propagate(old, -total);
+			}
+			owner = state;
+			if (owner != null) {
+				owner.donated += total;
+				propagate(owner, total);
+			}
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		private LotteryState owner = null;
+
+		private LotteryState[] slots = new LotteryState[0];
+
+		private long[] tree = new long[1]; // 1-based Fenwick tree over slots
+
+		private int[] freeSlots = new int[0];
+
+		private int numFree = 0, size = 0;
+
+		private long total = 0;
 	}
+
+	/**
+	 * The scheduling state of a thread under a lottery scheduler.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets the thread holds of its own. */
+		protected long tickets = priorityDefault;
+
+		/** The tickets donated by the queues the thread owns. */
+		protected long donated = 0;
+
+		/** <tt>tickets + donated</tt>, as counted by the queue it waits on. */
+		protected long effective = priorityDefault;
+
+		LotteryQueue waitingOn = null;
+
+		int slot = -1;
+
+		long visited = 0; // the last propagate() that reached this thread
+	}
+
+	/**
+	 * Check that threads win in proportion to their tickets among hundreds of
+	 * runnable threads, that tickets donated through a chain of locks add up
+	 * past the priority scheduler's range, and time the draws.
+	 */
+	public static void selfTest() {
+		LotteryScheduler scheduler = new LotteryScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		// a ready queue of threads holding 1 to 300 tickets
+		int numThreads = 300, numDraws = 300000;
+		ThreadQueue ready = scheduler.newThreadQueue(false);
+		KThread[] threads = new KThread[numThreads];
+		java.util.HashMap<KThread, Integer> index = new java.util.HashMap<KThread, Integer>();
+		long totalTickets = 0;
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread();
+			index.put(threads[i], i);
+			scheduler.setPriority(threads[i], i + 1);
+			totalTickets += i + 1;
+			ready.waitForAccess(threads[i]);
+		}
+
+		long[] wins = new long[numThreads];
+		long start = System.nanoTime();
+		for (int n = 0; n < numDraws; n++) {
+			KThread winner = ready.nextThread();
+			wins[index.get(winner)]++;
+			ready.waitForAccess(winner);
+		}
+		long drawTime = System.nanoTime() - start;
+
+		// compare the share of each third of the threads with its tickets
+		for (int third = 0; third < 3; third++) {
+			long won = 0, held = 0;
+			for (int i = third * numThreads / 3; i < (third + 1) * numThreads / 3; i++) {
+				won += wins[i];
+				held += i + 1;
+			}
+			double share = (double) won / numDraws;
+			double expected = (double) held / totalTickets;
+			Lib.assertTrue(Math.abs(share - expected) < 0.01,
+					"lottery share " + share + " should be " + expected);
+		}
+
+		// a chain: thread i waits for a lock held by thread i + 1
+		int depth = 500;
+		KThread[] chain = new KThread[depth];
+		ThreadQueue[] locks = new ThreadQueue[depth];
+		for (int i = 0; i < depth; i++) {
+			chain[i] = new KThread();
+			scheduler.setPriority(chain[i], 1000000);
+		}
+		for (int i = depth - 2; i >= 0; i--) {
+			locks[i] = scheduler.newThreadQueue(true);
+			locks[i].acquire(chain[i + 1]);
+			locks[i].waitForAccess(chain[i]);
+		}
+		Lib.assertTrue(scheduler.getEffectivePriority(chain[depth - 1]) == depth * 1000000);
+		scheduler.setPriority(chain[0], 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(chain[depth - 1]) == (depth - 1) * 1000000 + 1);
+
+		// releasing a lock takes the donation back
+		Lib.assertTrue(locks[depth - 2].nextThread() == chain[depth - 2]);
+		Lib.assertTrue(scheduler.getEffectivePriority(chain[depth - 1]) == 1000000);
+		Lib.assertTrue(scheduler.getEffectivePriority(chain[depth - 2]) == (depth - 2) * 1000000 + 1);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("LotteryScheduler.selfTest: passed; " + numDraws
+				+ " draws among " + numThreads + " threads in "
+				+ drawTime / 1000000 + " ms");
+	}
+
+	private long numPropagations = 0;
 }
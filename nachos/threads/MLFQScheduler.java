@@ -0,0 +1,539 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Threads sit on one of <tt>MLFQScheduler.numLevels</tt> levels, and the
+ * processor always goes to the first ready thread on the highest level, round
+ * robin within a level. Every thread starts on the top level. A thread that
+ * runs for a full quantum at its level, counting every stretch it ran there
+ * since it last blocked, drops one level; a thread that blocks (on a lock, a
+ * semaphore, the alarm, the console) rises one. So threads that compute for a
+ * long time sink to the bottom and threads that mostly wait for input stay at
+ * the top, where they run as soon as they wake. Every
+ * <tt>MLFQScheduler.boostInterval</tt> ticks all threads are put back on the
+ * top level, so nothing starves at the bottom for long.
+ *
+ * <p>
+ * The quantum on level <i>i</i> is <tt>MLFQScheduler.quantum</tt> ticks (one
+ * timer interrupt by default) times 2<sup><i>i</i></sup>, unless
+ * <tt>MLFQScheduler.quanta</tt> lists them, comma-separated. The quanta are
+ * enforced by the timer interrupt: <tt>Alarm.timerInterrupt()</tt> asks
+ * <tt>shouldPreempt()</tt>, which only lets the current thread go on running
+ * while its quantum lasts and no higher level has a thread ready.
+ *
+ * <p>
+ * A thread's priority is its level counted from the bottom, so the top level
+ * has priority <tt>numLevels - 1</tt>. Other queues (locks, semaphores, joins)
+ * also serve higher levels first, but transfer no priority: the periodic
+ * boost is what eventually gets a thread holding a lock back on the
+ * processor.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Math.max(1, Config.getInteger("MLFQScheduler.numLevels",
+				defaultNumLevels));
+		quanta = new long[numLevels];
+
+		String list = Config.getString("MLFQScheduler.quanta", null);
+		if (list != null) {
+			String[] values = list.split(",");
+			Lib.assertTrue(values.length == numLevels,
+					"MLFQScheduler.quanta must list one quantum per level");
+			for (int i = 0; i < numLevels; i++)
+				quanta[i] = Long.parseLong(values[i].trim());
+		}
+		else {
+			long quantum = Config.getInteger("MLFQScheduler.quantum",
+					Stats.TimerTicks);
+			for (int i = 0; i < numLevels; i++)
+				quanta[i] = quantum << i;
+		}
+		for (int i = 0; i < numLevels; i++)
+			Lib.assertTrue(quanta[i] > 0, "MLFQScheduler quanta must be positive");
+
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				defaultBoostInterval);
+	}
+
+	/**
+	 * Allocate a new queue that serves higher levels first.
+	 *
+	 * @param transferPriority ignored; this scheduler does not donate.
+	 * @return a new thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new LevelQueue();
+	}
+
+	/**
+	 * Allocate the ready queue, which also keeps track of how long each thread
+	 * runs.
+	 *
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new ReadyQueue();
+		return readyQueue;
+	}
+
+	public boolean shouldPreempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (readyQueue == null)
+			return true;
+		return readyQueue.shouldPreempt();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(priority >= 0 && priority < numLevels);
+
+		getThreadState(thread).setLevel(numLevels - 1 - priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		int priority = getPriority(thread);
+		if (priority == numLevels - 1) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+		setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		int priority = getPriority(thread);
+		if (priority == 0) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+		setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * Return the number of levels.
+	 */
+	public int getNumLevels() {
+		return numLevels;
+	}
+
+	/**
+	 * Print the scheduling statistics.
+	 */
+	public void print() {
+		System.out.println("MLFQ: demotions " + numDemotions + ", promotions "
+				+ numPromotions + ", boosts " + numBoosts
+				+ ", timer interrupts without a switch " + numQuantumExtensions);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A queue with a FIFO list per level, served from the top level down.
+	 */
+	protected class LevelQueue extends ThreadQueue {
+		LevelQueue() {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			LinkedList<ThreadState>[] lists = new LinkedList[numLevels];
+			levels = lists;
+			for (int i = 0; i < numLevels; i++)
+				levels[i] = new LinkedList<ThreadState>();
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			add(getThreadState(thread));
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++) {
+				if (!levels[i].isEmpty()) {
+					ThreadState state = levels[i].removeFirst();
+					state.waitQueue = null;
+					size--;
+					return state.thread;
+				}
+			}
+			return null;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++)
+				for (ThreadState state : levels[i])
+					System.out.print(state.thread + " (level " + i + ") ");
+		}
+
+		void add(ThreadState state) {
+			Lib.assertTrue(state.waitQueue == null);
+
+			int level = state.getLevel();
+			levels[level].add(state);
+			state.waitQueue = this;
+			state.queuedLevel = level;
+			size++;
+		}
+
+		void remove(ThreadState state) {
+			levels[state.queuedLevel].remove(state);
+			state.waitQueue = null;
+			size--;
+		}
+
+		/** True if a thread is waiting on a level above <i>level</i>. */
+		boolean hasWaiterAbove(int level) {
+			for (int i = 0; i < level; i++)
+				if (!levels[i].isEmpty())
+					return true;
+			return false;
+		}
+
+		protected LinkedList<ThreadState>[] levels;
+
+		protected int size = 0;
+	}
+
+	/**
+	 * The ready queue. Besides choosing the next thread, it charges the
+	 * running thread for the time it ran: when the thread comes back through
+	 * <tt>waitForAccess()</tt> it yielded, and is demoted if it has used up its
+	 * quantum; when the queue is asked for another thread without the running
+	 * one coming back first, it blocked, and is promoted.
+	 */
+	protected class ReadyQueue extends LevelQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state == running) {
+				charge(Machine.timer().getTime());
+				if (state.used >= quanta[state.level]) {
+					if (state.level < numLevels - 1) {
+						state.level++;
+						numDemotions++;
+					}
+					state.used = 0;
+				}
+				running = null;
+			}
+			add(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			Lib.assertTrue(size == 0);
+
+			startRunning(getThreadState(thread), Machine.timer().getTime());
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			long now = Machine.timer().getTime();
+			boost(now);
+			if (running != null) {
+				// the running thread is leaving the processor without being
+				// ready again: it blocked or finished
+				ThreadState state = running;
+				charge(now);
+				if (state.level > 0) {
+					state.level--;
+					numPromotions++;
+				}
+				state.used = 0;
+				running = null;
+			}
+
+			KThread thread = super.nextThread();
+			if (thread != null)
+				startRunning(getThreadState(thread), now);
+			return thread;
+		}
+
+		boolean shouldPreempt() {
+			long now = Machine.timer().getTime();
+			boost(now);
+			if (running == null)
+				return true;
+
+			charge(now);
+			if (running.used >= quanta[running.level]
+					|| hasWaiterAbove(running.level))
+				return true;
+
+			numQuantumExtensions++;
+			return false;
+		}
+
+		private void startRunning(ThreadState state, long now) {
+			state.getLevel();
+			running = state;
+			runStart = now;
+		}
+
+		// add the time since runStart to the running thread's quantum
+		private void charge(long now) {
+			running.getLevel();
+			running.used += now - runStart;
+			runStart = now;
+		}
+
+		// every boostInterval ticks, move every thread to the top level
+		private void boost(long now) {
+			if (boostInterval <= 0 || now - lastBoost < boostInterval)
+				return;
+
+			if (running != null)
+				charge(now);
+			boostEpoch++;
+			lastBoost = now;
+			numBoosts++;
+
+			for (int i = 1; i < numLevels; i++) {
+				for (ThreadState state : levels[i])
+					state.queuedLevel = 0;
+				levels[0].addAll(levels[i]);
+				levels[i].clear();
+			}
+		}
+
+		private ThreadState running = null;
+
+		private long runStart = 0;
+
+		private long lastBoost = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and how much of that
+	 * level's quantum it has used.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object for a thread, on the top
+		 * level.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			epoch = boostEpoch;
+		}
+
+		/**
+		 * Return this thread's level, first moving it to the top if there has
+		 * been a boost since it was last looked at.
+		 *
+		 * @return the thread's level, 0 being the top.
+		 */
+		public int getLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				used = 0;
+			}
+			return level;
+		}
+
+		/**
+		 * Move this thread to a level, with a fresh quantum.
+		 *
+		 * @param level the new level.
+		 */
+		public void setLevel(int level) {
+			getLevel();
+			LevelQueue queue = waitQueue;
+			if (queue != null)
+				queue.remove(this);
+			this.level = level;
+			used = 0;
+			if (queue != null)
+				queue.add(this);
+		}
+
+		protected KThread thread;
+
+		/** The thread's level, 0 being the top. */
+		protected int level = 0;
+
+		/** The ticks this thread has run at its level since it last blocked. */
+		protected long used = 0;
+
+		private long epoch; // the boost this state has caught up with
+
+		private LevelQueue waitQueue = null;
+
+		private int queuedLevel;
+	}
+
+	/**
+	 * Check the queues with a private scheduler, then, whatever scheduler is
+	 * running the kernel, measure how late a thread that sleeps in short
+	 * bursts gets back on the processor while CPU-bound threads run. With this
+	 * scheduler the CPU-bound threads must have sunk below it, and it must get
+	 * the processor within about a timer interrupt of waking up.
+	 */
+	public static void selfTest() {
+		MLFQScheduler scheduler = new MLFQScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread[] threads = new KThread[scheduler.numLevels * 3];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread();
+			scheduler.setPriority(threads[i], i % scheduler.numLevels);
+			queue.waitForAccess(threads[i]);
+		}
+		scheduler.setPriority(threads[0], scheduler.numLevels - 1);
+		int previous = scheduler.numLevels;
+		for (int i = 0; i < threads.length; i++) {
+			KThread next = queue.nextThread();
+			int priority = scheduler.getPriority(next);
+			Lib.assertTrue(priority <= previous, "levels served out of order");
+			previous = priority;
+		}
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+
+		responseTest();
+	}
+
+	private static void responseTest() {
+		final int numHogs = 4, numSleeps = 50, sleepTicks = 1000;
+		final boolean[] done = new boolean[1];
+		final long[] lateness = new long[1];
+		MLFQScheduler mlfq = null;
+		if (ThreadedKernel.scheduler instanceof MLFQScheduler)
+			mlfq = (MLFQScheduler) ThreadedKernel.scheduler;
+		long boosts = mlfq == null ? 0 : mlfq.numBoosts;
+
+		KThread[] hogs = new KThread[numHogs];
+		for (int i = 0; i < numHogs; i++) {
+			hogs[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0]) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+				}
+			}).setName("hog " + i);
+			hogs[i].fork();
+		}
+
+		KThread interactive = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < numSleeps; i++) {
+					long start = Machine.timer().getTime();
+					ThreadedKernel.alarm.waitUntil(sleepTicks);
+					lateness[0] += Machine.timer().getTime() - start - sleepTicks;
+				}
+			}
+		}).setName("interactive");
+		interactive.fork();
+		interactive.join();
+
+		int[] hogLevels = new int[numHogs];
+		if (mlfq != null) {
+			boolean intStatus = Machine.interrupt().disable();
+			for (int i = 0; i < numHogs; i++)
+				hogLevels[i] = mlfq.getThreadState(hogs[i]).getLevel();
+			Machine.interrupt().restore(intStatus);
+		}
+		done[0] = true;
+		for (int i = 0; i < numHogs; i++)
+			hogs[i].join();
+
+		long average = lateness[0] / numSleeps;
+		if (mlfq != null) {
+			Lib.assertTrue(average < 2 * Stats.TimerTicks,
+					"an interactive thread waited " + average + " ticks on average");
+			if (mlfq.numLevels > 1)
+				for (int i = 0; i < numHogs; i++)
+					Lib.assertTrue(hogLevels[i] > 0, "a CPU-bound thread was not demoted");
+			if (mlfq.boostInterval > 0
+					&& numSleeps * sleepTicks > 2 * mlfq.boostInterval)
+				Lib.assertTrue(mlfq.numBoosts > boosts, "threads were never boosted");
+		}
+
+		System.out.println("MLFQScheduler.selfTest: passed; with " + numHogs
+				+ " CPU-bound threads, a thread sleeping " + sleepTicks
+				+ " ticks woke on average " + average + " ticks late");
+		if (mlfq != null)
+			mlfq.print();
+	}
+
+	private static final int defaultNumLevels = 4;
+
+	private static final int defaultBoostInterval = 40 * Stats.TimerTicks;
+
+	/** The number of threads that used up a quantum and dropped a level. */
+	public long numDemotions = 0;
+
+	/** The number of threads that blocked and rose a level. */
+	public long numPromotions = 0;
+
+	/** The number of times every thread was moved to the top level. */
+	public long numBoosts = 0;
+
+	/** The number of timer interrupts that let the running thread go on. */
+	public long numQuantumExtensions = 0;
+
+	private int numLevels;
+
+	private long[] quanta;
+
+	private int boostInterval;
+
+	private long boostEpoch = 0;
+
+	private ReadyQueue readyQueue = null;
+}
@@ -127,6 +127,19 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 *
+	 * <p>
+	 * The waiting threads are kept in an indexed binary heap ordered by
+	 * effective priority, then by the time they started waiting, so that
+	 * adding a thread, removing the best one, and moving a thread whose
+	 * effective priority changed all take O(log n) time. Each thread
+	 * remembers its position in the heap.
+	 *
+	 * <p>
+	 * If the queue transfers priority, the effective priority of the best
+	 * waiting thread is donated to the owner. <tt>donated</tt> records the
+	 * donation the owner is currently counting, so that a change can be
+	 * passed on as a difference instead of by rescanning the queue.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +158,18 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			// the owner is giving up whatever this queue guards
+			setOwner(null);
+
+			if (size == 0)
+				return null;
+
+			ThreadState next = heap[0];
+			removeFirst();
+			next.waitingOn = null;
+			next.acquire(this);
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +179,127 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size == 0) ? null : heap[0];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			ThreadState[] sorted = java.util.Arrays.copyOf(heap, size);
+			java.util.Arrays.sort(sorted, new java.util.Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return before(a, b) ? -1 : (before(b, a) ? 1 : 0);
+				}
+			});
+			for (int i = 0; i < sorted.length; i++)
+				System.out.print(sorted[i].thread + "("
+						+ sorted[i].getEffectivePriority() + ") ");
+		}
+
+		/**
+		 * Return the priority this queue donates to its owner, or -1 if it
+		 * donates nothing.
+		 */
+		int donation() {
+			if (!transferPriority || owner == null || size == 0)
+				return -1;
+			return heap[0].effective;
+		}
+
+		/**
+		 * Bring the owner's count of this queue's donation up to date.
+		 *
+		 * @return the owner if its donations changed, else <tt>null</tt>.
+		 */
+		ThreadState updateDonation() {
+			int value = donation();
+			if (value == donated)
+				return null;
+
+			owner.changeDonation(donated, value);
+			donated = value;
+			return owner;
+		}
+
+		/**
+		 * Make <i>state</i> the owner of this queue, taking the donation away
+		 * from the old owner.
+		 */
+		void setOwner(ThreadState state) {
+			if (!transferPriority || owner == state)
+				return;
+
+			if (owner != null && donated != -1) {
+				ThreadState old = owner;
+				old.changeDonation(donated, -1);
+				donated = -1;
+				old.propagate();
+			}
+			owner = state;
+			if (owner != null && updateDonation() != null)
+				owner.propagate();
+		}
+
+		void add(ThreadState state) {
+			if (size == heap.length)
+				heap = java.util.Arrays.copyOf(heap, 2 * heap.length);
+			heap[size] = state;
+			state.heapIndex = size;
+			size++;
+			siftUp(state.heapIndex);
+		}
+
+		void removeFirst() {
+			heap[0].heapIndex = -1;
+			size--;
+			if (size > 0) {
+				heap[0] = heap[size];
+				heap[0].heapIndex = 0;
+				siftDown(0);
+			}
+			heap[size] = null;
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority changed to its new
+		 * place.
+		 */
+		void update(ThreadState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+		}
+
+		private void siftUp(int i) {
+			ThreadState state = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+				place(heap[parent], i);
+				i = parent;
+			}
+			place(state, i);
+		}
+
+		private void siftDown(int i) {
+			ThreadState state = heap[i];
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+				place(heap[child], i);
+				i = child;
+			}
+			place(state, i);
+		}
+
+		private void place(ThreadState state, int i) {
+			heap[i] = state;
+			state.heapIndex = i;
 		}
 
 		/**
@@ -170,12 +307,42 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread holding what this queue guards, if it transfers priority. */
+		ThreadState owner = null;
+
+		/** The donation counted by the owner, or -1. */
+		int donated = -1;
+
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+	}
+
+	/**
+	 * Return <tt>true</tt> if <i>a</i> should leave a queue before <i>b</i>:
+	 * it has a higher effective priority, or the same one and has waited
+	 * longer.
+	 */
+	private static boolean before(ThreadState a, ThreadState b) {
+		if (a.effective != b.effective)
+			return a.effective > b.effective;
+		return a.waitTime < b.waitTime;
 	}
 
 	/**
-	 * The scheduling state of a thread. This should include the thread's
-	 * priority, its effective priority, any objects it owns, and the queue it's
-	 * waiting for, if any.
+	 * The scheduling state of a thread: its priority, its cached effective
+	 * priority, the donations it receives from the queues it owns, and the
+	 * queue it is waiting on, if any.
+	 *
+	 * <p>
+	 * Rather than a list of owned queues, a thread keeps a count of the
+	 * donations it receives at each priority, so its effective priority is the
+	 * highest priority with a non-zero count (or its own priority, if that is
+	 * higher). When the effective priority changes, the thread moves in the
+	 * queue it waits on, and if that changes what the queue donates, the
+	 * change is passed to the queue's owner, and so on down the chain until
+	 * nothing changes.
 	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
@@ -189,7 +356,8 @@ public class PriorityScheduler extends Scheduler {
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
-			setPriority(priorityDefault);
+			this.priority = priorityDefault;
+			this.effective = priorityDefault;
 		}
 
 		/**
@@ -207,8 +375,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effective;
 		}
 
 		/**
@@ -221,8 +388,7 @@ public class PriorityScheduler extends Scheduler {
 				return;
 
 			this.priority = priority;
-
-			// implement me
+			propagate();
 		}
 
 		/**
@@ -238,7 +404,15 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitTime = numWaits++;
+			waitQueue.add(this);
+
+			ThreadState owner = waitQueue.updateDonation();
+			if (owner != null)
+				owner.propagate();
 		}
 
 		/**
@@ -252,7 +426,48 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Replace a donation of <i>from</i> with one of <i>to</i>; either may
+		 * be -1 for none.
+		 */
+		void changeDonation(int from, int to) {
+			if (from >= 0)
+				donations[from]--;
+			if (to >= 0)
+				donations[to]++;
+		}
+
+		/**
+		 * Recompute the effective priority of this thread and pass any change
+		 * along the chain of queues and owners. Iterative, so that chains of
+		 * any length are safe.
+		 */
+		void propagate() {
+			ThreadState state = this;
+			while (state != null) {
+				int effective = state.computeEffective();
+				if (effective == state.effective)
+					return;
+
+				state.effective = effective;
+				PriorityQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+
+				queue.update(state);
+				state = queue.updateDonation();
+			}
+		}
+
+		private int computeEffective() {
+			for (int p = priorityMaximum; p > priority; p--) {
+				if (donations[p] > 0)
+					return p;
+			}
+			return priority;
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +475,180 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority. */
+		protected int effective;
+
+		/** The number of donations received at each priority. */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		PriorityQueue waitingOn = null;
+
+		/** This thread's place in the heap of <tt>waitingOn</tt>. */
+		int heapIndex = -1;
+
+		/** When this thread started waiting, for first-come first-served ties. */
+		long waitTime;
 	}
+
+	/**
+	 * Check that priority is donated through locks and joins, then time the
+	 * queues with thousands of waiting threads and a chain of thousands of
+	 * locks, each held by a thread waiting for the next.
+	 */
+	public static void selfTest() {
+		if (ThreadedKernel.scheduler instanceof PriorityScheduler
+				&& !(ThreadedKernel.scheduler instanceof LotteryScheduler))
+			donationTest();
+
+		PriorityScheduler scheduler = new PriorityScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		// one queue, thousands of threads of random priorities
+		int numThreads = 4000;
+		java.util.Random random = new java.util.Random(0);
+		ThreadQueue queue = scheduler.newThreadQueue(true);
+		KThread owner = new KThread();
+		queue.acquire(owner);
+		KThread[] threads = new KThread[numThreads];
+		long start = System.nanoTime();
+		int highest = priorityDefault;
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread();
+			int priority = random.nextInt(priorityMaximum + 1);
+			scheduler.setPriority(threads[i], priority);
+			highest = Math.max(highest, priority);
+			queue.waitForAccess(threads[i]);
+		}
+		Lib.assertTrue(scheduler.getEffectivePriority(owner) == highest);
+
+		KThread previous = null;
+		for (int i = 0; i < numThreads; i++) {
+			KThread next = queue.nextThread();
+			if (previous != null) {
+				int p = scheduler.getPriority(previous), q = scheduler.getPriority(next);
+				Lib.assertTrue(p > q || (p == q && previous.compareTo(next) < 0),
+						"priority queue out of order");
+			}
+			previous = next;
+		}
+		Lib.assertTrue(queue.nextThread() == null);
+		Lib.assertTrue(scheduler.getEffectivePriority(owner) == priorityDefault);
+		long wideTime = System.nanoTime() - start;
+
+		// a chain: thread i waits for a lock held by thread i + 1
+		int depth = 2000;
+		KThread[] chain = new KThread[depth];
+		for (int i = 0; i < depth; i++)
+			chain[i] = new KThread();
+		for (int i = depth - 2; i >= 0; i--) {
+			ThreadQueue lock = scheduler.newThreadQueue(true);
+			lock.acquire(chain[i + 1]);
+			lock.waitForAccess(chain[i]);
+		}
+
+		start = System.nanoTime();
+		int rounds = 100;
+		for (int i = 0; i < rounds; i++) {
+			scheduler.setPriority(chain[0], priorityMaximum);
+			Lib.assertTrue(scheduler.getEffectivePriority(chain[depth - 1]) == priorityMaximum);
+			scheduler.setPriority(chain[0], priorityMinimum);
+			Lib.assertTrue(scheduler.getEffectivePriority(chain[depth - 1]) == priorityDefault);
+		}
+		long chainTime = System.nanoTime() - start;
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("PriorityScheduler.selfTest: passed; " + numThreads
+				+ " threads through one queue in " + wideTime / 1000000
+				+ " ms, " + (2 * rounds) + " changes down a chain of " + depth
+				+ " locks in " + chainTime / 1000000 + " ms");
+	}
+
+	/**
+	 * With this scheduler running the kernel: a low-priority thread holding a
+	 * lock that a high-priority thread wants runs ahead of a busy
+	 * medium-priority thread, and a thread being joined by a high-priority
+	 * thread gets its priority.
+	 */
+	private static void donationTest() {
+		final Lock lock = new Lock();
+		final Semaphore gate = new Semaphore(0);
+		final java.util.ArrayList<String> order = new java.util.ArrayList<String>();
+
+		KThread low = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				gate.P();
+				order.add("low");
+				lock.release();
+			}
+		}).setName("low");
+		KThread medium = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 5; i++)
+					KThread.yield();
+				order.add("medium");
+			}
+		}).setName("medium");
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				order.add("high");
+				lock.release();
+			}
+		}).setName("high");
+
+		setOwnPriority(priorityMaximum);
+		setPriorityOf(low, 2);
+		setPriorityOf(medium, 4);
+		setPriorityOf(high, 6);
+
+		// let low take the lock and block with it
+		low.fork();
+		setOwnPriority(priorityMinimum);
+		KThread.yield();
+		setOwnPriority(priorityMaximum);
+
+		medium.fork();
+		high.fork();
+		gate.V();
+		setOwnPriority(priorityMinimum);
+		low.join();
+		medium.join();
+		high.join();
+		Lib.assertTrue(order.toString().equals("[low, high, medium]"),
+				"priority was not donated through a lock: " + order);
+
+		// a thread being joined runs with the joiner's priority
+		final int[] seen = new int[1];
+		KThread joined = new KThread(new Runnable() {
+			public void run() {
+				boolean intStatus = Machine.interrupt().disable();
+				seen[0] = ThreadedKernel.scheduler
+						.getEffectivePriority(KThread.currentThread());
+				Machine.interrupt().restore(intStatus);
+			}
+		}).setName("joined");
+		setOwnPriority(priorityMaximum);
+		joined.fork();
+		joined.join();
+		Lib.assertTrue(seen[0] == priorityMaximum,
+				"priority was not donated through a join");
+
+		setOwnPriority(priorityDefault);
+	}
+
+	private static void setPriorityOf(KThread thread, int priority) {
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(thread, priority);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static void setOwnPriority(int priority) {
+		setPriorityOf(KThread.currentThread(), priority);
+	}
+
+	private long numWaits = 0;
 }
@@ -50,6 +50,32 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate the queue of threads that are ready to run. <tt>KThread</tt>
+	 * makes exactly one of these, and the thread it calls <tt>acquire()</tt>
+	 * for, and every thread returned by <tt>nextThread()</tt>, is the thread
+	 * that then runs. The default is an ordinary queue that transfers no
+	 * priority; a scheduler that tracks how long threads run can return a
+	 * queue of its own.
+	 * 
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return newThreadQueue(false);
+	}
+
+	/**
+	 * Decide whether the current thread should give up the processor at a
+	 * timer interrupt. Must be called with interrupts disabled. The default
+	 * preempts at every interrupt.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean shouldPreempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return true;
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import nachos.filesys.*;
 
 /**
  * A multi-threaded OS kernel.
@@ -57,6 +58,9 @@ public class ThreadedKernel extends Kernel {
 			ElevatorBank.selfTest();
 		}
 
+		if (Config.getBoolean("KThread.benchmark", false))
+			KThread.benchmark();
+
 		// Rendezvous.selfTest();
 		// Future.selfTest();
         // for (int i=0; i<500; i++) {
@@ -76,9 +80,19 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		syncFileSystem();
 		Machine.halt();
 	}
 
+	/**
+	 * Write any file data the file system is still caching back to the
+	 * underlying storage.
+	 */
+	public static void syncFileSystem() {
+		if (fileSystem instanceof SyncFileSystem)
+			((SyncFileSystem) fileSystem).sync();
+	}
+
 	/** Globally accessible reference to the scheduler. */
 	public static Scheduler scheduler = null;
 
@@ -105,5 +119,5 @@ public class ThreadedKernel extends Kernel {
 
         private static GameMatch dummy8 = null;
 
-        private static Future dummy9 = null;
+        private static Future<?> dummy9 = null;
 }
@@ -0,0 +1,267 @@
+package nachos.userprog;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.ReadaheadOpenFile;
+
+/**
+ * The kernel-wide table of open files.
+ *
+ * <p>
+ * Every file name that is open anywhere in the system has one entry holding
+ * a single handle from the file system, shared by every process that opens the
+ * name. <tt>open()</tt> hands out a lightweight handle onto that entry with its
+ * own file position; the file system's handle is closed when the last of them
+ * is. This keeps the number of file system handles down to the number of
+ * distinct open files, however many times a program is exec'd or a file is
+ * opened.
+ *
+ * <p>
+ * Each handle reads through its own <tt>ReadaheadOpenFile</tt>, so a program
+ * reading a file front to back gets it in large windows rather than one small
+ * read at a time (set <tt>OpenFileTable.readahead</tt> to <tt>false</tt> to
+ * turn this off). A write through any handle drops what the other handles on
+ * the same file have read ahead.
+ *
+ * <p>
+ * The table also counts how many file descriptors refer to each open file, so
+ * that <tt>dup()</tt> can make a second descriptor for the same open file
+ * (sharing its position), and the file is only closed when the last
+ * descriptor is. Any <tt>OpenFile</tt> can be counted this way, including
+ * pipes and the console. The same count lets <tt>exec()</tt> share the
+ * parent's standard input and output with the child.
+ */
+public class OpenFileTable {
+	/**
+	 * Allocate a new, empty open-file table.
+	 */
+	public OpenFileTable() {
+		lock = new Lock();
+		files = new HashMap<String, SharedFile>();
+		descriptorRefs = new IdentityHashMap<OpenFile, Integer>();
+		readahead = Config.getBoolean("OpenFileTable.readahead", true);
+	}
+
+	/**
+	 * Open a file through the table.
+	 *
+	 * @param name     the name of the file.
+	 * @param truncate <tt>true</tt> to create the file if it does not exist,
+	 *                 or truncate it if it does.
+	 * @return a new handle with its own position, or <tt>null</tt> if the
+	 *         file could not be opened.
+	 */
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+		numOpens++;
+		SharedFile file = files.get(name);
+		if (file == null) {
+			OpenFile backing = ThreadedKernel.fileSystem.open(name, truncate);
+			if (backing == null) {
+				lock.release();
+				return null;
+			}
+			file = new SharedFile(name, backing);
+			files.put(name, file);
+		}
+		else {
+			numSharedOpens++;
+			if (truncate) {
+				// truncating goes through the file system, which the shared
+				// handle then sees
+				OpenFile truncated = ThreadedKernel.fileSystem.open(name, true);
+				if (truncated != null)
+					truncated.close();
+				invalidate(file, null);
+			}
+		}
+		Handle handle = new Handle(file);
+		file.handles.add(handle);
+		lock.release();
+
+		return handle;
+	}
+
+	/**
+	 * Remove a file. Handles already open on it keep working; later opens of
+	 * the name get a new file.
+	 *
+	 * @param name the name of the file to remove.
+	 * @return <tt>true</tt> if the file was removed.
+	 */
+	public boolean remove(String name) {
+		lock.acquire();
+		SharedFile file = files.remove(name);
+		if (file != null)
+			file.detached = true;
+		boolean removed = ThreadedKernel.fileSystem.remove(name);
+		lock.release();
+		return removed;
+	}
+
+	/**
+	 * Record one more file descriptor referring to <i>file</i>.
+	 *
+	 * @param file an open file already held by at least one descriptor.
+	 * @return <i>file</i>.
+	 */
+	public OpenFile ref(OpenFile file) {
+		lock.acquire();
+		Integer refs = descriptorRefs.get(file);
+		descriptorRefs.put(file, refs == null ? 2 : refs + 1);
+		lock.release();
+		return file;
+	}
+
+	/**
+	 * Drop one file descriptor's reference to <i>file</i>, closing it if that
+	 * was the last one.
+	 *
+	 * @param file the open file the descriptor referred to.
+	 */
+	public void close(OpenFile file) {
+		lock.acquire();
+		Integer refs = descriptorRefs.get(file);
+		boolean last = (refs == null);
+		if (refs != null) {
+			if (refs > 2)
+				descriptorRefs.put(file, refs - 1);
+			else
+				descriptorRefs.remove(file);
+		}
+		lock.release();
+
+		if (last)
+			file.close();
+	}
+
+	/**
+	 * Return the number of distinct files currently open through the table.
+	 */
+	public int getNumFiles() {
+		lock.acquire();
+		int count = files.size();
+		lock.release();
+		return count;
+	}
+
+	private void release(SharedFile file, Handle handle) {
+		lock.acquire();
+		file.handles.remove(handle);
+		boolean last = file.handles.isEmpty();
+		if (last && !file.detached)
+			files.remove(file.name);
+		lock.release();
+
+		if (last)
+			file.backing.close();
+	}
+
+	// drop what every handle on file except writer has read ahead; called
+	// with the lock held
+	private void invalidate(SharedFile file, Handle writer) {
+		for (Handle handle : file.handles) {
+			ReadaheadOpenFile reader = handle.reader;
+			if (handle != writer && reader != null)
+				reader.invalidate();
+		}
+	}
+
+	/**
+	 * An open file shared by every handle on the same name.
+	 */
+	private class SharedFile {
+		SharedFile(String name, OpenFile backing) {
+			this.name = name;
+			this.backing = backing;
+		}
+
+		String name;
+
+		OpenFile backing;
+
+		LinkedList<Handle> handles = new LinkedList<Handle>(); // open handles
+
+		boolean detached = false; // removed from the table by remove()
+	}
+
+	/**
+	 * One <tt>open()</tt> of a shared file, with its own position.
+	 */
+	private class Handle extends OpenFileWithPosition {
+		Handle(SharedFile file) {
+			super(file.backing.getFileSystem(), file.name);
+			this.file = file;
+			if (readahead)
+				reader = new ReadaheadOpenFile(file.backing);
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+			if (reader != null)
+				return reader.read(pos, buf, offset, length);
+			return file.backing.read(pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			int amount;
+			if (reader != null)
+				amount = reader.write(pos, buf, offset, length);
+			else
+				amount = file.backing.write(pos, buf, offset, length);
+
+			if (amount > 0) {
+				lock.acquire();
+				if (file.handles.size() > 1)
+					invalidate(file, this);
+				lock.release();
+			}
+			return amount;
+		}
+
+		public int length() {
+			if (file == null)
+				return -1;
+			return file.backing.length();
+		}
+
+		public void close() {
+			if (file == null)
+				return;
+
+			// the reader is not closed: the backing file belongs to the table
+			SharedFile closing = file;
+			file = null;
+			reader = null;
+			release(closing, this);
+		}
+
+		private SharedFile file;
+
+		private ReadaheadOpenFile reader = null;
+	}
+
+	/** The number of calls to <tt>open()</tt>. */
+	public long numOpens = 0;
+
+	/** The number of opens that reused an already open file. */
+	public long numSharedOpens = 0;
+
+	private boolean readahead;
+
+	private Lock lock;
+
+	private Map<String, SharedFile> files;
+
+	// descriptors per open file, for files held by more than one
+	private Map<OpenFile, Integer> descriptorRefs;
+}
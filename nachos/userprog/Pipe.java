@@ -0,0 +1,336 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A one-way channel between processes, backed by a bounded ring buffer in
+ * kernel memory. Data written to the write end can be read, in order, from the
+ * read end. Readers block while the pipe is empty and writers block while it
+ * is full.
+ *
+ * <p>
+ * The two ends are handed out as <tt>OpenFile</tt> objects so they can sit in
+ * a process's file table next to ordinary files. Reading from a pipe whose
+ * write ends are all closed returns 0 (end of file) once the buffer drains;
+ * writing to a pipe with no open read end fails.
+ *
+ * <p>
+ * <tt>Endpoint.readToUser()</tt> and <tt>Endpoint.writeFromUser()</tt> move
+ * data directly between a process's pages and the ring buffer, so the read
+ * and write syscalls need no intermediate kernel buffer.
+ */
+public class Pipe {
+	/**
+	 * Allocate a new, empty pipe with the default capacity.
+	 */
+	public Pipe() {
+		this(defaultCapacity);
+	}
+
+	/**
+	 * Allocate a new, empty pipe.
+	 *
+	 * @param capacity the number of bytes the pipe can buffer.
+	 */
+	public Pipe(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new byte[capacity];
+		lock = new Lock();
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
+		exitWaker = new Runnable() {
+			public void run() {
+				lock.acquire();
+				notEmpty.wakeAll();
+				notFull.wakeAll();
+				lock.release();
+			}
+		};
+	}
+
+	/**
+	 * Return a new read end of this pipe.
+	 *
+	 * @return a file that reads from this pipe.
+	 */
+	public OpenFile openForReading() {
+		lock.acquire();
+		numReaders++;
+		lock.release();
+		return new Endpoint(true);
+	}
+
+	/**
+	 * Return a new write end of this pipe.
+	 *
+	 * @return a file that writes to this pipe.
+	 */
+	public OpenFile openForWriting() {
+		lock.acquire();
+		numWriters++;
+		lock.release();
+		return new Endpoint(false);
+	}
+
+	/**
+	 * Moves bytes between the ring buffer and somewhere else. Returns the
+	 * number of bytes actually copied, which may be short on a bad address.
+	 */
+	private interface Transfer {
+		int copy(byte[] ring, int ringOffset, int done, int amount);
+	}
+
+	private int read(int length, Transfer to) {
+		if (length <= 0)
+			return 0;
+
+		// a process that exits while we wait must not leave us asleep
+		UserProcess process = UserKernel.currentProcess();
+		if (process != null)
+			process.addExitWaker(exitWaker);
+
+		lock.acquire();
+		while (count == 0 && numWriters > 0 && !exiting(process))
+			notEmpty.sleep();
+
+		int done = 0;
+		while (done < length && count > 0) {
+			// copy up to the end of the ring, then wrap around
+			int amount = Math.min(length - done, Math.min(count, buffer.length - head));
+			int copied = to.copy(buffer, head, done, amount);
+			if (copied <= 0)
+				break;
+
+			head = (head + copied) % buffer.length;
+			count -= copied;
+			done += copied;
+			if (copied < amount)
+				break;
+		}
+
+		if (done > 0)
+			notFull.wakeAll();
+		lock.release();
+
+		if (process != null)
+			process.removeExitWaker(exitWaker);
+		return done;
+	}
+
+	private int write(int length, Transfer from) {
+		if (length <= 0)
+			return 0;
+
+		UserProcess process = UserKernel.currentProcess();
+		if (process != null)
+			process.addExitWaker(exitWaker);
+
+		lock.acquire();
+		int done = 0;
+		while (done < length) {
+			while (count == buffer.length && numReaders > 0 && !exiting(process))
+				notFull.sleep();
+			if (numReaders == 0 || exiting(process))
+				break;
+
+			int tail = (head + count) % buffer.length;
+			int amount = Math.min(length - done,
+					Math.min(buffer.length - count, buffer.length - tail));
+			int copied = from.copy(buffer, tail, done, amount);
+			if (copied > 0) {
+				count += copied;
+				done += copied;
+				notEmpty.wakeAll();
+			}
+			if (copied < amount)
+				break;
+		}
+		lock.release();
+
+		if (process != null)
+			process.removeExitWaker(exitWaker);
+		if (done == 0 && numReaders == 0)
+			return -1;
+		return done;
+	}
+
+	private static boolean exiting(UserProcess process) {
+		return process != null && process.isExiting();
+	}
+
+	private void close(boolean reader) {
+		lock.acquire();
+		if (reader) {
+			numReaders--;
+			notFull.wakeAll(); // writers must notice there is nobody left
+		} else {
+			numWriters--;
+			notEmpty.wakeAll(); // readers must see end of file
+		}
+		lock.release();
+	}
+
+	/**
+	 * One end of a pipe. Pipes are streams, so there is no file position and
+	 * the positional <tt>read</tt>/<tt>write</tt> methods are not supported.
+	 */
+	public class Endpoint extends OpenFile {
+		Endpoint(boolean reader) {
+			super(null, "pipe");
+			this.reader = reader;
+		}
+
+		/**
+		 * Return the pipe this is an end of.
+		 */
+		public Pipe getPipe() {
+			return Pipe.this;
+		}
+
+		/**
+		 * Return <tt>true</tt> if this is the read end.
+		 */
+		public boolean isReader() {
+			return reader;
+		}
+
+		/**
+		 * Copy up to <i>length</i> bytes out of the pipe straight into a process's
+		 * virtual memory. Blocks until at least one byte is available or every
+		 * write end has been closed.
+		 *
+		 * @param process the process to copy into.
+		 * @param vaddr   the first byte of virtual memory to write.
+		 * @param length  the maximum number of bytes to transfer.
+		 * @return the number of bytes transferred, 0 at end of file, or -1 if
+		 *         this is not an open read end.
+		 */
+		public int readToUser(final UserProcess process, final int vaddr, int length) {
+			if (!reader || closed)
+				return -1;
+
+			return Pipe.this.read(length, new Transfer() {
+				public int copy(byte[] ring, int ringOffset, int done, int amount) {
+					return process.writeVirtualMemory(vaddr + done, ring, ringOffset, amount);
+				}
+			});
+		}
+
+		/**
+		 * Copy up to <i>length</i> bytes straight from a process's virtual memory
+		 * into the pipe. Blocks while the pipe is full, until everything is
+		 * written or the last read end is closed.
+		 *
+		 * @param process the process to copy from.
+		 * @param vaddr   the first byte of virtual memory to read.
+		 * @param length  the number of bytes to transfer.
+		 * @return the number of bytes transferred, or -1 if there are no
+		 *         readers or this is not an open write end.
+		 */
+		public int writeFromUser(final UserProcess process, final int vaddr, int length) {
+			if (reader || closed)
+				return -1;
+
+			return Pipe.this.write(length, new Transfer() {
+				public int copy(byte[] ring, int ringOffset, int done, int amount) {
+					return process.readVirtualMemory(vaddr + done, ring, ringOffset, amount);
+				}
+			});
+		}
+
+		public int read(final byte[] buf, final int offset, int length) {
+			if (!reader || closed)
+				return -1;
+
+			return Pipe.this.read(length, new Transfer() {
+				public int copy(byte[] ring, int ringOffset, int done, int amount) {
+					System.arraycopy(ring, ringOffset, buf, offset + done, amount);
+					return amount;
+				}
+			});
+		}
+
+		public int write(final byte[] buf, final int offset, int length) {
+			if (reader || closed)
+				return -1;
+
+			return Pipe.this.write(length, new Transfer() {
+				public int copy(byte[] ring, int ringOffset, int done, int amount) {
+					System.arraycopy(buf, offset + done, ring, ringOffset, amount);
+					return amount;
+				}
+			});
+		}
+
+		public void close() {
+			if (closed)
+				return;
+
+			closed = true;
+			Pipe.this.close(reader);
+		}
+
+		private boolean reader;
+
+		private boolean closed = false;
+	}
+
+	/**
+	 * Push more data than the pipe can hold through it from one thread to
+	 * another, in odd-sized chunks so the ring wraps around.
+	 */
+	public static void selfTest() {
+		final Pipe pipe = new Pipe(100);
+		final OpenFile in = pipe.openForReading();
+		final OpenFile out = pipe.openForWriting();
+		final int total = 1000;
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				byte[] chunk = new byte[37];
+				for (int sent = 0; sent < total; ) {
+					int n = Math.min(chunk.length, total - sent);
+					for (int i = 0; i < n; i++)
+						chunk[i] = (byte) (sent + i);
+					Lib.assertTrue(out.write(chunk, 0, n) == n);
+					sent += n;
+				}
+				out.close();
+			}
+		});
+		writer.setName("pipe writer").fork();
+
+		byte[] buf = new byte[64];
+		int received = 0, n;
+		while ((n = in.read(buf, 0, buf.length)) > 0) {
+			for (int i = 0; i < n; i++)
+				Lib.assertTrue(buf[i] == (byte) (received + i), "pipe reordered data");
+			received += n;
+		}
+		Lib.assertTrue(n == 0 && received == total, "pipe lost data");
+		in.close();
+		writer.join();
+
+		System.out.println("Pipe.selfTest: passed (" + received + " bytes)");
+	}
+
+	/** The default pipe capacity: four pages. */
+	public static final int defaultCapacity = 4 * Processor.pageSize;
+
+	private byte[] buffer;
+
+	private int head = 0; // index of the oldest buffered byte
+
+	private int count = 0; // number of buffered bytes
+
+	private int numReaders = 0, numWriters = 0; // open ends
+
+	private Lock lock;
+
+	private Condition2 notEmpty, notFull;
+
+	private Runnable exitWaker; // wakes everyone when a process exits
+}
@@ -0,0 +1,265 @@
+package nachos.userprog;
+
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A kernel-wide table of user processes, indexed directly by process ID.
+ *
+ * <p>
+ * Every process owns a slot from the time it is created until its parent
+ * reaps it with <tt>join()</tt>, or until it exits with no parent left to
+ * reap it. Once a process exits its slot becomes a zombie record that keeps
+ * the exit status and resource usage until the parent collects it. Parent/child links are kept
+ * as PIDs inside the slots, so looking up, joining, and orphaning children
+ * never has to scan the table. Freed PIDs (other than the root's) are
+ * recycled in FIFO order.
+ */
+public class ProcessTable {
+	/**
+	 * Allocate a new, empty process table.
+	 */
+	public ProcessTable() {
+		lock = new Lock();
+		entries = new Entry[initialCapacity];
+		freePIDs = new LinkedList<Integer>();
+		nextPID = 0;
+	}
+
+	/**
+	 * Allocate a PID for a newly created process and link it under its
+	 * parent.
+	 *
+	 * @param process the new process.
+	 * @param parent the process that created it, or <tt>null</tt> for the
+	 *               root process.
+	 * @return the PID assigned to <i>process</i>.
+	 */
+	public int allocate(UserProcess process, UserProcess parent) {
+		lock.acquire();
+		int pid;
+		if (!freePIDs.isEmpty()) {
+			pid = freePIDs.removeFirst();
+		} else {
+			if (nextPID == entries.length) {
+				Entry[] grown = new Entry[entries.length * 2];
+				System.arraycopy(entries, 0, grown, 0, entries.length);
+				entries = grown;
+			}
+			pid = nextPID++;
+		}
+
+		Entry entry = new Entry(pid, process);
+		entries[pid] = entry;
+		if (parent != null)
+			link(entry, entries[parent.getPID()]);
+
+		lock.release();
+		return pid;
+	}
+
+	/**
+	 * Return the live process with the specified PID.
+	 *
+	 * @param pid the PID to look up.
+	 * @return the process, or <tt>null</tt> if no live process has that PID.
+	 */
+	public UserProcess getProcess(int pid) {
+		lock.acquire();
+		Entry entry = lookup(pid);
+		UserProcess process = (entry == null || entry.zombie) ? null : entry.process;
+		lock.release();
+		return process;
+	}
+
+	/**
+	 * Drop a process that never started running (e.g. <tt>exec()</tt> failed
+	 * to load it). Its PID is recycled immediately.
+	 *
+	 * @param pid the PID of the process to discard.
+	 */
+	public void discard(int pid) {
+		lock.acquire();
+		Entry entry = lookup(pid);
+		if (entry != null) {
+			unlink(entry);
+			free(entry);
+		}
+		lock.release();
+	}
+
+	/**
+	 * Record that a process has exited. The slot turns into a zombie holding
+	 * the exit status, any parent blocked in <tt>join()</tt> is woken, and the
+	 * exiting process's own children are disowned. Zombie children are reaped
+	 * right away since nobody can join them anymore.
+	 *
+	 * @param pid            the PID of the exiting process.
+	 * @param status         the value passed to <tt>exit()</tt>.
+	 * @param exitedNormally <tt>false</tt> if the process was killed by an
+	 *                       unhandled exception.
+	 * @param usage          the resources the process consumed.
+	 */
+	public void exit(int pid, int status, boolean exitedNormally,
+			ResourceUsage usage) {
+		lock.acquire();
+		Entry entry = lookup(pid);
+		Lib.assertTrue(entry != null && !entry.zombie);
+
+		// disown children
+		while (entry.firstChild != noPID) {
+			Entry child = entries[entry.firstChild];
+			unlink(child);
+			if (child.zombie)
+				free(child);
+		}
+
+		entry.zombie = true;
+		entry.exitStatus = status;
+		entry.exitedNormally = exitedNormally;
+		entry.exitTime = Machine.timer().getTime();
+		entry.usage = usage;
+		entry.process = null;
+
+		// nobody left to reap this process
+		if (entry.parent == noPID)
+			free(entry);
+		else
+			entry.exited.wakeAll();
+
+		lock.release();
+	}
+
+	/**
+	 * Wait for a child process to exit and reap it. Returns immediately if the
+	 * child is already a zombie. After this returns the child's PID may be
+	 * reused, so a process can only join a given child once.
+	 *
+	 * @param parentPID the PID of the joining process.
+	 * @param childPID  the PID to join.
+	 * @return the child's zombie record, or <tt>null</tt> if <i>childPID</i>
+	 *         is not a child of <i>parentPID</i> or the parent began exiting
+	 *         while it waited.
+	 */
+	public Entry join(int parentPID, int childPID) {
+		lock.acquire();
+		final Entry child = lookup(childPID);
+		if (child == null || child.parent != parentPID) {
+			lock.release();
+			return null;
+		}
+
+		// stop waiting if another thread of the parent exits it
+		UserProcess parent = UserKernel.currentProcess();
+		Runnable waker = new Runnable() {
+			public void run() {
+				lock.acquire();
+				child.exited.wakeAll();
+				lock.release();
+			}
+		};
+		if (parent != null)
+			parent.addExitWaker(waker);
+
+		while (!child.zombie && !(parent != null && parent.isExiting()))
+			child.exited.sleep();
+
+		boolean reaped = child.zombie;
+		if (reaped) {
+			unlink(child);
+			free(child);
+		}
+		lock.release();
+
+		if (parent != null)
+			parent.removeExitWaker(waker);
+		return reaped ? child : null;
+	}
+
+	private Entry lookup(int pid) {
+		if (pid < 0 || pid >= nextPID)
+			return null;
+		return entries[pid];
+	}
+
+	private void link(Entry child, Entry parent) {
+		child.parent = parent.pid;
+		child.prevSibling = noPID;
+		child.nextSibling = parent.firstChild;
+		if (parent.firstChild != noPID)
+			entries[parent.firstChild].prevSibling = child.pid;
+		parent.firstChild = child.pid;
+	}
+
+	private void unlink(Entry child) {
+		if (child.parent == noPID)
+			return;
+
+		if (child.prevSibling != noPID)
+			entries[child.prevSibling].nextSibling = child.nextSibling;
+		else
+			entries[child.parent].firstChild = child.nextSibling;
+		if (child.nextSibling != noPID)
+			entries[child.nextSibling].prevSibling = child.prevSibling;
+
+		child.parent = child.prevSibling = child.nextSibling = noPID;
+	}
+
+	private void free(Entry entry) {
+		entries[entry.pid] = null;
+		// never hand out the root PID again; halt() is only allowed for it
+		if (entry.pid != rootPID)
+			freePIDs.addLast(entry.pid);
+	}
+
+	/**
+	 * A slot in the process table. While the process runs it refers to the
+	 * <tt>UserProcess</tt>; after <tt>exit()</tt> it is a zombie record that
+	 * only keeps what the parent can collect with <tt>join()</tt>.
+	 */
+	public class Entry {
+		Entry(int pid, UserProcess process) {
+			this.pid = pid;
+			this.process = process;
+			this.startTime = Machine.timer().getTime();
+			this.exited = new Condition2(lock);
+		}
+
+		public final int pid;
+
+		public UserProcess process;
+
+		public boolean zombie = false;
+
+		public int exitStatus;
+
+		public boolean exitedNormally;
+
+		public long startTime, exitTime;
+
+		public ResourceUsage usage; // set once the process exits
+
+		// parent and sibling links, all PIDs (noPID if absent)
+		private int parent = noPID;
+		private int firstChild = noPID;
+		private int prevSibling = noPID, nextSibling = noPID;
+
+		private Condition2 exited; // signalled when this process exits
+	}
+
+	private static final int noPID = -1;
+
+	private static final int rootPID = 0;
+
+	private static final int initialCapacity = 16;
+
+	private Lock lock;
+
+	private Entry[] entries;
+
+	private LinkedList<Integer> freePIDs;
+
+	private int nextPID; // first PID that has never been handed out
+}
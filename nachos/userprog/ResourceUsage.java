@@ -0,0 +1,127 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Per-process resource counters, the process-level counterpart of the
+ * machine-wide <tt>Stats</tt>.
+ *
+ * <p>
+ * Tick and TLB-miss counters are charged by sampling <tt>Stats</tt> around
+ * each stretch of time a thread of the process holds the CPU: every
+ * <tt>Interrupt.tick</tt> between <tt>UThread.restoreState()</tt> and
+ * <tt>UThread.saveState()</tt> belongs to that process. The remaining counters
+ * are bumped directly by the kernel paths that cause them.
+ */
+public class ResourceUsage {
+	/**
+	 * Allocate a new, zeroed set of counters.
+	 */
+	public ResourceUsage() {
+	}
+
+	/**
+	 * Start charging machine ticks to this process. Called when one of its
+	 * threads gets the CPU.
+	 */
+	public void begin() {
+		Stats stats = Machine.stats();
+		lastUserTicks = stats.userTicks;
+		lastKernelTicks = stats.kernelTicks;
+		lastTLBMisses = stats.numTLBMisses;
+	}
+
+	/**
+	 * Charge the ticks and TLB misses since the last <tt>begin()</tt> or
+	 * <tt>charge()</tt> to this process.
+	 */
+	public void charge() {
+		Stats stats = Machine.stats();
+		userTicks += stats.userTicks - lastUserTicks;
+		kernelTicks += stats.kernelTicks - lastKernelTicks;
+		numTLBMisses += stats.numTLBMisses - lastTLBMisses;
+		begin();
+	}
+
+	/**
+	 * Count one invocation of the specified syscall.
+	 *
+	 * @param syscall the syscall number.
+	 */
+	public void countSyscall(int syscall) {
+		numSyscalls++;
+		if (syscall >= 0 && syscall < syscallCounts.length)
+			syscallCounts[syscall]++;
+	}
+
+	/**
+	 * Encode these counters in the layout of <tt>struct rusage</tt> (see
+	 * <tt>test/syscall.h</tt>): a sequence of 32-bit little-endian ints.
+	 *
+	 * @return the encoded counters.
+	 */
+	public byte[] toBytes() {
+		int[] fields = { (int) userTicks, (int) kernelTicks, numPageFaults,
+				numTLBMisses, numSwapIns, numSwapOuts, numSyscalls,
+				(int) bytesRead, (int) bytesWritten };
+
+		byte[] bytes = new byte[fields.length * 4];
+		for (int i = 0; i < fields.length; i++)
+			Lib.bytesFromInt(bytes, i * 4, fields[i]);
+		return bytes;
+	}
+
+	/**
+	 * Print out the counters, in the same format as <tt>Stats.print()</tt>.
+	 */
+	public void print() {
+		System.out.println("Ticks: kernel " + kernelTicks + ", user "
+				+ userTicks);
+		System.out.println("Paging: page faults " + numPageFaults
+				+ ", TLB misses " + numTLBMisses + ", swap ins " + numSwapIns
+				+ ", swap outs " + numSwapOuts);
+		System.out.println("Syscalls: " + numSyscalls + ", bytes read "
+				+ bytesRead + ", bytes written " + bytesWritten);
+	}
+
+	/** Size in bytes of the encoded <tt>struct rusage</tt>. */
+	public static final int encodedSize = 9 * 4;
+
+	/** Simulated time spent in user mode by this process. */
+	public long userTicks = 0;
+
+	/** Simulated time spent in kernel mode on behalf of this process. */
+	public long kernelTicks = 0;
+
+	/** The number of page faults taken by this process. */
+	public int numPageFaults = 0;
+
+	/** The number of TLB misses taken by this process. */
+	public int numTLBMisses = 0;
+
+	/** The number of pages of this process read back from swap. */
+	public int numSwapIns = 0;
+
+	/** The number of pages of this process written out to swap. */
+	public int numSwapOuts = 0;
+
+	/** The total number of syscalls made by this process. */
+	public int numSyscalls = 0;
+
+	/** Per-syscall invocation counts, indexed by syscall number. */
+	public int[] syscallCounts = new int[maxSyscall + 1];
+
+	/** The number of bytes returned by <tt>read()</tt>. */
+	public long bytesRead = 0;
+
+	/** The number of bytes accepted by <tt>write()</tt>. */
+	public long bytesWritten = 0;
+
+	private static final int maxSyscall = 31;
+
+	private long lastUserTicks, lastKernelTicks;
+
+	private int lastTLBMisses;
+}
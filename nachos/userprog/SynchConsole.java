@@ -7,16 +7,31 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is buffered: <tt>write()</tt> copies a whole buffer into an output
+ * ring under a single lock acquisition and returns, and the console's send
+ * interrupt feeds the ring to the hardware one byte at a time. Writers only
+ * block when the ring is full. <tt>flush()</tt> waits for the ring to drain.
+ *
+ * <p>
+ * Input is read ahead: the receive interrupt moves each incoming byte into an
+ * input ring right away. If <tt>SynchConsole.lineBuffered</tt> is set in
+ * <tt>nachos.conf</tt>, reading through the <tt>OpenFile</tt> interface waits
+ * for a complete line and returns at most one line per call; otherwise it
+ * returns whatever bytes have arrived without blocking.
  */
 public class SynchConsole {
 	/**
 	 * Allocate a new <tt>SynchConsole</tt>.
-	 * 
+	 *
 	 * @param console the underlying serial console to use.
 	 */
 	public SynchConsole(SerialConsole console) {
 		this.console = console;
 
+		lineBuffered = Config.getBoolean("SynchConsole.lineBuffered", false);
+
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
 				receiveInterrupt();
@@ -34,62 +49,178 @@ public class SynchConsole {
 	 * Return the next unsigned byte received (in the range <tt>0</tt> through
 	 * <tt>255</tt>). If a byte has not arrived at, blocks until a byte arrives,
 	 * or returns immediately, depending on the value of <i>block</i>.
-	 * 
+	 *
 	 * @param block <tt>true</tt> if <tt>readByte()</tt> should wait for a byte
 	 * if none is available.
 	 * @return the next byte read, or -1 if <tt>block</tt> was <tt>false</tt>
 	 * and no byte was available.
 	 */
 	public int readByte(boolean block) {
-		int value;
-		boolean intStatus = Machine.interrupt().disable();
 		readLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (block && inCount == 0) {
+			inWaiting = true;
+			inReady.P();
+		}
+
+		int value = -1;
+		if (inCount > 0)
+			value = takeByte() & 0xFF;
+
+		Machine.interrupt().restore(intStatus);
+		readLock.release();
+		return value;
+	}
 
-		if (block || charAvailable) {
-			charAvailable = false;
-			readWait.P();
+	/**
+	 * Read bytes that have already arrived into <i>buf</i>. In line-buffered
+	 * mode, blocks until a whole line (or a full input buffer) is available
+	 * and stops after the first newline.
+	 *
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the offset in the buffer to start storing bytes.
+	 * @param length the maximum number of bytes to read.
+	 * @return the number of bytes read.
+	 */
+	public int read(byte[] buf, int offset, int length) {
+		// a process that exits while we wait must not leave us asleep
+		UserProcess process = UserKernel.currentProcess();
+		if (process != null)
+			process.addExitWaker(inWaker);
 
-			value = console.readByte();
-			Lib.assertTrue(value != -1);
+		readLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (lineBuffered && length > 0 && numLines == 0
+				&& inCount < inBuffer.length
+				&& !(process != null && process.isExiting())) {
+			inWaiting = true;
+			inReady.P();
 		}
-		else {
-			value = -1;
+
+		int i = 0;
+		while (i < length && inCount > 0) {
+			byte value = takeByte();
+			buf[offset + i++] = value;
+			if (lineBuffered && value == '\n')
+				break;
 		}
 
-		readLock.release();
 		Machine.interrupt().restore(intStatus);
-		return value;
+		readLock.release();
+
+		if (process != null)
+			process.removeExitWaker(inWaker);
+		return i;
 	}
 
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to read this as a file.
-	 * 
+	 *
 	 * @return a file that can read this console.
 	 */
 	public OpenFile openForReading() {
 		return new File(true, false);
 	}
 
+	// called with interrupts disabled and inCount > 0
+	private byte takeByte() {
+		byte value = inBuffer[inHead];
+		inHead = (inHead + 1) % inBuffer.length;
+		inCount--;
+		if (value == '\n')
+			numLines--;
+		return value;
+	}
+
 	private void receiveInterrupt() {
-		charAvailable = true;
-		readWait.V();
+		int value = console.readByte();
+		Lib.assertTrue(value != -1);
+
+		// drop input that arrives while the read-ahead buffer is full
+		if (inCount < inBuffer.length) {
+			inBuffer[(inHead + inCount) % inBuffer.length] = (byte) value;
+			inCount++;
+			if (value == '\n')
+				numLines++;
+		}
+
+		if (inWaiting) {
+			inWaiting = false;
+			inReady.V();
+		}
 	}
 
 	/**
-	 * Send a byte. Blocks until the send is complete.
-	 * 
+	 * Send a byte. Queues the byte for output, blocking only if the output
+	 * buffer is full.
+	 *
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value) {
+		write(new byte[] { (byte) value }, 0, 1);
+	}
+
+	/**
+	 * Queue a buffer of bytes for output. The bytes of one call are never
+	 * interleaved with those of another. Blocks only while the output buffer
+	 * is full.
+	 *
+	 * @param buf the buffer to get the bytes from.
+	 * @param offset the offset in the buffer to start getting.
+	 * @param length the number of bytes to write.
+	 * @return the number of bytes written.
+	 */
+	public int write(byte[] buf, int offset, int length) {
+		writeLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+
+		int done = 0;
+		while (done < length) {
+			while (outCount == outBuffer.length) {
+				outWaiting = true;
+				outReady.P();
+			}
+
+			int tail = (outHead + outCount) % outBuffer.length;
+			int amount = Math.min(length - done, Math.min(outBuffer.length
+					- outCount, outBuffer.length - tail));
+			System.arraycopy(buf, offset + done, outBuffer, tail, amount);
+			outCount += amount;
+			done += amount;
+
+			// kick the hardware if it is idle
+			if (!sending) {
+				sending = true;
+				console.writeByte(outBuffer[outHead]);
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+		writeLock.release();
+		return done;
+	}
+
+	/**
+	 * Block until every queued byte has been sent.
+	 */
+	public void flush() {
 		writeLock.acquire();
-		console.writeByte(value);
-		writeWait.P();
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (outCount > 0) {
+			outWaiting = true;
+			outReady.P();
+		}
+
+		Machine.interrupt().restore(intStatus);
 		writeLock.release();
 	}
 
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to write this as a file.
-	 * 
+	 *
 	 * @return a file that can write this console.
 	 */
 	public OpenFile openForWriting() {
@@ -97,20 +228,94 @@ public class SynchConsole {
 	}
 
 	private void sendInterrupt() {
-		writeWait.V();
+		// the byte at outHead has gone out
+		outHead = (outHead + 1) % outBuffer.length;
+		outCount--;
+
+		if (outCount > 0)
+			console.writeByte(outBuffer[outHead]);
+		else
+			sending = false;
+
+		if (outWaiting) {
+			outWaiting = false;
+			outReady.V();
+		}
 	}
 
-	private boolean charAvailable = false;
+	/**
+	 * Queue more output than the ring holds, one 16-byte line per write, and
+	 * check that the writes get ahead of the hardware and that
+	 * <tt>flush()</tt> returns only once every byte has gone out.
+	 */
+	public static void selfTest() {
+		SynchConsole console = UserKernel.console;
+		final int numLines = 300;
+		byte[] line = new byte[16];
+
+		console.flush();
+		long start = Machine.timer().getTime();
+		long queued = 0;
+		for (int i = 0; i < numLines; i++) {
+			byte[] text = ("console line " + (i % 10)).getBytes();
+			System.arraycopy(text, 0, line, 0, text.length);
+			line[line.length - 1] = '\n';
+			Lib.assertTrue(console.write(line, 0, line.length) == line.length);
+			// the first writes only fill the ring
+			if (queued == 0 && (i + 1) * line.length >= bufferSize)
+				queued = Machine.timer().getTime() - start;
+		}
+		console.flush();
+		long total = Machine.timer().getTime() - start;
+
+		int numBytes = numLines * line.length;
+		Lib.assertTrue(console.outCount == 0, "flush() left output queued");
+		Lib.assertTrue(total >= (long) numBytes * Stats.ConsoleTime,
+				"flush() returned before the output was sent");
+		Lib.assertTrue(queued < (long) bufferSize * Stats.ConsoleTime / 2,
+				"write() waited for the hardware");
+
+		System.out.println("SynchConsole.selfTest: passed; " + bufferSize
+				+ " bytes queued in " + queued + " ticks, " + numBytes
+				+ " sent in " + total + " ticks");
+	}
 
 	private SerialConsole console;
 
+	private boolean lineBuffered;
+
 	private Lock readLock = new Lock();
 
 	private Lock writeLock = new Lock();
 
-	private Semaphore readWait = new Semaphore(0);
+	/** The size of the input and output rings. */
+	private static final int bufferSize = 4096;
+
+	// input ring, filled by receiveInterrupt(); guarded by disabling
+	// interrupts, with readLock serializing readers
+	private byte[] inBuffer = new byte[bufferSize];
+	private int inHead = 0, inCount = 0;
+	private int numLines = 0; // newlines currently in inBuffer
+	private boolean inWaiting = false;
+	private Semaphore inReady = new Semaphore(0);
+	private Runnable inWaker = new Runnable() {
+		public void run() {
+			boolean intStatus = Machine.interrupt().disable();
+			if (inWaiting) {
+				inWaiting = false;
+				inReady.V();
+			}
+			Machine.interrupt().restore(intStatus);
+		}
+	};
 
-	private Semaphore writeWait = new Semaphore(0);
+	// output ring, drained by sendInterrupt(); the byte at outHead is the
+	// one in flight while sending is true
+	private byte[] outBuffer = new byte[bufferSize];
+	private int outHead = 0, outCount = 0;
+	private boolean sending = false;
+	private boolean outWaiting = false;
+	private Semaphore outReady = new Semaphore(0);
 
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
@@ -128,26 +333,14 @@ public class SynchConsole {
 			if (!canRead)
 				return 0;
 
-			int i;
-			for (i = 0; i < length; i++) {
-				int value = SynchConsole.this.readByte(false);
-				if (value == -1)
-					break;
-
-				buf[offset + i] = (byte) value;
-			}
-
-			return i;
+			return SynchConsole.this.read(buf, offset, length);
 		}
 
 		public int write(byte[] buf, int offset, int length) {
 			if (!canWrite)
 				return 0;
 
-			for (int i = 0; i < length; i++)
-				SynchConsole.this.writeByte(buf[offset + i]);
-
-			return length;
+			return SynchConsole.this.write(buf, offset, length);
 		}
 
 		private boolean canRead, canWrite;
@@ -10,7 +10,8 @@ import nachos.userprog.*;
  */
 public class UThread extends KThread {
 	/**
-	 * Allocate a new UThread.
+	 * Allocate a new UThread. This is the main thread of <i>process</i>; it
+	 * starts at the program's entry point with argc and argv.
 	 */
 	public UThread(UserProcess process) {
 		super();
@@ -22,10 +23,35 @@ public class UThread extends KThread {
 		});
 
 		this.process = process;
+		this.tid = 0;
+	}
+
+	/**
+	 * Allocate an additional UThread that shares the address space of
+	 * <i>process</i>. It starts by calling <tt>func(arg)</tt> on the stack
+	 * whose top is at <i>stack</i>.
+	 *
+	 * @param process the process the thread belongs to.
+	 * @param tid     the thread ID within the process.
+	 * @param func    the address of the function to run.
+	 * @param arg     the argument passed in A0.
+	 * @param stack   the initial stack pointer.
+	 */
+	public UThread(UserProcess process, int tid, int func, int arg, int stack) {
+		this(process);
+
+		this.tid = tid;
+		this.mainThread = false;
+		this.initialPC = func;
+		this.initialArg = arg;
+		this.initialSP = stack;
 	}
 
 	private void runProgram() {
-		process.initRegisters();
+		if (mainThread)
+			process.initRegisters();
+		else
+			initThreadRegisters();
 		process.restoreState();
 
 		Machine.processor().run();
@@ -33,10 +59,28 @@ public class UThread extends KThread {
 		Lib.assertNotReached();
 	}
 
+	/**
+	 * Set up the registers of an additional thread: everything zero except
+	 * the PC, the stack pointer and the single argument. The MIPS calling
+	 * convention lets the callee spill its four argument registers into the
+	 * caller's frame, so leave room for that below the given stack top.
+	 */
+	private void initThreadRegisters() {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			processor.writeRegister(i, 0);
+
+		processor.writeRegister(Processor.regPC, initialPC);
+		processor.writeRegister(Processor.regSP, initialSP - argSaveArea);
+		processor.writeRegister(Processor.regA0, initialArg);
+	}
+
 	/**
 	 * Save state before giving up the processor to another thread.
 	 */
 	protected void saveState() {
+		process.usage.charge();
 		process.saveState();
 
 		for (int i = 0; i < Processor.numUserRegisters; i++)
@@ -55,6 +99,7 @@ public class UThread extends KThread {
 			Machine.processor().writeRegister(i, userRegisters[i]);
 
 		process.restoreState();
+		process.usage.begin();
 	}
 
 	/**
@@ -72,4 +117,15 @@ public class UThread extends KThread {
 	 * The process to which this thread belongs.
 	 */
 	public UserProcess process;
+
+	/**
+	 * The ID of this thread within its process. The main thread is 0.
+	 */
+	public int tid;
+
+	private boolean mainThread = true;
+
+	private int initialPC, initialSP, initialArg;
+
+	private static final int argSaveArea = 16;
 }
@@ -41,8 +41,8 @@ public class UserKernel extends ThreadedKernel {
 		numProcessLock = new Lock();
 		numProcess = 0;
 
-		freePID = 0;
-		PIDLock = new Lock();
+		processTable = new ProcessTable();
+		openFileTable = new OpenFileTable();
 	}
 
 	/**
@@ -51,6 +51,9 @@ public class UserKernel extends ThreadedKernel {
 	public void selfTest() {
 		super.selfTest();
 
+		// Pipe.selfTest();
+		// SynchConsole.selfTest();
+
 		// System.out.println("Testing the console device. Typed characters");
 		// System.out.println("will be echoed until q is typed.");
 
@@ -94,7 +97,15 @@ public class UserKernel extends ThreadedKernel {
 
 		UserProcess process = ((UThread) KThread.currentThread()).process;
 		int cause = Machine.processor().readRegister(Processor.regCause);
+
+		// another thread called exit(); don't go back to user mode
+		if (process.isExiting())
+			process.exitThread(0);
+
 		process.handleException(cause);
+
+		if (process.isExiting())
+			process.exitThread(0);
 	}
 
 	/**
@@ -130,6 +141,7 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		console.flush(); // don't lose buffered output
 		super.terminate();
 	}
 
@@ -154,16 +166,6 @@ public class UserKernel extends ThreadedKernel {
 		return res;
 	}
 
-	// get a free PID
-	public static int getNextPID() {
-		int pid = -1;
-		PIDLock.acquire();
-		pid = freePID;
-		freePID++;
-		PIDLock.release();
-		return pid;
-	}
-
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
@@ -179,6 +181,7 @@ public class UserKernel extends ThreadedKernel {
 
 	public static Lock numProcessLock;
 
-	public static int freePID;
-	public static Lock PIDLock;
+	public static ProcessTable processTable; // pid -> process / zombie record
+
+	public static OpenFileTable openFileTable; // files shared by all processes
 }
@@ -7,6 +7,7 @@ import nachos.vm.*;
 
 import java.lang.Math;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
 
 import java.io.EOFException;
@@ -43,9 +44,8 @@ public class UserProcess {
 
 		System.out.println("UserProcess: " + UserKernel.numProcess);
 
-		children = new HashMap<UserProcess, Integer>();
-		parent = null;
-		pid = UserKernel.getNextPID();
+		// the process calling exec() (if any) becomes the parent
+		pid = UserKernel.processTable.allocate(this, UserKernel.currentProcess());
 	}
 
 	/**
@@ -85,11 +85,87 @@ public class UserProcess {
 			return false;
 
 		thread = new UThread(this);
+		threadLock.acquire();
+		threads.put(thread.tid, new ThreadRecord(thread));
+		liveThreads = 1;
+		threadLock.release();
 		thread.setName(name).fork();
 
 		return true;
 	}
 
+	/**
+	 * Give this process the standard input and output (file descriptors 0
+	 * and 1) of <i>parent</i> in place of its own console handles. The
+	 * descriptors are shared through <tt>UserKernel.openFileTable</tt>, so a
+	 * shell can redirect a child by pointing its own descriptors at a pipe or
+	 * file with <tt>dup2()</tt> before calling <tt>exec()</tt>. Must be
+	 * called before <tt>execute()</tt>.
+	 *
+	 * @param parent the process calling <tt>exec()</tt>.
+	 */
+	public void inheritStandardFiles(UserProcess parent) {
+		OpenFile[] replaced = new OpenFile[FIRST_AVAILABLE_FD];
+
+		parent.fdLock.acquire();
+		for (int i = 0; i < FIRST_AVAILABLE_FD; i++) {
+			replaced[i] = fd[i];
+			OpenFile file = parent.fd[i];
+			fd[i] = (file == null) ? null : UserKernel.openFileTable.ref(file);
+		}
+		parent.fdLock.release();
+
+		for (int i = 0; i < FIRST_AVAILABLE_FD; i++) {
+			if (replaced[i] != null)
+				replaced[i].close();
+		}
+	}
+
+	/**
+	 * Return this process's PID.
+	 *
+	 * @return the process ID assigned by <tt>UserKernel.processTable</tt>.
+	 */
+	public int getPID() {
+		return pid;
+	}
+
+	/**
+	 * Test whether some thread of this process has called <tt>exit()</tt>.
+	 * Remaining threads are retired the next time they enter the kernel.
+	 *
+	 * @return <tt>true</tt> if this process is exiting.
+	 */
+	public boolean isExiting() {
+		return exiting;
+	}
+
+	/**
+	 * Arrange for <i>waker</i> to run when this process starts exiting, so
+	 * that a thread of it blocked in the kernel can be woken and retired.
+	 * Code that blocks on behalf of a process registers a waker before it
+	 * sleeps, checks <tt>isExiting()</tt> in its wait loop under the lock
+	 * the waker takes, and removes the waker when it stops waiting.
+	 *
+	 * @param waker wakes the sleeping thread.
+	 */
+	public void addExitWaker(Runnable waker) {
+		threadLock.acquire();
+		exitWakers.add(waker);
+		threadLock.release();
+	}
+
+	/**
+	 * Remove a waker added by <tt>addExitWaker()</tt>.
+	 *
+	 * @param waker the waker to remove.
+	 */
+	public void removeExitWaker(Runnable waker) {
+		threadLock.acquire();
+		exitWakers.remove(waker);
+		threadLock.release();
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -102,7 +178,12 @@ public class UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		Machine.processor().setPageTable(pageTable);
+		// once the process is exiting, any thread still in user mode faults
+		// on its next instruction and is reaped by the exception handler
+		if (exiting)
+			Machine.processor().setPageTable(new TranslationEntry[0]);
+		else
+			Machine.processor().setPageTable(pageTable);
 	}
 
 	/**
@@ -275,7 +356,7 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+		OpenFile executable = UserKernel.openFileTable.open(name, false);
 		if (executable == null) {
 			Lib.debug(dbgProcess, "\topen failed");
 			return false;
@@ -431,6 +512,8 @@ public class UserProcess {
 		if (pid != 0)
 			return -1;
 
+		UserKernel.console.flush();
+		ThreadedKernel.syncFileSystem();
 		Machine.halt();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -448,23 +531,72 @@ public class UserProcess {
 
 		System.out.println("UserProcess.handleExit (" + status + ")");
 
-		for (int i = 2; i < FILES_NUM; i++) {
-			if (fd[i] != null) {
-				fd[i].close();
-				fd[i] = null;
-			}
+		// the first exit() decides the status; the other threads are
+		// stopped the next time they enter the kernel
+		threadLock.acquire();
+		LinkedList<Runnable> wakers = null;
+		if (!exiting) {
+			exiting = true;
+			exitStatus = status;
+			wakers = new LinkedList<Runnable>(exitWakers);
+			threadExited.wakeAll();
+		}
+		threadLock.release();
+
+		// threads blocked in the kernel must leave it to be retired
+		if (wakers != null) {
+			futexLock.acquire();
+			for (FutexQueue queue : futexQueues.values())
+				queue.waiters.wakeAll();
+			futexQueues.clear();
+			futexLock.release();
+
+			for (Runnable waker : wakers)
+				waker.run();
 		}
+
+		exitThread(0);
+		return 0;
+	}
+
+	/**
+	 * Retire the current thread of this process. The last thread out releases
+	 * the process's resources and turns it into a zombie.
+	 *
+	 * @param value the value returned to <tt>thread_join()</tt>.
+	 */
+	protected void exitThread(int value) {
+		UThread current = (UThread) KThread.currentThread();
+
+		threadLock.acquire();
+		ThreadRecord record = threads.get(current.tid);
+		record.finished = true;
+		record.exitValue = value;
+		threadExited.wakeAll();
+		boolean last = --liveThreads == 0;
+		threadLock.release();
+
+		if (last)
+			releaseProcess();
+
+		KThread.finish();
+	}
+
+	/**
+	 * Called when the process's last thread exits: close its files, free its
+	 * memory and report the exit to the process table.
+	 */
+	private void releaseProcess() {
+		int status = exitStatus;
+		usage.charge();
+		usage.print();
+
+		closeFiles();
 		unloadSections();
 		coff.close();
 
-		// need to consider children processes
-		// remove the children's parent pointer to this process
-
-		// need to consider parent processes
-		// need to wake parent process if it is waiting for this process to finish
-		if (parent != null) {
-			this.parent.children.replace(this, status);
-		}
+		// turn into a zombie, disown children and wake a joining parent
+		UserKernel.processTable.exit(pid, status, !killed, usage);
 
 		// if this is the last process, also terminate the kernel
 		UserKernel.numProcessLock.acquire();
@@ -476,15 +608,24 @@ public class UserProcess {
 			UserKernel.numProcess--;
 			UserKernel.numProcessLock.release();
 		}
+	}
 
-		KThread.finish();
-		return 0;
+	// close every descriptor, dropping this process's share of each file
+	private void closeFiles() {
+		fdLock.acquire();
+		for (int i = 0; i < FILES_NUM; i++) {
+			if (fd[i] != null) {
+				UserKernel.openFileTable.close(fd[i]);
+				fd[i] = null;
+			}
+		}
+		fdLock.release();
 	}
 
 	private int handleCreate(int address) {
 		String fileName = readVirtualMemoryString(address, PARAM_LENGTH);
 
-		OpenFile file = Machine.stubFileSystem().open(fileName, true);
+		OpenFile file = UserKernel.openFileTable.open(fileName, true);
 		if (file == null) {
 			return -1;
 		}
@@ -494,7 +635,7 @@ public class UserProcess {
 	private int handleOpen(int address) {
 		String fileName = readVirtualMemoryString(address, PARAM_LENGTH);
 
-		OpenFile file = Machine.stubFileSystem().open(fileName, false);
+		OpenFile file = UserKernel.openFileTable.open(fileName, false);
 		if (file == null) {
 			return -1;
 		}
@@ -505,22 +646,73 @@ public class UserProcess {
 		if (fd < 0 || fd >= FILES_NUM)
 			return -1; // edge case to catch
 
-		if (this.fd[fd] == null) { // or already closed file
+		fdLock.acquire();
+		OpenFile file = this.fd[fd];
+		this.fd[fd] = null;
+		fdLock.release();
+
+		if (file == null) { // or already closed file
 			return -1;
 		}
 
-		this.fd[fd].close();
-		this.fd[fd] = null;
-
+		UserKernel.openFileTable.close(file);
 		return 0;
 	}
 
+	/**
+	 * Handle the dup() system call: make the lowest free file descriptor
+	 * refer to the same open file as <i>oldFD</i>.
+	 */
+	private int handleDup(int oldFD) {
+		if (oldFD < 0 || oldFD >= FILES_NUM)
+			return -1;
+
+		fdLock.acquire();
+		OpenFile file = fd[oldFD];
+		int newFD = -1;
+		if (file != null) {
+			for (int i = 0; i < FILES_NUM; i++) {
+				if (fd[i] == null) {
+					fd[i] = UserKernel.openFileTable.ref(file);
+					newFD = i;
+					break;
+				}
+			}
+		}
+		fdLock.release();
+		return newFD;
+	}
+
+	/**
+	 * Handle the dup2() system call: make <i>newFD</i> refer to the same open
+	 * file as <i>oldFD</i>, closing whatever <i>newFD</i> referred to before.
+	 */
+	private int handleDup2(int oldFD, int newFD) {
+		if (oldFD < 0 || oldFD >= FILES_NUM || newFD < 0 || newFD >= FILES_NUM)
+			return -1;
+
+		fdLock.acquire();
+		OpenFile file = fd[oldFD];
+		OpenFile replaced = null;
+		if (file != null && oldFD != newFD) {
+			replaced = fd[newFD];
+			fd[newFD] = UserKernel.openFileTable.ref(file);
+		}
+		fdLock.release();
+
+		if (file == null)
+			return -1;
+		if (replaced != null)
+			UserKernel.openFileTable.close(replaced);
+		return newFD;
+	}
+
 	private int handleUnlink(int address) {
 		String fileName = readVirtualMemoryString(address, PARAM_LENGTH);
 		if (fileName == null) {
 			return -1;
 		}
-		if (!Machine.stubFileSystem().remove(fileName)) {
+		if (!UserKernel.openFileTable.remove(fileName)) {
 			return -1;
 		}
 		return 0;
@@ -543,11 +735,18 @@ public class UserProcess {
 			return 0;
 		}
 
-		OpenFile file = this.fd[fd];
+		OpenFile file = getFile(fd);
 		if (file == null) {
 			return -1;
 		}
 
+		// pipes copy straight into user pages, no staging buffer
+		if (file instanceof Pipe.Endpoint) {
+			int numRead = ((Pipe.Endpoint) file).readToUser(this, bufferAddr, totalRead);
+			if (numRead > 0) usage.bytesRead += numRead;
+			return numRead;
+		}
+
 		int bufferSize = getPagedBufferSize(totalRead); // buffered size array
 		byte []localBuffer = new byte[bufferSize];
 
@@ -562,6 +761,7 @@ public class UserProcess {
 
 			int writeBytesToVM = writeVirtualMemory(bufferAddr + alreadyRead, localBuffer, 0, readBytesFromFile);
 			if (writeBytesToVM == -1 || writeBytesToVM != readBytesFromFile) {
+				usage.bytesRead += alreadyRead;
 				return alreadyRead;
 			}
 
@@ -571,6 +771,7 @@ public class UserProcess {
 				break;
 			}
 		}
+		usage.bytesRead += alreadyRead;
 		return alreadyRead;
 	}
 	private int handleWrite(int fd, int bufferAddr, int totalRead){
@@ -580,7 +781,7 @@ public class UserProcess {
 			return 0;
 		}
 
-		OpenFile file = this.fd[fd];
+		OpenFile file = getFile(fd);
 		if (file == null) {
 			return -1;
 		}
@@ -589,6 +790,13 @@ public class UserProcess {
 			return -1;
 		}
 
+		// pipes copy straight from user pages, no staging buffer
+		if (file instanceof Pipe.Endpoint) {
+			int numWritten = ((Pipe.Endpoint) file).writeFromUser(this, bufferAddr, totalRead);
+			if (numWritten > 0) usage.bytesWritten += numWritten;
+			return numWritten;
+		}
+
 		int bufferSize = getPagedBufferSize(totalRead);
 		byte[] localBuffer = new byte[bufferSize];
 
@@ -601,8 +809,10 @@ public class UserProcess {
 				return -1; // error in readVirtualMemory
 
 			int writeBytesToFile = file.write(localBuffer, 0, readBytesFromVM);
-			if (writeBytesToFile==-1 || writeBytesToFile != readBytesFromVM)
+			if (writeBytesToFile==-1 || writeBytesToFile != readBytesFromVM) {
+				usage.bytesWritten += alreadyRead;
 				return alreadyRead;
+			}
 
 			alreadyRead += writeBytesToFile;
 
@@ -610,6 +820,7 @@ public class UserProcess {
 				break;
 			}
 		}
+		usage.bytesWritten += alreadyRead;
 
 		if(alreadyRead < totalRead)
 			return -1;
@@ -618,6 +829,7 @@ public class UserProcess {
 	}
 
 	private int appendToFD(OpenFile file) {
+		fdLock.acquire();
 		// find next available position
 		int nextPosition = FIRST_AVAILABLE_FD;
 		for (; nextPosition < FILES_NUM; nextPosition++) {
@@ -627,16 +839,27 @@ public class UserProcess {
 		}
 
 		if (nextPosition == FILES_NUM) {
+			fdLock.release();
 			return -1;
 		}
 
 		fd[nextPosition] = file;
+		fdLock.release();
 		return nextPosition;
 	}
 
+	// look up an open file; threads of this process share the fd table
+	private OpenFile getFile(int fd) {
+		fdLock.acquire();
+		OpenFile file = this.fd[fd];
+		fdLock.release();
+		return file;
+	}
+
 	
 	/**
-	 * Handle the exec() system call.
+	 * Handle the exec() system call. The child shares this process's file
+	 * descriptors 0 and 1.
 	 */
 	private int handleExec(int file, int argc, int argv) {
 		System.out.println("UserProcess.handleExec (" + file + ", " + argc + ", " + argv + ")");
@@ -667,10 +890,16 @@ public class UserProcess {
 		}
 
 		UserProcess child = UserProcess.newUserProcess();
-		children.put(child, 1);
-		child.parent = this;
+		child.inheritStandardFiles(this);
 		if (!child.execute(filename, args)) {
 			System.out.println("UserProcess.handleExec: execute failed");
+			// give back the shares of stdin and stdout, or a pipe the child
+			// was to write would never see end of file
+			child.closeFiles();
+			UserKernel.processTable.discard(child.pid);
+			UserKernel.numProcessLock.acquire();
+			UserKernel.numProcess--;
+			UserKernel.numProcessLock.release();
 			return -1;
 		}
 
@@ -683,37 +912,193 @@ public class UserProcess {
 	private int handleJoin(int processID, int status) {
 		System.out.println("UserProcess.handleJoin (" + processID + ", " + status + ")");
 		
-		UserProcess child = null;
-		for (UserProcess p : children.keySet()) {
-			if (p.pid == processID) {
-				child = p;
-				break;
-			}
-		}
+		// blocks until the child exits, then reaps its zombie record
+		ProcessTable.Entry child = UserKernel.processTable.join(pid, processID);
 		if (child == null) {
-			System.out.println("UserProcess.handleJoin: child is null");
+			System.out.println("UserProcess.handleJoin: not a child");
 			return -1;
 		}
 
-		child.thread.join();
-
-		int exitStatus = children.get(child);
-		children.remove(child);
-		if (exitStatus == -10) return 0;
+		if (!child.exitedNormally) return 0;
 		byte[] buffer = new byte[4];
-		Lib.bytesFromInt(buffer, 0, exitStatus);
+		Lib.bytesFromInt(buffer, 0, child.exitStatus);
 		if (writeVirtualMemory(status, buffer) != 4) {
 			System.out.println("UserProcess.handleJoin: writeVirtualMemory failed");
 			return -1;
 		}
 
-		return exitStatus;
+		return 1;
+	}
+
+	/**
+	 * Handle the pipe() system call. Creates a pipe and stores the file
+	 * descriptors of its read and write ends in <tt>fds[0]</tt> and
+	 * <tt>fds[1]</tt>.
+	 */
+	private int handlePipe(int fdsAddr) {
+		Pipe pipe = new Pipe();
+		OpenFile readEnd = pipe.openForReading();
+		OpenFile writeEnd = pipe.openForWriting();
+
+		int readFD = appendToFD(readEnd);
+		int writeFD = readFD == -1 ? -1 : appendToFD(writeEnd);
+		if (writeFD == -1) {
+			if (readFD != -1) handleClose(readFD);
+			else readEnd.close();
+			writeEnd.close();
+			return -1;
+		}
+
+		byte[] buffer = new byte[8];
+		Lib.bytesFromInt(buffer, 0, readFD);
+		Lib.bytesFromInt(buffer, 4, writeFD);
+		if (writeVirtualMemory(fdsAddr, buffer) != buffer.length) {
+			handleClose(readFD);
+			handleClose(writeFD);
+			return -1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Handle the thread_create() system call. Starts a new thread in this
+	 * process that calls <tt>func(arg)</tt> on the stack whose top is at
+	 * <i>stack</i>, and returns its thread ID.
+	 */
+	private int handleThreadCreate(int func, int arg, int stack) {
+		int limit = numPages * pageSize;
+		if (func <= 0 || func >= limit || stack <= 0 || stack > limit)
+			return -1;
+
+		threadLock.acquire();
+		if (exiting) {
+			threadLock.release();
+			return -1;
+		}
+		int tid = nextTid++;
+		UThread child = new UThread(this, tid, func, arg, stack);
+		threads.put(tid, new ThreadRecord(child));
+		liveThreads++;
+		threadLock.release();
+
+		child.setName(thread.getName() + "." + tid).fork();
+		return tid;
+	}
+
+	/**
+	 * Handle the thread_join() system call. Waits for the specified thread of
+	 * this process to call <tt>thread_exit()</tt> and stores its value in
+	 * <i>*status</i>. A thread can be joined only once.
+	 */
+	private int handleThreadJoin(int tid, int status) {
+		UThread current = (UThread) KThread.currentThread();
+
+		threadLock.acquire();
+		ThreadRecord record = threads.get(tid);
+		if (record == null || tid == current.tid || record.joined) {
+			threadLock.release();
+			return -1;
+		}
+
+		record.joined = true;
+		while (!record.finished && !exiting)
+			threadExited.sleep();
+		if (!record.finished) {
+			threadLock.release();
+			return -1;
+		}
+		threads.remove(tid);
+		threadLock.release();
+
+		if (status != 0) {
+			byte[] buffer = Lib.bytesFromInt(record.exitValue);
+			if (writeVirtualMemory(status, buffer) != 4)
+				return -1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Handle the thread_exit() system call. Ends the calling thread; if it is
+	 * the last one the whole process exits with status 0.
+	 */
+	private int handleThreadExit(int value) {
+		exitThread(value);
+		return 0;
+	}
+
+	/**
+	 * Handle the futex_wait() system call. Blocks the calling thread on the
+	 * word at <i>addr</i> if it still holds <i>expected</i>. The check and the
+	 * sleep are atomic with respect to <tt>futex_wake()</tt>.
+	 *
+	 * @return 0 after being woken, or -1 if the word did not hold
+	 * <i>expected</i> (or is not readable).
+	 */
+	private int handleFutexWait(int addr, int expected) {
+		byte[] buffer = new byte[4];
+
+		futexLock.acquire();
+		if (exiting || readVirtualMemory(addr, buffer) != 4
+				|| Lib.bytesToInt(buffer, 0) != expected) {
+			futexLock.release();
+			return -1;
+		}
+
+		FutexQueue queue = futexQueues.get(addr);
+		if (queue == null) {
+			queue = new FutexQueue();
+			futexQueues.put(addr, queue);
+		}
+		queue.numWaiters++;
+		queue.waiters.sleep();
+		futexLock.release();
+		return 0;
+	}
+
+	/**
+	 * Handle the futex_wake() system call. Wakes up to <i>count</i> threads
+	 * blocked in <tt>futex_wait()</tt> on <i>addr</i>.
+	 *
+	 * @return the number of threads woken.
+	 */
+	private int handleFutexWake(int addr, int count) {
+		futexLock.acquire();
+		FutexQueue queue = futexQueues.get(addr);
+		int woken = 0;
+		if (queue != null) {
+			while (woken < count && queue.numWaiters > 0) {
+				queue.waiters.wake();
+				queue.numWaiters--;
+				woken++;
+			}
+			if (queue.numWaiters == 0)
+				futexQueues.remove(addr);
+		}
+		futexLock.release();
+		return woken;
+	}
+
+	/**
+	 * Handle the getrusage() system call. Copies this process's resource
+	 * counters into the <tt>struct rusage</tt> at <i>address</i>.
+	 */
+	private int handleGetrusage(int address) {
+		usage.charge();
+		byte[] buffer = usage.toBytes();
+		if (writeVirtualMemory(address, buffer) != buffer.length) {
+			return -1;
+		}
+		return 0;
 	}
 
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallGetrusage = 13, syscallPipe = 14,
+			syscallThreadCreate = 15, syscallThreadJoin = 16,
+			syscallThreadExit = 17, syscallFutexWait = 18,
+			syscallFutexWake = 19, syscallDup = 20, syscallDup2 = 21;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -767,6 +1152,43 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  getrusage(struct rusage *usage);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  pipe(int fds[2]);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  thread_create(void (*func)(void *), void *arg, void *stack);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  thread_join(int tid, int *status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>void thread_exit(int status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  futex_wait(int *addr, int expected);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  futex_wake(int *addr, int count);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  dup(int fd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>21</td>
+	 * <td><tt>int  dup2(int oldfd, int newfd);</tt></td>
+	 * </tr>
 	 * </table>
 	 *
 	 * @param syscall the syscall number.
@@ -777,6 +1199,7 @@ public class UserProcess {
 	 * @return the value to be returned to the user.
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		usage.countSyscall(syscall);
 		switch (syscall) {
 			case syscallHalt:
 				return handleHalt();
@@ -798,6 +1221,24 @@ public class UserProcess {
 				return handleExec(a0, a1, a2);
 			case syscallJoin:
 				return handleJoin(a0, a1);
+			case syscallGetrusage:
+				return handleGetrusage(a0);
+			case syscallPipe:
+				return handlePipe(a0);
+			case syscallThreadCreate:
+				return handleThreadCreate(a0, a1, a2);
+			case syscallThreadJoin:
+				return handleThreadJoin(a0, a1);
+			case syscallThreadExit:
+				return handleThreadExit(a0);
+			case syscallFutexWait:
+				return handleFutexWait(a0, a1);
+			case syscallFutexWake:
+				return handleFutexWake(a0, a1);
+			case syscallDup:
+				return handleDup(a0);
+			case syscallDup2:
+				return handleDup2(a0, a1);
 			default:
 				Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 				Lib.assertNotReached("Unknown system call!");
@@ -830,7 +1271,8 @@ public class UserProcess {
 				// System.out.println("Unexpected exception: " + Processor.exceptionNames[cause]);
 				Lib.debug(dbgProcess, "Unexpected exception: "
 						+ Processor.exceptionNames[cause]);
-				handleExit(-10);
+				killed = true;
+				handleExit(-1);
 				Lib.assertNotReached("Unexpected exception");
 		}
 	}
@@ -850,6 +1292,9 @@ public class UserProcess {
 	/** The thread that executes the user-level program. */
 	protected UThread thread;
 
+	/** Resource counters charged to this process. */
+	protected ResourceUsage usage = new ResourceUsage();
+
 	private int initialPC, initialSP;
 
 	private int argc, argv;
@@ -867,7 +1312,38 @@ public class UserProcess {
 	private OpenFile[] fd;
 
 	private int pid;
-	private UserProcess parent;
-	private Map<UserProcess, Integer> children;
+	private boolean killed = false; // exiting because of an unhandled exception
+
+	// threads of this process, by tid; guarded by threadLock
+	private Lock threadLock = new Lock();
+	private Condition2 threadExited = new Condition2(threadLock);
+	private Map<Integer, ThreadRecord> threads = new HashMap<Integer, ThreadRecord>();
+	private int nextTid = 1;
+	private int liveThreads = 0;
+	private boolean exiting = false;
+	private int exitStatus = 0;
+	private LinkedList<Runnable> exitWakers = new LinkedList<Runnable>();
+
+	private Lock fdLock = new Lock(); // guards fd[] between threads
+
+	// futex wait queues, by virtual address; guarded by futexLock
+	private Lock futexLock = new Lock();
+	private Map<Integer, FutexQueue> futexQueues = new HashMap<Integer, FutexQueue>();
+
+	private class ThreadRecord {
+		ThreadRecord(UThread thread) {
+			this.thread = thread;
+		}
+
+		UThread thread;
+		boolean finished = false;
+		boolean joined = false;
+		int exitValue = 0;
+	}
+
+	private class FutexQueue {
+		Condition2 waiters = new Condition2(futexLock);
+		int numWaiters = 0;
+	}
 
 }
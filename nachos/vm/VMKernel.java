@@ -1,9 +1,12 @@
 package nachos.vm;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 
 import nachos.machine.*;
 import nachos.threads.*;
+import nachos.filesys.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
@@ -28,14 +31,13 @@ public class VMKernel extends UserKernel {
 		for (int i = 0; i < Machine.processor().getNumPhysPages(); i++) {
 			IPT[i] = new IPTEntry(null, null, false);
 		}
-		swapFile = ThreadedKernel.fileSystem.open("swapFile", true);
+		swapFile = new AsyncOpenFile(ThreadedKernel.fileSystem.open("swapFile", true));
 		swapPagesLock = new Lock();
-		swapLock = new Lock();
 		clockLock = new Lock();
 		pinCountLock = new Lock();
 		pinCV = new Condition(pinCountLock);
 		swapAvailablePages = new LinkedList<>();
-		swapAvailablePages.addLast(0);
+		numSwapPages = 0;
 	}
 
 	/**
@@ -56,13 +58,22 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		// let swap-outs still in flight finish before the file goes away
+		boolean intStatus = Machine.interrupt().disable();
+		ArrayList<SwapWrite> writes = new ArrayList<SwapWrite>(pendingWrites.values());
+		Machine.interrupt().restore(intStatus);
+		for (SwapWrite write : writes)
+			write.request.waitFor();
+
 		swapFile.close();
 		ThreadedKernel.fileSystem.remove("swapFile");
 		super.terminate();
 	}
 
 	/**
-	 * choosing a page to evict
+	 * choosing a page to evict. The victim is returned pinned, so that no
+	 * other fault picks it while it is being swapped; the caller unpins it
+	 * once the new page is in.
 	 * @return ppn to evict
 	 */
 	public static int clock() {
@@ -79,6 +90,7 @@ public class VMKernel extends UserKernel {
 			Lib.debug(dbgProcess, "--isReadOnly: " + IPT[victimPointer].entry.readOnly);
 		}
 		int toEvictPPN = victimPointer;
+		IPT[toEvictPPN].isPinned = true;
 		victimPointer = (victimPointer + 1) % ppnNum;
 		clockLock.release();
 		return toEvictPPN;
@@ -86,50 +98,80 @@ public class VMKernel extends UserKernel {
 
 	/**
 	 * read a page from swapFile (page at spn) to 
-	 * the physical memory (ppn)
+	 * the physical memory (ppn). A page whose swap-out is still in flight
+	 * is copied from the data being written instead.
 	 * @param spn
 	 * @param ppn
 	 * @return # of bytes read or -1 if swapFile.read() fail
 	 */
 	public static int swapIn(int spn, int ppn) {
-		swapLock.acquire();
 		int pos = spn * Processor.pageSize;
 		byte[] buf = Machine.processor().getMemory();
 		int offset = Processor.makeAddress(ppn, 0);
 		int length = Processor.pageSize;
-		int numBytesRead = swapFile.read(pos, buf, offset, length);
-		swapLock.release();
+
+		boolean intStatus = Machine.interrupt().disable();
+		SwapWrite pending = pendingWrites.get(spn);
+		if (pending != null)
+			System.arraycopy(pending.data, 0, buf, offset, length);
+		Machine.interrupt().restore(intStatus);
+		if (pending != null)
+			return length;
+
+		// other faults can keep their own swap I/O in flight meanwhile
+		int numBytesRead = swapFile.readAsync(pos, buf, offset, length).waitFor();
+		Machine.stats().numSwapReads++;
 		return numBytesRead;
 	}
 
 	/**
-	 * evict the page to swapFile
+	 * evict the page to swapFile. The page's entry is pointed at its swap
+	 * page and invalidated before the frame can be reused, and the write
+	 * goes out from a copy of the page, so the caller does not wait for it;
+	 * a fault on the page before the write completes is served from the
+	 * copy by swapIn().
 	 * @param ppn
-	 * @return numBytesWrite or -1 if swapFile.write() fail
 	 */
-	public static int swapOut(int ppn) {
-		swapLock.acquire();
-		int spn = getAvailableSPN();
+	public static void swapOut(int ppn) {
+		final int spn = getAvailableSPN();
 		Lib.debug(dbgProcess, "---SWAP OUT Target SPN: " + spn);
-		byte[] physicalMem = Machine.processor().getMemory();
-		int offset = Processor.makeAddress(ppn, 0);
 		int length = Processor.pageSize;
-		int numBytesWrite = swapFile.write(spn * length, physicalMem, offset, length);
+		final SwapWrite write = new SwapWrite(new byte[length]);
+
+		boolean intStatus = Machine.interrupt().disable();
+		System.arraycopy(Machine.processor().getMemory(),
+				Processor.makeAddress(ppn, 0), write.data, 0, length);
 		IPT[ppn].entry.vpn = spn; // indicate the spn in swapFile
-		swapLock.release();
-		return numBytesWrite;
+		IPT[ppn].entry.valid = false;
+
+		// start the write before publishing it, so swapIn() and terminate()
+		// never see an entry without its request; the completion interrupt
+		// cannot run until interrupts are restored
+		write.request = swapFile.writeAsync(spn * length, write.data, 0, length);
+		pendingWrites.put(spn, write);
+		write.request.setCompletionHandler(new Runnable() {
+			public void run() {
+				Lib.assertTrue(write.request.waitFor() == Processor.pageSize,
+						"swap out fail");
+				pendingWrites.remove(spn);
+			}
+		});
+		Machine.interrupt().restore(intStatus);
+		Machine.stats().numSwapWrites++;
 	}
 
 	/**
 	 * if there is available spn, return it
-	 * else create a new spn by return the file.length() / pageSize
+	 * else grow the swapFile by one page (counted here rather than taken
+	 * from swapFile.length(), since writes to new pages may still be in
+	 * flight)
 	 * @return spn - a available spn to swapout
 	 */
 	public static int getAvailableSPN() {
 		int spn = -1;
 		swapPagesLock .acquire();
 		if (swapAvailablePages.size() > 0) spn = swapAvailablePages.removeFirst();
-		else spn = swapFile.length() / Processor.pageSize;
+		else spn = numSwapPages++;
 		swapPagesLock.release();
 		return spn;
 	}
@@ -143,16 +185,30 @@ public class VMKernel extends UserKernel {
 	
 	public static int victimPointer; // ppn pointer used in clock algorithm
 
-	public static OpenFile swapFile;
+	public static AsyncOpenFile swapFile;
+
+	public static int numSwapPages; // pages the swapFile has grown to
 
 	public static LinkedList<Integer> swapAvailablePages; // available pages in swapFile
 
 	public static Lock swapPagesLock; // lock for swapAvailablePages
 
-	public static Lock swapLock; // lock for swapFile
-
 	public static IPTEntry[] IPT; // inverted page table
 
+	// swap-outs still in flight, by spn; guarded by disabling interrupts,
+	// since their completion handlers remove them
+	private static HashMap<Integer, SwapWrite> pendingWrites = new HashMap<Integer, SwapWrite>();
+
+	private static class SwapWrite {
+		SwapWrite(byte[] data) {
+			this.data = data;
+		}
+
+		byte[] data; // the page as it was evicted
+
+		AsyncOpenFile.Request request;
+	}
+
 	public static Lock clockLock; // lock for clock algorithm (victimPointer)
 
 	public static Lock pinCountLock; // lock for pinCount
@@ -162,7 +218,7 @@ public class VMKernel extends UserKernel {
 	public static int pinCount = 0; // # of pages are currently pinned
 
 	public class IPTEntry {
-		public VMProcess process; // seems no need to reference process here
+		public VMProcess process; // owner of the page, charged for its swap-outs
 		public TranslationEntry entry;
 		public boolean isPinned;
 
@@ -69,7 +69,10 @@ public class VMProcess extends UserProcess {
 				break;
 			}
 			if (!pageTable[vpn].valid) {
-				handlePageFault(vpn);
+				faultLock.acquire();
+				if (!pageTable[vpn].valid)
+					handlePageFault(vpn);
+				faultLock.release();
 			}
 			if (pageTable[vpn].valid) {
 				VMKernel.IPT[pageTable[vpn].ppn].isPinned = true;
@@ -139,7 +142,10 @@ public class VMProcess extends UserProcess {
 				break;
 			}
 			if (!pageTable[vpn].valid) {
-				handlePageFault(vpn);
+				faultLock.acquire();
+				if (!pageTable[vpn].valid)
+					handlePageFault(vpn);
+				faultLock.release();
 			}
 			if (pageTable[vpn].valid) {
 				if (!pageTable[vpn].readOnly) {
@@ -212,8 +218,10 @@ public class VMProcess extends UserProcess {
 	 */
 	private void handlePageFault(int vpn) {
 		//System.out.println("--------------Handling Page Fault----------------");
+		usage.numPageFaults++;
 		int ppn = VMKernel.getAvailablePPN();
-		if (ppn == -1) {
+		boolean evicted = (ppn == -1);
+		if (evicted) {
 			//System.out.println("----------No available physical page frame------------");
 			// VMKernel.pinCountLock.acquire();
 			// while (VMKernel.pinCount == Machine.processor().getNumPhysPages()) {
@@ -221,17 +229,19 @@ public class VMProcess extends UserProcess {
 			// 	VMKernel.pinCV.sleep();
 			// }
 			int toEvictPPN = VMKernel.clock();
-			VMKernel.IPT[toEvictPPN].entry.valid = false;
 			// VMKernel.pinCountLock.release();
 			
-			// if the entry is dirty swap out
+			// if the entry is dirty swap out (which also invalidates it)
 			// else toEvictPPN can be immediately used
-			if (VMKernel.IPT[toEvictPPN].entry.dirty) {
+			if (!VMKernel.IPT[toEvictPPN].entry.dirty) {
+				VMKernel.IPT[toEvictPPN].entry.valid = false;
+			} else {
 				// get a free page in swapFile (if no free page, create new one)
-				// evict the toEvictPPN to swap file
-				Lib.debug(dbgProcess, "---SWAP FILE LENGTH: " + VMKernel.swapFile.length());
-				int numBytesWrite = VMKernel.swapOut(toEvictPPN);
-				Lib.assertTrue(numBytesWrite != -1, "swap out fail");
+				// evict the toEvictPPN to swap file; the write completes in
+				// the background
+				VMKernel.swapOut(toEvictPPN);
+				// charged to the process that owned the evicted page
+				VMKernel.IPT[toEvictPPN].process.usage.numSwapOuts++;
 			}
 
 			if (pageTable[vpn].dirty) {
@@ -239,9 +249,12 @@ public class VMProcess extends UserProcess {
 				// swap in that page
 				int numBytesRead = VMKernel.swapIn(pageTable[vpn].vpn, toEvictPPN);
 				Lib.assertTrue(numBytesRead != -1, "swap in fail");
+				usage.numSwapIns++;
 				pageTable[vpn] = new TranslationEntry(vpn, toEvictPPN, true, false, true, true);
 				// set IPTEntry for toEvictPPN point to the entry causing the current page fault
 				VMKernel.IPT[toEvictPPN].entry = this.pageTable[vpn]; 
+				VMKernel.IPT[toEvictPPN].process = this;
+				VMKernel.IPT[toEvictPPN].isPinned = false; // pinned by clock()
 				return;
 			} else {
 				ppn = toEvictPPN;
@@ -250,6 +263,7 @@ public class VMProcess extends UserProcess {
 		}
 		pageTable[vpn].ppn = ppn;
 		VMKernel.IPT[ppn].entry = this.pageTable[vpn];
+		VMKernel.IPT[ppn].process = this;
 
 		if (!pageTable[vpn].valid) {
 			Lib.debug(dbgProcess, "\tcurr fault vpn: " + vpn);
@@ -276,6 +290,8 @@ public class VMProcess extends UserProcess {
 				}
 			}
 		}
+		if (evicted)
+			VMKernel.IPT[ppn].isPinned = false; // pinned by clock()
 	}
 
 	/**
@@ -297,8 +313,13 @@ public class VMProcess extends UserProcess {
 			case Processor.exceptionPageFault:
 				// get badVAddr at which pageFault occured
 				int badVAddr = Machine.processor().readRegister(Processor.regBadVAddr);
-				// handle page fault, pass in the bad vpn
-				handlePageFault(Processor.pageFromAddress(badVAddr));
+				// handle page fault, pass in the bad vpn; another thread of
+				// this process may have brought the page in meanwhile
+				int badVPN = Processor.pageFromAddress(badVAddr);
+				faultLock.acquire();
+				if (!pageTable[badVPN].valid)
+					handlePageFault(badVPN);
+				faultLock.release();
 				break;
 			default:
 				super.handleException(cause);
@@ -306,6 +327,9 @@ public class VMProcess extends UserProcess {
 		}
 	}
 
+	// serializes page faults between threads sharing this page table
+	private Lock faultLock = new Lock();
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';